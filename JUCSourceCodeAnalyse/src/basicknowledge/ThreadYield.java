@@ -4,6 +4,7 @@ package basicknowledge;
  * Thread类的 yield方法示例
  * yield方法表示当前线程让出CPU执行资源，但是让出的时间不确定，即有可能刚让出资源马上又抢占到资源，也有可能好长一段时间后才又抢占到资源（这一点注意和join区分开来）
  * yield同样不会释放锁
+ * 注意：在CAS重试循环中不要直接调用yield来让出CPU，应使用 locks包下的 Backoff(自旋 -> yield -> 带随机抖动的parkNanos 逐步升级)
  * @author EX_WLJR_CHENZEHUA
  *
  */
@@ -0,0 +1,587 @@
+package cache;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import collections.StripedHashMap;
+import counters.StripedCounter;
+import locks.MyLock;
+import queues.MpscMailbox;
+import timers.HierarchicalTimingWheel;
+
+/**
+ * 并发LRU缓存:读操作只写入缓冲区，LRU链表的维护在tryLock成功后批量完成，读永远不会阻塞
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class BufferedLruCache<K, V> {
+
+	/**
+	 * 常见的LRU实现是 LinkedHashMap(accessOrder=true) + 一把锁，每次get都要移动链表节点，所以每次get都要加锁
+	 * 读多写少的场景下，所有读线程都在排队等这把锁
+	 *
+	 * 1.数据: StripedHashMap<K, Entry>,读写数据本身不需要evictionLock(读不加锁，写只锁一个段)
+	 *
+	 * 2.LRU链表(淘汰顺序)只由持有evictionLock(MyLock)的线程修改，链表上的操作先记录到缓冲区:
+	 *   读缓冲区:按线程分散到多个有界环形缓冲区(每个16个槽位)，get命中后CAS写入一个槽位
+	 *     缓冲区满了或者CAS失败就直接丢弃这次记录(只是LRU顺序不那么精确，不影响正确性)
+	 *     缓冲区超过一半时tryLock，拿到锁就批量处理，拿不到说明有其他线程在处理，直接返回
+	 *   写缓冲区:put/remove/过期产生的链表操作不能丢弃，放入MpscMailbox(无界，多生产者)，写完后同样tryLock处理
+	 *
+	 * 3.写缓冲区不丢失处理:写线程 offer + pendingWrites加1 之后才tryLock，持锁线程unlock之后再检查pendingWrites
+	 *   两边都是先写后读volatile变量，写线程tryLock失败时持锁线程一定能看到它的写入，不会出现没人处理的写操作
+	 *   所以无论是谁拿到了锁(afterRead触发的维护、一次没有处理到写操作的维护，或者cleanUp()/weightedSize())，unlock之后只要pendingWrites>0就必须再tryLock处理一轮
+	 *
+	 * 4.链表操作和数据操作的顺序可能不一致(比如REMOVE先于ADD被处理)，所以每个Entry有状态:
+	 *   ALIVE(在map中) -> RETIRED(已经从map中删除，等待从链表中删除) -> DEAD(已经从链表中删除)
+	 *   处理ADD时Entry已经不是ALIVE就不加入链表
+	 *
+	 * 5.淘汰:每个Entry有权重(Weigher计算，默认为1即按个数)，总权重超过maximumWeight时从链表头(最久没有访问)开始淘汰
+	 *
+	 * 6.过期:expireAfterWrite > 0时，put时在HierarchicalTimingWheel上登记(Entry本身就是到期任务)，到期后从map中删除
+	 *   时间轮的精度是一个tick,get时再检查一次过期时间，到期但还没被删除的Entry按未命中处理
+	 *
+	 * 7.命中率:命中/未命中/淘汰/过期次数使用StripedCounter统计
+	 */
+
+	/**  计算缓存项的权重    */
+	public interface Weigher<K, V> {
+		int weigh(K key, V value);
+	}
+
+	private static final int ALIVE = 0;
+	private static final int RETIRED = 1;
+	private static final int DEAD = 2;
+
+	private static final int ADD = 0;
+	private static final int REMOVE = 1;
+
+	private static final long NO_EXPIRE = Long.MAX_VALUE;
+
+	final class Entry implements Runnable {
+		final K key;
+		final V value;
+		final int weight;
+		/**  System.nanoTime()的过期时刻    */
+		final long expireAt;
+		volatile int state;
+		volatile HierarchicalTimingWheel.Timeout timeout;
+
+		/**  LRU链表，只在evictionLock内访问    */
+		Entry prev;
+		Entry next;
+		boolean linked;
+
+		Entry(K key, V value, int weight, long expireAt) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+			this.expireAt = expireAt;
+		}
+
+		boolean isExpired() {
+			return expireAt != NO_EXPIRE && System.nanoTime() - expireAt >= 0;
+		}
+
+		/**  时间轮到期回调    */
+		@Override
+		public void run() {
+			expire(this);
+		}
+	}
+
+	/**  写缓冲区中的链表操作    */
+	static final class WriteTask<E> extends MpscMailbox.Node {
+		final int op;
+		final E entry;
+
+		WriteTask(int op, E entry) {
+			this.op = op;
+			this.entry = entry;
+		}
+	}
+
+	/**  一个读缓冲区:多个线程CAS写入，只有持锁线程读取    */
+	static final class ReadBuffer<E> {
+		static final int SIZE = 16;
+		static final int MASK = SIZE - 1;
+
+		long p0, p1, p2, p3, p4, p5, p6;
+		final AtomicLong writeCounter = new AtomicLong();
+		volatile long readCounter;
+		final AtomicReferenceArray<E> slots = new AtomicReferenceArray<E>(SIZE);
+		long q0, q1, q2, q3, q4, q5, q6;
+
+		/**
+		 * @return 写入后缓冲区中的元素个数，满了或者CAS失败(丢弃)返回-1
+		 */
+		int offer(E e) {
+			long head = readCounter;
+			long tail = writeCounter.get();
+			long size = tail - head;
+			if (size >= SIZE || !writeCounter.compareAndSet(tail, tail + 1))
+				return -1;
+			slots.lazySet((int) (tail & MASK), e);
+			return (int) (size + 1);
+		}
+
+		/**
+		 * 只在evictionLock内调用;生产者CAS之后还没写入槽位时返回null
+		 */
+		E poll() {
+			long head = readCounter;
+			if (head == writeCounter.get())
+				return null;
+			int i = (int) (head & MASK);
+			E e = slots.get(i);
+			if (e == null)
+				return null;
+			slots.lazySet(i, null);
+			readCounter = head + 1;
+			return e;
+		}
+	}
+
+	private static final int NCPU = Runtime.getRuntime().availableProcessors();
+	private static final int READ_BUFFERS = Math.max(4, Integer.highestOneBit(NCPU - 1) << 1);
+	/**  一次处理的写操作上限，避免持锁线程长时间处理其他线程的写操作    */
+	private static final int WRITE_DRAIN_LIMIT = 1024;
+
+	private final StripedHashMap<K, Entry> data = new StripedHashMap<K, Entry>();
+	private final long maximumWeight;
+	private final Weigher<? super K, ? super V> weigher;
+	private final long expireAfterWriteNanos;
+	private final HierarchicalTimingWheel wheel;
+	private final boolean ownsWheel;
+
+	private final MyLock evictionLock = new MyLock();
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ReadBuffer<Entry>[] readBuffers = new ReadBuffer[READ_BUFFERS];
+	private final MpscMailbox<WriteTask<Entry>> writeBuffer = new MpscMailbox<WriteTask<Entry>>();
+	private final AtomicInteger pendingWrites = new AtomicInteger();
+
+	/**  LRU链表，head为最久没有访问的Entry，只在evictionLock内访问    */
+	private Entry head;
+	private Entry tail;
+	private long weightedSize;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+	private final StripedCounter expirations = new StripedCounter();
+
+	private static final Weigher<Object, Object> SINGLETON = new Weigher<Object, Object>() {
+		@Override
+		public int weigh(Object key, Object value) {
+			return 1;
+		}
+	};
+
+	/**
+	 * 按个数淘汰，不过期
+	 */
+	public BufferedLruCache(long maximumSize) {
+		this(maximumSize, SINGLETON, 0, TimeUnit.NANOSECONDS, null);
+	}
+
+	/**
+	 * @param maximumWeight 总权重上限
+	 * @param weigher 权重计算
+	 * @param expireAfterWrite 写入后多久过期，0表示不过期
+	 * @param wheel 过期使用的时间轮，为null时需要过期则创建一个(close()时关闭)
+	 */
+	public BufferedLruCache(long maximumWeight, Weigher<? super K, ? super V> weigher, long expireAfterWrite, TimeUnit unit,
+			HierarchicalTimingWheel wheel) {
+		if (maximumWeight < 0 || expireAfterWrite < 0 || weigher == null)
+			throw new IllegalArgumentException();
+		this.maximumWeight = maximumWeight;
+		this.weigher = weigher;
+		this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+		if (expireAfterWriteNanos > 0 && wheel == null) {
+			this.wheel = new HierarchicalTimingWheel();
+			this.ownsWheel = true;
+		} else {
+			this.wheel = wheel;
+			this.ownsWheel = false;
+		}
+		for (int i = 0; i < READ_BUFFERS; i++)
+			readBuffers[i] = new ReadBuffer<Entry>();
+	}
+
+	/**
+	 * 读不加锁，命中时把这次访问写入读缓冲区
+	 */
+	public V get(Object key) {
+		Entry e = data.get(key);
+		if (e == null || e.isExpired()) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		afterRead(e);
+		return e.value;
+	}
+
+	/**
+	 * @return 之前的值
+	 */
+	public V put(K key, V value) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		int weight = weigher.weigh(key, value);
+		if (weight < 0)
+			throw new IllegalArgumentException("negative weight");
+		long expireAt = expireAfterWriteNanos > 0 ? System.nanoTime() + expireAfterWriteNanos : NO_EXPIRE;
+		Entry e = new Entry(key, value, weight, expireAt);
+		Entry prev = data.put(key, e);
+		if (expireAfterWriteNanos > 0)
+			e.timeout = wheel.schedule(e, expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+		if (prev != null)
+			retire(prev);
+		afterWrite(new WriteTask<Entry>(ADD, e));
+		return prev == null || prev.isExpired() ? null : prev.value;
+	}
+
+	/**
+	 * @return 删除前的值
+	 */
+	public V remove(Object key) {
+		Entry prev = data.remove(key);
+		if (prev == null)
+			return null;
+		retire(prev);
+		drainWrites();
+		return prev.isExpired() ? null : prev.value;
+	}
+
+	/**
+	 * 到期回调(在时间轮的执行线程中)
+	 */
+	void expire(Entry e) {
+		if (data.remove(e.key, e)) {
+			expirations.increment();
+			retire(e);
+			drainWrites();
+		}
+	}
+
+	/**
+	 * Entry已经从map中删除，登记从链表中删除
+	 */
+	private void retire(Entry e) {
+		e.state = RETIRED;
+		HierarchicalTimingWheel.Timeout t = e.timeout;
+		if (t != null)
+			t.cancel();
+		writeBuffer.offer(new WriteTask<Entry>(REMOVE, e));
+		pendingWrites.incrementAndGet();
+	}
+
+	private void afterRead(Entry e) {
+		int h = (int) (Thread.currentThread().getId() * 0x9E3779B9L);
+		ReadBuffer<Entry> buffer = readBuffers[(h ^ (h >>> 16)) & (READ_BUFFERS - 1)];
+		int size = buffer.offer(e);
+		if (size < 0 || size >= ReadBuffer.SIZE / 2)
+			tryMaintenance();
+	}
+
+	private void afterWrite(WriteTask<Entry> task) {
+		writeBuffer.offer(task);
+		pendingWrites.incrementAndGet();
+		drainWrites();
+	}
+
+	/**
+	 * 有未处理的写操作时tryLock处理，拿不到锁说明持锁线程会在unlock后看到这些写操作
+	 */
+	private void drainWrites() {
+		if (pendingWrites.get() > 0)
+			tryMaintenance();
+	}
+
+	/**
+	 * 拿到锁就处理缓冲区;unlock之后还有未处理的写操作(处理期间新到达的，或者超过WRITE_DRAIN_LIMIT没有处理完的)就再tryLock处理
+	 * 写线程tryLock失败时依赖这里的检查，所以每次unlock之后都要检查，不能只在处理了写操作时才检查
+	 */
+	private void tryMaintenance() {
+		if (!evictionLock.tryLock())
+			return;
+		do {
+			try {
+				maintenance();
+			} finally {
+				evictionLock.unlock();
+			}
+		} while (pendingWrites.get() > 0 && evictionLock.tryLock());
+	}
+
+	/**
+	 * 处理读缓冲区和写缓冲区，然后淘汰(持有evictionLock)
+	 * @return 处理的写操作个数
+	 */
+	private int maintenance() {
+		for (ReadBuffer<Entry> buffer : readBuffers) {
+			Entry e;
+			while ((e = buffer.poll()) != null) {
+				if (e.linked)
+					moveToTail(e);
+			}
+		}
+		int writes = 0;
+		WriteTask<Entry> task;
+		while (writes < WRITE_DRAIN_LIMIT && (task = writeBuffer.poll()) != null) {
+			writes++;
+			Entry e = task.entry;
+			if (task.op == ADD) {
+				if (e.state == ALIVE)
+					link(e);
+			} else {
+				if (e.linked)
+					unlink(e);
+				e.state = DEAD;
+			}
+		}
+		if (writes > 0)
+			pendingWrites.addAndGet(-writes);
+		evict();
+		return writes;
+	}
+
+	private void evict() {
+		while (weightedSize > maximumWeight && head != null) {
+			Entry victim = head;
+			unlink(victim);
+			if (data.remove(victim.key, victim)) {
+				evictions.increment();
+				HierarchicalTimingWheel.Timeout t = victim.timeout;
+				if (t != null)
+					t.cancel();
+			}
+			victim.state = DEAD;
+		}
+	}
+
+	private void link(Entry e) {
+		e.prev = tail;
+		e.next = null;
+		if (tail == null)
+			head = e;
+		else
+			tail.next = e;
+		tail = e;
+		e.linked = true;
+		weightedSize += e.weight;
+	}
+
+	private void unlink(Entry e) {
+		if (e.prev == null)
+			head = e.next;
+		else
+			e.prev.next = e.next;
+		if (e.next == null)
+			tail = e.prev;
+		else
+			e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+		e.linked = false;
+		weightedSize -= e.weight;
+	}
+
+	private void moveToTail(Entry e) {
+		if (e == tail)
+			return;
+		unlink(e);
+		link(e);
+	}
+
+	/**
+	 * 加锁处理所有缓冲区中的操作(测试或者需要精确的size时使用)
+	 */
+	public void cleanUp() {
+		evictionLock.lock();
+		try {
+			while (maintenance() > 0) {
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		drainWrites();  //持锁期间tryLock失败的写线程依赖unlock之后的这次检查
+	}
+
+	/**
+	 * map中的元素个数(包括已经过期但还没有被删除的)
+	 */
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * 链表中的总权重
+	 */
+	public long weightedSize() {
+		long size;
+		evictionLock.lock();
+		try {
+			size = weightedSize;
+		} finally {
+			evictionLock.unlock();
+		}
+		drainWrites();
+		return size;
+	}
+
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	public long missCount() {
+		return misses.sum();
+	}
+
+	public long evictionCount() {
+		return evictions.sum();
+	}
+
+	public long expirationCount() {
+		return expirations.sum();
+	}
+
+	public double hitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 1.0 : (double) h / total;
+	}
+
+	/**
+	 * 关闭自己创建的时间轮
+	 */
+	public void close() {
+		if (ownsWheel)
+			wheel.shutdown();
+	}
+
+
+	interface Cache {
+		Object get(Integer key);
+
+		void put(Integer key, Integer value);
+	}
+
+	/**
+	 * 1.4个线程，读多写少(读未命中时写入)，key按幂律分布:对比 synchronized LinkedHashMap(accessOrder) 的LRU
+	 * 2.按权重淘汰
+	 * 3.过期
+	 * 注意:单核机器上同一时刻只有一个线程运行，synchronized几乎没有竞争，这时看不出读缓冲区的优势(反而多了记录和批量处理的开销)
+	 */
+	public static void main(String[] args) throws Exception {
+		final int keySpace = 1 << 16;
+		final Integer[] keys = new Integer[keySpace];
+		for (int i = 0; i < keySpace; i++)
+			keys[i] = i;
+		final int capacity = 1 << 14;
+		for (int round = 0; round < 3; round++) {
+			final BufferedLruCache<Integer, Integer> cache = new BufferedLruCache<Integer, Integer>(capacity);
+			final Map<Integer, Integer> lru = Collections.synchronizedMap(new LinkedHashMap<Integer, Integer>(capacity, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+					return size() > capacity;
+				}
+			});
+			final AtomicLong lruHits = new AtomicLong();
+			final AtomicLong lruGets = new AtomicLong();
+			long t1 = run(4, 2000000, keys, new Cache() {
+				@Override
+				public Object get(Integer key) {
+					return cache.get(key);
+				}
+
+				@Override
+				public void put(Integer key, Integer value) {
+					cache.put(key, value);
+				}
+			});
+			long t2 = run(4, 2000000, keys, new Cache() {
+				@Override
+				public Object get(Integer key) {
+					lruGets.incrementAndGet();
+					Integer v = lru.get(key);
+					if (v != null)
+						lruHits.incrementAndGet();
+					return v;
+				}
+
+				@Override
+				public void put(Integer key, Integer value) {
+					lru.put(key, value);
+				}
+			});
+			cache.cleanUp();
+			System.out.println(String.format("BufferedLruCache: %5d毫秒 命中率 %.3f 元素个数 %d | synchronized LinkedHashMap: %5d毫秒 命中率 %.3f", t1,
+					cache.hitRatio(), cache.size(), t2, (double) lruHits.get() / lruGets.get()));
+		}
+
+		BufferedLruCache<String, byte[]> weighted = new BufferedLruCache<String, byte[]>(64 * 1024, new Weigher<String, byte[]>() {
+			@Override
+			public int weigh(String key, byte[] value) {
+				return value.length;
+			}
+		}, 0, TimeUnit.SECONDS, null);
+		for (int i = 0; i < 100; i++)
+			weighted.put("k" + i, new byte[1024 * (1 + i % 4)]);
+		weighted.cleanUp();
+		System.out.println("按权重淘汰: 总权重 " + weighted.weightedSize() + " (上限65536), 元素个数 " + weighted.size() + ", 淘汰次数 "
+				+ weighted.evictionCount());
+
+		BufferedLruCache<String, String> ttl = new BufferedLruCache<String, String>(1000, SINGLETON, 100, TimeUnit.MILLISECONDS, null);
+		for (int i = 0; i < 10; i++)
+			ttl.put("k" + i, "v" + i);
+		System.out.println("过期前: " + ttl.get("k1") + ", 元素个数 " + ttl.size());
+		Thread.sleep(300);
+		ttl.cleanUp();
+		System.out.println("过期后: " + ttl.get("k1") + ", 元素个数 " + ttl.size() + ", 过期次数 " + ttl.expirationCount() + ", 总权重 "
+				+ ttl.weightedSize());
+		ttl.close();
+	}
+
+	private static long run(int threads, final int ops, final Integer[] keys, final Cache cache) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < ops; j++) {
+						// 近似幂律分布:小的key被访问的概率更高
+						double u = r.nextDouble();
+						Integer k = keys[(int) (keys.length * u * u * u * u)];
+						if (cache.get(k) == null)
+							cache.put(k, k);
+					}
+				}
+			});
+			ts[i].start();
+		}
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		for (Thread t : ts)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
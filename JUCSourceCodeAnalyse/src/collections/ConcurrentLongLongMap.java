@@ -0,0 +1,440 @@
+package collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+
+/**
+ * long -> long 的并发哈希表，key和value直接保存在long[]中，没有装箱
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class ConcurrentLongLongMap {
+
+	/**
+	 * ConcurrentHashMap<Long, Long>的每个元素 = Node对象(32字节) + Long key(16字节) + Long value(16字节) + table中的引用
+	 * 大约100字节;这里每个元素只占 key + value 16字节(再除以装载因子)，一亿个元素大约2GB
+	 *
+	 * 1.存储:分段，每段一个long[],key和value交替存放(table[2i]为key,table[2i+1]为value)，开放地址法线性探测
+	 *   EMPTY_KEY(Long.MIN_VALUE)表示空槽位，所以它不能作为key
+	 *
+	 * 2.删除不留墓碑:和ThreadLocalMap.expungeStaleEntry一样做向后移位(backward shift)
+	 *   删除i之后继续向后扫描直到空槽位，如果某个元素的理想位置不在(i, j]区间内，说明它是因为i被占用才放到后面的，把它移到i
+	 *   这样探测序列上永远不会有"空洞",查找遇到空槽位就可以结束，也不会因为墓碑越来越多而退化
+	 *
+	 * 3.并发:每段继承StampedLock(JDK8)，写操作(包括扩容)加写锁，不同段的写互不影响，扩容也只影响一个段
+	 *   读操作先乐观读(tryOptimisticRead)，读完后validate，期间没有写操作则直接返回,否则加读锁重读
+	 *   向后移位会移动元素，乐观读在移动过程中可能漏掉元素，但validate一定会失败，所以结果不会出错
+	 *   (StripedHashMap中槽位不会被清空，读不需要校验;这里为了不留墓碑用乐观读来换)
+	 *
+	 * 4.槽位个数超过容量的3/4时该段扩容一倍
+	 */
+
+	public static final long EMPTY_KEY = Long.MIN_VALUE;
+
+	private static final int DEFAULT_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+	private static final float FILL_FACTOR = 0.75f;
+
+	@SuppressWarnings("serial")
+	static final class Segment extends StampedLock {
+		/**  只在写锁内修改，乐观读可能读到正在修改的table    */
+		long[] table;
+		volatile int size;
+		int resizeThreshold;
+
+		Segment(int capacity) {
+			table = newTable(capacity);
+			resizeThreshold = (int) (capacity * FILL_FACTOR);
+		}
+
+		static long[] newTable(int capacity) {
+			long[] t = new long[capacity * 2];
+			for (int i = 0; i < t.length; i += 2)
+				t[i] = EMPTY_KEY;
+			return t;
+		}
+
+		long get(long key, int hash, long noEntryValue) {
+			long stamp = tryOptimisticRead();
+			long value = find(table, key, hash, noEntryValue);
+			if (validate(stamp))
+				return value;
+			stamp = readLock();
+			try {
+				return find(table, key, hash, noEntryValue);
+			} finally {
+				unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * 探测步数不超过table长度，乐观读读到不一致的table时也会结束
+		 */
+		static long find(long[] tab, long key, int hash, long noEntryValue) {
+			int capacity = tab.length >> 1;
+			int mask = capacity - 1;
+			int i = hash & mask;
+			for (int n = 0; n < capacity; n++) {
+				long k = tab[i << 1];
+				if (k == key)
+					return tab[(i << 1) + 1];
+				if (k == EMPTY_KEY)
+					return noEntryValue;
+				i = (i + 1) & mask;
+			}
+			return noEntryValue;
+		}
+
+		/**
+		 * @param mode PUT / PUT_IF_ABSENT / ADD
+		 */
+		long put(long key, long value, int hash, int mode, long noEntryValue) {
+			long stamp = writeLock();
+			try {
+				long[] tab = table;
+				int mask = (tab.length >> 1) - 1;
+				int i = hash & mask;
+				for (;;) {
+					long k = tab[i << 1];
+					if (k == key) {
+						long prev = tab[(i << 1) + 1];
+						if (mode == PUT)
+							tab[(i << 1) + 1] = value;
+						else if (mode == ADD)
+							return tab[(i << 1) + 1] = prev + value;
+						return prev;
+					}
+					if (k == EMPTY_KEY)
+						break;
+					i = (i + 1) & mask;
+				}
+				tab[(i << 1) + 1] = value;
+				tab[i << 1] = key;
+				size = size + 1;
+				if (size > resizeThreshold)
+					rehash();
+				return mode == ADD ? value : noEntryValue;
+			} finally {
+				unlockWrite(stamp);
+			}
+		}
+
+		long remove(long key, int hash, long noEntryValue) {
+			long stamp = writeLock();
+			try {
+				long[] tab = table;
+				int mask = (tab.length >> 1) - 1;
+				int i = hash & mask;
+				for (;;) {
+					long k = tab[i << 1];
+					if (k == key)
+						break;
+					if (k == EMPTY_KEY)
+						return noEntryValue;
+					i = (i + 1) & mask;
+				}
+				long prev = tab[(i << 1) + 1];
+				shiftBack(tab, i, mask);
+				size = size - 1;
+				return prev;
+			} finally {
+				unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * 删除槽位i，把后面探测序列上的元素向前移
+		 */
+		private static void shiftBack(long[] tab, int i, int mask) {
+			for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+				long k = tab[j << 1];
+				if (k == EMPTY_KEY)
+					break;
+				int ideal = hash(k) & mask;
+				// ideal在(i, j]区间内时元素不需要移动(考虑绕回)
+				boolean stay = i <= j ? (i < ideal && ideal <= j) : (i < ideal || ideal <= j);
+				if (!stay) {
+					tab[i << 1] = k;
+					tab[(i << 1) + 1] = tab[(j << 1) + 1];
+					i = j;
+				}
+			}
+			tab[i << 1] = EMPTY_KEY;
+			tab[(i << 1) + 1] = 0L;
+		}
+
+		/**
+		 * 扩容一倍(已经持有写锁)
+		 */
+		private void rehash() {
+			long[] old = table;
+			int capacity = old.length;  // 新容量 = 旧容量*2 = 旧数组长度
+			long[] tab = newTable(capacity);
+			int mask = capacity - 1;
+			for (int i = 0; i < old.length; i += 2) {
+				long k = old[i];
+				if (k != EMPTY_KEY) {
+					int j = hash(k) & mask;
+					while (tab[j << 1] != EMPTY_KEY)
+						j = (j + 1) & mask;
+					tab[j << 1] = k;
+					tab[(j << 1) + 1] = old[i + 1];
+				}
+			}
+			table = tab;
+			resizeThreshold = (int) (capacity * FILL_FACTOR);
+		}
+	}
+
+	private static final int PUT = 0;
+	private static final int PUT_IF_ABSENT = 1;
+	private static final int ADD = 2;
+
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final long noEntryValue;
+
+	public ConcurrentLongLongMap() {
+		this(DEFAULT_SEGMENTS, 256, -1L);
+	}
+
+	/**
+	 * @param segmentCount 段数(向上取2的幂)
+	 * @param expectedSize 预计的元素个数
+	 * @param noEntryValue key不存在时get/put/remove返回的值
+	 */
+	public ConcurrentLongLongMap(int segmentCount, long expectedSize, long noEntryValue) {
+		if (segmentCount <= 0 || expectedSize < 0)
+			throw new IllegalArgumentException();
+		int n = segmentCount == 1 ? 1 : Integer.highestOneBit(segmentCount - 1) << 1;
+		long perSegment = Math.max(MIN_SEGMENT_CAPACITY, (long) (expectedSize / n / FILL_FACTOR) + 1);
+		if (perSegment > 1 << 29)
+			throw new IllegalArgumentException("too many entries per segment, use more segments");
+		int capacity = Integer.highestOneBit((int) perSegment - 1) << 1;
+		this.segments = new Segment[n];
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment(capacity);
+		this.noEntryValue = noEntryValue;
+	}
+
+	/**  murmur3 fmix64    */
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	private static void checkKey(long key) {
+		if (key == EMPTY_KEY)
+			throw new IllegalArgumentException("key must not be Long.MIN_VALUE");
+	}
+
+	/**
+	 * @return key对应的值，不存在时返回noEntryValue
+	 */
+	public long get(long key) {
+		checkKey(key);
+		int h = hash(key);
+		return segmentFor(h).get(key, h, noEntryValue);
+	}
+
+	public boolean containsKey(long key) {
+		checkKey(key);
+		int h = hash(key);
+		Segment seg = segmentFor(h);
+		long stamp = seg.readLock();
+		try {
+			long[] tab = seg.table;
+			int mask = (tab.length >> 1) - 1;
+			for (int i = h & mask;; i = (i + 1) & mask) {
+				long k = tab[i << 1];
+				if (k == key)
+					return true;
+				if (k == EMPTY_KEY)
+					return false;
+			}
+		} finally {
+			seg.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return 之前的值，不存在时返回noEntryValue
+	 */
+	public long put(long key, long value) {
+		checkKey(key);
+		int h = hash(key);
+		return segmentFor(h).put(key, value, h, PUT, noEntryValue);
+	}
+
+	public long putIfAbsent(long key, long value) {
+		checkKey(key);
+		int h = hash(key);
+		return segmentFor(h).put(key, value, h, PUT_IF_ABSENT, noEntryValue);
+	}
+
+	/**
+	 * 原子地加delta(key不存在时当作0)
+	 * @return 加之后的值
+	 */
+	public long addAndGet(long key, long delta) {
+		checkKey(key);
+		int h = hash(key);
+		return segmentFor(h).put(key, delta, h, ADD, noEntryValue);
+	}
+
+	/**
+	 * @return 删除前的值，不存在时返回noEntryValue
+	 */
+	public long remove(long key) {
+		checkKey(key);
+		int h = hash(key);
+		return segmentFor(h).remove(key, h, noEntryValue);
+	}
+
+	public long size() {
+		long n = 0;
+		for (Segment seg : segments)
+			n += seg.size;
+		return n;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+
+	/**
+	 * 1.内存:一千万个元素，对比ConcurrentHashMap<Long, Long>的堆内存占用
+	 * 2.多线程读写吞吐量
+	 * 3.单线程随机操作和ConcurrentHashMap的结果对比(覆盖向后移位删除和扩容)
+	 */
+	public static void main(String[] args) throws Exception {
+		final int entries = 10000000;
+		long before = usedHeap();
+		ConcurrentLongLongMap map = new ConcurrentLongLongMap(64, 0, -1L);
+		for (long i = 0; i < entries; i++)
+			map.put(i * 31, i);
+		long mapBytes = usedHeap() - before;
+		System.out.println("ConcurrentLongLongMap " + entries + "个元素: " + mapBytes / (1 << 20) + "MB, 每个元素 " + mapBytes / entries
+				+ "字节, 一亿个元素约 " + mapBytes * 10 / (1 << 30) + "GB");
+		map = null;
+		before = usedHeap();
+		ConcurrentHashMap<Long, Long> chm = new ConcurrentHashMap<Long, Long>();
+		for (long i = 0; i < entries; i++)
+			chm.put(i * 31, i + 1000);  //value不使用Long缓存
+		long chmBytes = usedHeap() - before;
+		System.out.println("ConcurrentHashMap<Long, Long> " + entries + "个元素: " + chmBytes / (1 << 20) + "MB, 每个元素 " + chmBytes / entries
+				+ "字节, 一亿个元素约 " + chmBytes * 10 / (1 << 30) + "GB");
+		chm = null;
+
+		for (int round = 0; round < 3; round++) {
+			final ConcurrentLongLongMap m = new ConcurrentLongLongMap();
+			final ConcurrentHashMap<Long, Long> c = new ConcurrentHashMap<Long, Long>();
+			long t1 = run(4, 2000000, new LongOps() {
+				@Override
+				public void op(long key, int p) {
+					if (p < 80)
+						m.get(key);
+					else if (p < 95)
+						m.addAndGet(key, 1);
+					else
+						m.remove(key);
+				}
+			});
+			long t2 = run(4, 2000000, new LongOps() {
+				@Override
+				public void op(long key, int p) {
+					if (p < 80)
+						c.get(key);
+					else if (p < 95)
+						c.merge(key, 1L, SUM);
+					else
+						c.remove(key);
+				}
+			});
+			System.out.println("80%读/15%累加/5%删除  ConcurrentLongLongMap: " + t1 + "毫秒  ConcurrentHashMap<Long, Long>: " + t2 + "毫秒");
+		}
+
+		ConcurrentLongLongMap m = new ConcurrentLongLongMap(2, 0, -1L);
+		ConcurrentHashMap<Long, Long> expected = new ConcurrentHashMap<Long, Long>();
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		for (int i = 0; i < 3000000; i++) {
+			long k = r.nextInt(20000) - 10000;
+			int op = r.nextInt(3);
+			long a;
+			Long b;
+			if (op == 0) {
+				a = m.put(k, i);
+				b = expected.put(k, (long) i);
+			} else if (op == 1) {
+				a = m.remove(k);
+				b = expected.remove(k);
+			} else {
+				a = m.get(k);
+				b = expected.get(k);
+			}
+			if (a != (b == null ? -1L : b))
+				throw new IllegalStateException("mismatch at " + i + ": " + a + " / " + b);
+		}
+		System.out.println("校验通过, size: " + m.size() + " / " + expected.size());
+	}
+
+	private static final BiFunction<Long, Long, Long> SUM = new BiFunction<Long, Long, Long>() {
+		@Override
+		public Long apply(Long a, Long b) {
+			return a + b;
+		}
+	};
+
+	interface LongOps {
+		void op(long key, int percent);
+	}
+
+	private static long run(int threads, final int ops, final LongOps map) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < ops; j++)
+						map.op(r.nextInt(1 << 16), r.nextInt(100));
+				}
+			});
+			ts[i].start();
+		}
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		for (Thread t : ts)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
@@ -0,0 +1,419 @@
+package collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import locks.MyLock;
+
+/**
+ * 分段加锁的并发哈希表:开放地址法(线性探测)，写操作按段加MyLock，读操作不加锁，扩容在后续的写操作中逐步完成
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class StripedHashMap<K, V> {
+
+	/**
+	 * ThreadLocalAnalyse中的ThreadLocalMap也是开放地址法(线性探测)，但它只被一个线程访问
+	 * 并且rehash()时一次性把整个table搬到新数组中(stop the world)
+	 *
+	 * 1.分段: 哈希值的高位选择段(segment),每个段有自己的MyLock和table,不同段的写操作互不影响
+	 *   低位决定在table中的起始位置，然后线性探测
+	 *
+	 * 2.不加锁的读: table是AtomicReferenceArray<Entry>,槽位一旦写入Entry就不会再被清空(只在扩容时整体替换table)
+	 *   所以读线程沿着探测序列遇到null就可以确定key不存在
+	 *   删除只是把Entry的value置为null(墓碑)，同一个key再次put时复用这个Entry
+	 *   Entry的value是volatile,写线程更新value后读线程马上可以看到
+	 *
+	 * 3.渐进式扩容: 已用槽位(包括墓碑)超过容量的2/3时(和ThreadLocalMap的threshold相同)，创建新table
+	 *   段的 tables = (current新table, old旧table) 作为一个不可变对象整体发布
+	 *   之后该段的每次写操作顺便把旧table的MIGRATE_CHUNK个槽位中的有效Entry搬到新table(搬的是同一个Entry对象，不复制)
+	 *   旧table的槽位不清空，全部搬完后发布 (current, null)
+	 *   墓碑不搬，所以扩容同时也清理了墓碑;有效Entry较少时新table和旧table大小相同(只清理墓碑)
+	 *
+	 * 4.一个key在迁移期间的规则(写操作都在段锁内):
+	 *   current中有这个key的Entry时以current为准(Entry的value为null表示不存在)，否则以old中的Entry为准
+	 *   put时current中没有、old中有有效Entry -> 直接修改old中的这个Entry(它之后会被搬到current)
+	 *   old中也没有有效Entry -> 在current中插入新Entry
+	 *   读线程一次读取tables，先查current再查old,规则相同
+	 */
+
+	static final class Entry<K, V> {
+		final K key;
+		final int hash;
+		volatile V value;
+
+		Entry(K key, int hash, V value) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+
+	/**  段当前的table和正在迁移的旧table    */
+	static final class Tables<K, V> {
+		final AtomicReferenceArray<Entry<K, V>> current;
+		final AtomicReferenceArray<Entry<K, V>> old;
+
+		Tables(AtomicReferenceArray<Entry<K, V>> current, AtomicReferenceArray<Entry<K, V>> old) {
+			this.current = current;
+			this.old = old;
+		}
+	}
+
+	static final class Segment<K, V> {
+		final MyLock lock = new MyLock();
+		volatile Tables<K, V> tables;
+		/**  有效Entry个数    */
+		volatile int count;
+		/**  current中已经使用的槽位(包括墓碑)，只在锁内访问    */
+		int used;
+		/**  旧table下一个要迁移的槽位，只在锁内访问    */
+		int migrateIndex;
+
+		Segment(int capacity) {
+			tables = new Tables<K, V>(new AtomicReferenceArray<Entry<K, V>>(capacity), null);
+		}
+	}
+
+	private static final int DEFAULT_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+	private static final int MIGRATE_CHUNK = 64;
+
+	private final Segment<K, V>[] segments;
+	private final int segmentShift;
+
+	public StripedHashMap() {
+		this(DEFAULT_SEGMENTS, 256);
+	}
+
+	/**
+	 * @param segmentCount 段数(向上取2的幂)
+	 * @param initialCapacity 预计的元素个数
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public StripedHashMap(int segmentCount, int initialCapacity) {
+		if (segmentCount <= 0 || initialCapacity < 0)
+			throw new IllegalArgumentException();
+		int n = segmentCount == 1 ? 1 : Integer.highestOneBit(segmentCount - 1) << 1;
+		this.segments = new Segment[n];
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+		int perSegment = tableSizeFor(Math.max(MIN_SEGMENT_CAPACITY, (initialCapacity / n) * 3 / 2 + 1));
+		for (int i = 0; i < n; i++)
+			segments[i] = new Segment<K, V>(perSegment);
+	}
+
+	private static int tableSizeFor(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+
+	private static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Segment<K, V> segmentFor(int hash) {
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * 在table中查找key的Entry(包括墓碑)
+	 */
+	private static <K, V> Entry<K, V> find(AtomicReferenceArray<Entry<K, V>> tab, Object key, int hash) {
+		int mask = tab.length() - 1;
+		for (int i = hash & mask;; i = (i + 1) & mask) {
+			Entry<K, V> e = tab.get(i);
+			if (e == null)
+				return null;
+			if (e.hash == hash && (e.key == key || e.key.equals(key)))
+				return e;
+		}
+	}
+
+	private static <K, V> Entry<K, V> lookup(Tables<K, V> t, Object key, int hash) {
+		Entry<K, V> e = find(t.current, key, hash);
+		if (e == null && t.old != null)
+			e = find(t.old, key, hash);
+		return e;
+	}
+
+	public V get(Object key) {
+		int hash = spread(key.hashCode());
+		Entry<K, V> e = lookup(segmentFor(hash).tables, key, hash);
+		return e == null ? null : e.value;
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return 之前的值，没有时返回null
+	 */
+	public V put(K key, V value) {
+		return put(key, value, false);
+	}
+
+	public V putIfAbsent(K key, V value) {
+		return put(key, value, true);
+	}
+
+	private V put(K key, V value, boolean onlyIfAbsent) {
+		if (value == null)
+			throw new NullPointerException();
+		int hash = spread(key.hashCode());
+		Segment<K, V> seg = segmentFor(hash);
+		seg.lock.lock();
+		try {
+			Tables<K, V> t = seg.tables;
+			if (t.old != null)
+				migrate(seg, t);
+			t = seg.tables;
+			Entry<K, V> e = find(t.current, key, hash);
+			if (e == null && t.old != null) {
+				e = find(t.old, key, hash);
+				if (e != null && e.value == null)  //old中的墓碑:在current中插入新Entry
+					e = null;
+			}
+			if (e != null) {
+				V prev = e.value;
+				if (prev == null) {  //current中的墓碑:复用
+					e.value = value;
+					seg.count = seg.count + 1;
+				} else if (!onlyIfAbsent) {
+					e.value = value;
+				}
+				return prev;
+			}
+			insert(seg, t.current, new Entry<K, V>(key, hash, value));
+			seg.count = seg.count + 1;
+			if (seg.used > t.current.length() * 2 / 3)
+				resize(seg);
+			return null;
+		} finally {
+			seg.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return 删除前的值，没有时返回null
+	 */
+	public V remove(Object key) {
+		return remove(key, null, false);
+	}
+
+	/**
+	 * key当前的值等于value时才删除
+	 */
+	public boolean remove(Object key, Object value) {
+		return value != null && remove(key, value, true) != null;
+	}
+
+	private V remove(Object key, Object expected, boolean matchValue) {
+		int hash = spread(key.hashCode());
+		Segment<K, V> seg = segmentFor(hash);
+		seg.lock.lock();
+		try {
+			Tables<K, V> t = seg.tables;
+			if (t.old != null)
+				migrate(seg, t);
+			Entry<K, V> e = lookup(seg.tables, key, hash);
+			if (e == null || e.value == null)
+				return null;
+			V prev = e.value;
+			if (matchValue && prev != expected && !prev.equals(expected))
+				return null;
+			e.value = null;
+			seg.count = seg.count - 1;
+			return prev;
+		} finally {
+			seg.lock.unlock();
+		}
+	}
+
+	/**
+	 * 插入到第一个空槽位(调用方保证tab中没有这个key)
+	 */
+	private static <K, V> void insert(Segment<K, V> seg, AtomicReferenceArray<Entry<K, V>> tab, Entry<K, V> e) {
+		int mask = tab.length() - 1;
+		int i = e.hash & mask;
+		while (tab.get(i) != null)
+			i = (i + 1) & mask;
+		tab.set(i, e);
+		seg.used++;
+	}
+
+	/**
+	 * 开始扩容:上一次迁移还没有完成时先把它做完
+	 */
+	private void resize(Segment<K, V> seg) {
+		Tables<K, V> t = seg.tables;
+		if (t.old != null) {
+			finishMigration(seg);
+			t = seg.tables;
+			if (seg.used <= t.current.length() * 2 / 3)
+				return;
+		}
+		int len = t.current.length();
+		int newLen = seg.count * 3 >= len ? len << 1 : len;  //有效Entry较少时只清理墓碑
+		seg.tables = new Tables<K, V>(new AtomicReferenceArray<Entry<K, V>>(newLen), t.current);
+		seg.used = 0;
+		seg.migrateIndex = 0;
+		migrate(seg, seg.tables);
+	}
+
+	/**
+	 * 迁移旧table的一段槽位
+	 */
+	private static <K, V> void migrate(Segment<K, V> seg, Tables<K, V> t) {
+		int end = Math.min(seg.migrateIndex + MIGRATE_CHUNK, t.old.length());
+		for (int i = seg.migrateIndex; i < end; i++) {
+			Entry<K, V> e = t.old.get(i);
+			if (e != null && e.value != null)
+				insert(seg, t.current, e);
+		}
+		seg.migrateIndex = end;
+		if (end == t.old.length())
+			seg.tables = new Tables<K, V>(t.current, null);
+	}
+
+	private static <K, V> void finishMigration(Segment<K, V> seg) {
+		Tables<K, V> t;
+		while ((t = seg.tables).old != null)
+			migrate(seg, t);
+	}
+
+	public int size() {
+		long n = 0;
+		for (Segment<K, V> seg : segments)
+			n += seg.count;
+		return (int) Math.min(n, Integer.MAX_VALUE);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+
+	interface MapOps {
+		Object get(Integer key);
+
+		void put(Integer key, Integer value);
+
+		void remove(Integer key);
+	}
+
+	/**
+	 * 用main代替JMH:读多写少(90%读)和写多(50%写/25%删除/25%读)两种负载，对比ConcurrentHashMap
+	 */
+	public static void main(String[] args) throws Exception {
+		final int keySpace = 1 << 16;
+		final Integer[] keys = new Integer[keySpace];
+		for (int i = 0; i < keySpace; i++)
+			keys[i] = i;
+		int threads = 4;
+		int opsPerThread = 2000000;
+		for (int round = 0; round < 3; round++) {
+			for (int readPercent : new int[] { 90, 25 }) {
+				final StripedHashMap<Integer, Integer> striped = new StripedHashMap<Integer, Integer>();
+				final ConcurrentHashMap<Integer, Integer> chm = new ConcurrentHashMap<Integer, Integer>();
+				long t1 = run(threads, opsPerThread, readPercent, keys, new MapOps() {
+					@Override
+					public Object get(Integer key) {
+						return striped.get(key);
+					}
+
+					@Override
+					public void put(Integer key, Integer value) {
+						striped.put(key, value);
+					}
+
+					@Override
+					public void remove(Integer key) {
+						striped.remove(key);
+					}
+				});
+				long t2 = run(threads, opsPerThread, readPercent, keys, new MapOps() {
+					@Override
+					public Object get(Integer key) {
+						return chm.get(key);
+					}
+
+					@Override
+					public void put(Integer key, Integer value) {
+						chm.put(key, value);
+					}
+
+					@Override
+					public void remove(Integer key) {
+						chm.remove(key);
+					}
+				});
+				System.out.println("读" + readPercent + "%  StripedHashMap: " + t1 + "毫秒  ConcurrentHashMap: " + t2 + "毫秒");
+			}
+		}
+
+		// 单线程校验:和ConcurrentHashMap的结果一致
+		StripedHashMap<Integer, Integer> m = new StripedHashMap<Integer, Integer>(4, 0);
+		ConcurrentHashMap<Integer, Integer> expected = new ConcurrentHashMap<Integer, Integer>();
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		for (int i = 0; i < 2000000; i++) {
+			Integer k = keys[r.nextInt(4096)];
+			int op = r.nextInt(3);
+			Object a, b;
+			if (op == 0) {
+				a = m.put(k, i);
+				b = expected.put(k, i);
+			} else if (op == 1) {
+				a = m.remove(k);
+				b = expected.remove(k);
+			} else {
+				a = m.get(k);
+				b = expected.get(k);
+			}
+			if (a == null ? b != null : !a.equals(b))
+				throw new IllegalStateException("mismatch at " + i + ": " + a + " / " + b);
+		}
+		System.out.println("校验通过, size: " + m.size() + " / " + expected.size());
+	}
+
+	private static long run(int threads, final int ops, final int readPercent, final Integer[] keys, final MapOps map)
+			throws InterruptedException {
+		for (Integer k : keys)
+			map.put(k, k);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					int writePercent = (100 - readPercent) * 2 / 3;
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < ops; j++) {
+						Integer k = keys[r.nextInt(keys.length)];
+						int p = r.nextInt(100);
+						if (p < readPercent)
+							map.get(k);
+						else if (p < readPercent + writePercent)
+							map.put(k, k);
+						else
+							map.remove(k);
+					}
+				}
+			});
+			ts[i].start();
+		}
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		for (Thread t : ts)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
@@ -0,0 +1,350 @@
+package counters;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 分段(striped)计数器，高并发下替代共享的AtomicInteger/AtomicLong计数,思路和JDK8的LongAdder相同
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class StripedCounter {
+
+	/**
+	 * ThreadLocalTest中所有线程共用一个 static AtomicInteger 做 addAndGet,线程少时没有问题
+	 * 但所有CPU都在对同一个缓存行做CAS,线程越多CAS失败重试越多，吞吐量反而下降
+	 *
+	 * 1.没有竞争时只对base做CAS,和AtomicLong一样
+	 * 2.base的CAS失败说明有竞争，创建cells数组，每个线程按自己的探针(probe)值选择一个cell累加
+	 *   每个cell前后填充，独占一个缓存行(和CombiningTreeBarrier中的计数器一样)
+	 * 3.cell上的CAS也失败时，线程重新计算探针换到其他cell;连续失败则把cells扩容一倍，最多扩到不小于CPU核数的2的幂
+	 *   创建cell和扩容都要先拿到cellsBusy这个简单的自旋锁
+	 * 4.sum() = base + 所有cell的值,不加锁，并发累加时只是一个近似值
+	 * 5.不提供reset:计数值只增不减，需要"最近一段时间的速率"时使用rate(),它记录(时间,sum)采样，用两次采样的差值计算速率
+	 *   这样多个读取方(比如多个监控任务)互不影响，也不会因为reset和累加并发而丢失计数
+	 *
+	 * JDK8的LongAdder把探针保存在Thread对象的字段中(通过Unsafe访问)，这里使用ThreadLocal保存
+	 */
+
+	static class PadBefore {
+		long p0, p1, p2, p3, p4, p5, p6;
+	}
+
+	static class CellValue extends PadBefore {
+		volatile long value;
+	}
+
+	/**  独占一个缓存行的计数单元    */
+	static final class Cell extends CellValue {
+		long q0, q1, q2, q3, q4, q5, q6;
+
+		Cell(long x) {
+			value = x;
+		}
+
+		boolean cas(long expect, long update) {
+			return VALUE.compareAndSet(this, expect, update);
+		}
+	}
+
+	private static final AtomicLongFieldUpdater<CellValue> VALUE =
+			AtomicLongFieldUpdater.newUpdater(CellValue.class, "value");
+	private static final AtomicLongFieldUpdater<StripedCounter> BASE =
+			AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "base");
+	private static final AtomicIntegerFieldUpdater<StripedCounter> CELLS_BUSY =
+			AtomicIntegerFieldUpdater.newUpdater(StripedCounter.class, "cellsBusy");
+
+	private static final int NCPU = Runtime.getRuntime().availableProcessors();
+	/**  cells的最大长度:不小于CPU核数的2的幂    */
+	private static final int MAX_CELLS = Math.max(2, Integer.highestOneBit(NCPU - 1) << 1);
+
+	/**  每个线程的探针值，0表示还没有初始化    */
+	private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[] { ThreadLocalRandom.current().nextInt() | 1 };
+		}
+	};
+
+	/**  rate()使用的采样个数    */
+	private static final int RATE_SAMPLES = 8;
+
+	private volatile long base;
+	private volatile Cell[] cells;
+	private volatile int cellsBusy;
+
+	private final long windowNanos;
+	private final long[] sampleTimes = new long[RATE_SAMPLES];
+	private final long[] sampleSums = new long[RATE_SAMPLES];
+	private int sampleCount;
+	private int lastSample;
+
+	public StripedCounter() {
+		this(1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param window rate()统计的时间窗口
+	 */
+	public StripedCounter(long window, TimeUnit unit) {
+		if (window <= 0)
+			throw new IllegalArgumentException();
+		this.windowNanos = unit.toNanos(window);
+		sampleTimes[0] = System.nanoTime();
+		sampleCount = 1;
+	}
+
+	public void increment() {
+		add(1L);
+	}
+
+	public void add(long x) {
+		Cell[] cs = cells;
+		if (cs == null) {
+			long b = base;
+			if (BASE.compareAndSet(this, b, b + x))
+				return;
+			addSlow(x, PROBE.get(), null);
+			return;
+		}
+		int[] probe = PROBE.get();
+		Cell c = cs[probe[0] & (cs.length - 1)];
+		long v;
+		if (c == null || !c.cas(v = c.value, v + x))
+			addSlow(x, probe, c);
+	}
+
+	/**
+	 * @param failed 刚刚CAS失败的cell(null表示base失败或者cell还没有创建)
+	 */
+	private void addSlow(long x, int[] probe, Cell failed) {
+		int h = probe[0];
+		if (failed != null)  //cell上有竞争，先换一个cell
+			h = probe[0] = rehash(h);
+		boolean collide = false;
+		for (;;) {
+			Cell[] cs = cells;
+			if (cs != null) {
+				int n = cs.length;
+				Cell c = cs[h & (n - 1)];
+				long v;
+				if (c == null) {
+					if (cellsBusy == 0) {
+						Cell created = new Cell(x);
+						if (cellsBusy == 0 && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+							boolean done = false;
+							try {
+								Cell[] rs = cells;
+								int j = h & (rs.length - 1);
+								if (rs[j] == null) {
+									rs[j] = created;
+									done = true;
+								}
+							} finally {
+								cellsBusy = 0;
+							}
+							if (done)
+								return;
+							continue;
+						}
+					}
+					collide = false;
+				} else if (c.cas(v = c.value, v + x)) {
+					return;
+				} else if (n >= MAX_CELLS || cells != cs) {
+					collide = false;  //已经扩容到最大或者被其他线程扩容了，只换cell
+				} else if (!collide) {
+					collide = true;
+				} else if (cellsBusy == 0 && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+					try {
+						if (cells == cs)
+							cells = Arrays.copyOf(cs, n << 1);
+					} finally {
+						cellsBusy = 0;
+					}
+					collide = false;
+					continue;  //用同一个探针在扩容后的数组上重试
+				}
+				h = probe[0] = rehash(h);
+			} else if (cellsBusy == 0 && cells == null && CELLS_BUSY.compareAndSet(this, 0, 1)) {
+				boolean init = false;
+				try {
+					if (cells == null) {
+						Cell[] rs = new Cell[2];
+						rs[h & 1] = new Cell(x);
+						cells = rs;
+						init = true;
+					}
+				} finally {
+					cellsBusy = 0;
+				}
+				if (init)
+					return;
+			} else {
+				long b = base;
+				if (BASE.compareAndSet(this, b, b + x))
+					return;
+			}
+		}
+	}
+
+	/**  xorshift    */
+	private static int rehash(int h) {
+		h ^= h << 13;
+		h ^= h >>> 17;
+		h ^= h << 5;
+		return h;
+	}
+
+	/**
+	 * 当前计数值(并发累加时为近似值)
+	 */
+	public long sum() {
+		long sum = base;
+		Cell[] cs = cells;
+		if (cs != null) {
+			for (Cell c : cs) {
+				if (c != null)
+					sum += c.value;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * 最近一个时间窗口内每个时间单位的平均计数
+	 * 采样只在调用rate()时记录(每隔 窗口/采样个数 记录一次)，两次调用间隔超过窗口时返回的是这段间隔内的平均速率
+	 */
+	public synchronized double rate(TimeUnit unit) {
+		long now = System.nanoTime();
+		long sum = sum();
+		if (now - sampleTimes[lastSample] >= windowNanos / RATE_SAMPLES) {
+			lastSample = (lastSample + 1) % RATE_SAMPLES;
+			sampleTimes[lastSample] = now;
+			sampleSums[lastSample] = sum;
+			if (sampleCount < RATE_SAMPLES)
+				sampleCount++;
+		}
+		// 窗口内最早的采样;全部在窗口之外时使用最新的采样
+		int from = lastSample;
+		for (int i = 1; i < sampleCount; i++) {
+			int j = (lastSample - i + RATE_SAMPLES) % RATE_SAMPLES;
+			if (now - sampleTimes[j] > windowNanos)
+				break;
+			from = j;
+		}
+		if (from == lastSample && sampleTimes[from] == now) {
+			if (sampleCount == 1)
+				return 0.0;
+			from = (lastSample - 1 + RATE_SAMPLES) % RATE_SAMPLES;
+		}
+		long elapsed = now - sampleTimes[from];
+		if (elapsed <= 0)
+			return 0.0;
+		return (double) (sum - sampleSums[from]) * unit.toNanos(1) / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+
+
+	interface Incrementer {
+		void increment();
+	}
+
+	/**
+	 * 1-64个线程对同一个计数器累加，对比 AtomicInteger / AtomicLong / StripedCounter 的耗时
+	 * 最后演示rate()
+	 * 注意:单核机器上同一时刻只有一个线程在CAS,不会出现缓存行争抢，这时三者差别不大(StripedCounter还多了查找cell的开销)
+	 */
+	public static void main(String[] args) throws Exception {
+		final int total = 1 << 24;
+		for (int round = 0; round < 2; round++) {
+			System.out.println("第" + (round + 1) + "轮，累加总次数 " + total);
+			for (int threads = 1; threads <= 64; threads <<= 1) {
+				final AtomicInteger ai = new AtomicInteger();
+				final AtomicLong al = new AtomicLong();
+				final StripedCounter sc = new StripedCounter();
+				long t1 = run(threads, total, new Incrementer() {
+					@Override
+					public void increment() {
+						ai.addAndGet(1);
+					}
+				});
+				long t2 = run(threads, total, new Incrementer() {
+					@Override
+					public void increment() {
+						al.incrementAndGet();
+					}
+				});
+				long t3 = run(threads, total, new Incrementer() {
+					@Override
+					public void increment() {
+						sc.increment();
+					}
+				});
+				if (ai.get() != total || al.get() != total || sc.sum() != total)
+					throw new IllegalStateException("lost increments");
+				System.out.println(String.format("%2d个线程  AtomicInteger: %5d毫秒  AtomicLong: %5d毫秒  StripedCounter: %5d毫秒",
+						threads, t1, t2, t3));
+			}
+		}
+
+		final StripedCounter requests = new StripedCounter(1, TimeUnit.SECONDS);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+				while (System.nanoTime() < end) {
+					requests.increment();
+					try {
+						Thread.sleep(1);  //大约每秒1000次
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		producer.start();
+		for (int i = 0; i < 6; i++) {
+			Thread.sleep(500);
+			System.out.println("总数: " + requests.sum() + "  最近1秒速率: " + String.format("%.1f", requests.rate(TimeUnit.SECONDS)) + "/秒");
+		}
+		producer.join();
+	}
+
+	private static long run(int threads, int total, final Incrementer incrementer) throws InterruptedException {
+		final int perThread = total / threads;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < perThread; j++)
+						incrementer.increment();
+				}
+			});
+			ts[i].start();
+		}
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		for (Thread t : ts)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
@@ -0,0 +1,300 @@
+package counters;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 每个线程只写自己的计数器/直方图，读取时再合并所有线程的数据
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class ThreadLocalStats {
+
+	/**
+	 * ThreadLocalTest中每个线程通过ThreadLocal保存自己的副本(数据隔离)，计数却还是用所有线程共享的AtomicInteger(数据共享)
+	 * StripedCounter把竞争分散到多个cell,但写入仍然是CAS;这里把统计也做成数据隔离:
+	 *
+	 * 1.写入:每个线程第一次写入时创建自己的Slot(计数器 + 直方图)并注册到registry,之后只写自己的Slot
+	 *   Slot只有一个写线程，所以不需要CAS: 普通读 + lazySet(有序写),写入路径上没有任何共享变量的读写
+	 *
+	 * 2.读取:snapshot()遍历registry合并所有Slot,读线程只读取不修改，和写线程之间没有锁
+	 *   读到的是每个线程"最近"写入的值(lazySet不保证立即可见)，所以是近似的实时值
+	 *
+	 * 3.线程结束: registry对线程只保存弱引用
+	 *   snapshot()发现线程已经结束(isAlive()为false或者已经被回收)时，把它的Slot合并到retired中并从registry删除
+	 *   线程结束之前的写入对isAlive()返回false之后的读取一定可见(和join相同)，所以合并时不会丢失数据
+	 *   之后Slot只被已经结束的线程的ThreadLocalMap引用，随线程对象一起被回收
+	 *
+	 * 4.直方图按2的幂分桶(第i个桶记录 [2^(i-1), 2^i) 的值)，百分位数是桶上界的近似值
+	 *
+	 * 每个ThreadLocalStats对象使用自己的ThreadLocal(和ThreadLocalTest中非static的tl2一样)，同一个线程在不同的统计对象中有不同的Slot
+	 */
+
+	private static final int BUCKETS = 65;
+
+	/**  一个线程的统计数据，只有owner线程写入    */
+	static final class Slot {
+		volatile long counter;
+		volatile long count;
+		volatile long sum;
+		volatile long max;
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		final WeakReference<Thread> owner;
+
+		Slot(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+
+		boolean ownerAlive() {
+			Thread t = owner.get();
+			return t != null && t.isAlive();
+		}
+	}
+
+	private static final AtomicLongFieldUpdater<Slot> COUNTER = AtomicLongFieldUpdater.newUpdater(Slot.class, "counter");
+	private static final AtomicLongFieldUpdater<Slot> COUNT = AtomicLongFieldUpdater.newUpdater(Slot.class, "count");
+	private static final AtomicLongFieldUpdater<Slot> SUM = AtomicLongFieldUpdater.newUpdater(Slot.class, "sum");
+	private static final AtomicLongFieldUpdater<Slot> MAX = AtomicLongFieldUpdater.newUpdater(Slot.class, "max");
+
+	/**  合并后的统计结果    */
+	public static final class Snapshot {
+		private final long counter;
+		private final long count;
+		private final long sum;
+		private final long max;
+		private final long[] buckets;
+
+		Snapshot(long counter, long count, long sum, long max, long[] buckets) {
+			this.counter = counter;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+			this.buckets = buckets;
+		}
+
+		/**  add()累加的计数    */
+		public long counter() {
+			return counter;
+		}
+
+		/**  record()记录的次数    */
+		public long count() {
+			return count;
+		}
+
+		public long sum() {
+			return sum;
+		}
+
+		public long max() {
+			return max;
+		}
+
+		public double mean() {
+			return count == 0 ? 0.0 : (double) sum / count;
+		}
+
+		/**
+		 * 近似百分位数(所在桶的上界，不超过max)
+		 * @param q 0-1
+		 */
+		public long percentile(double q) {
+			if (q < 0.0 || q > 1.0)
+				throw new IllegalArgumentException();
+			if (count == 0)
+				return 0L;
+			long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= Math.max(rank, 1L)) {
+					long upper = i == 0 ? 0L : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+					return Math.min(upper, max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "counter=" + counter + ", count=" + count + ", mean=" + String.format("%.1f", mean()) + ", p50=" + percentile(0.5)
+					+ ", p99=" + percentile(0.99) + ", max=" + max;
+		}
+	}
+
+	private final ThreadLocal<Slot> local = new ThreadLocal<Slot>() {
+		@Override
+		protected Slot initialValue() {
+			Slot slot = new Slot(Thread.currentThread());
+			registry.add(slot);
+			return slot;
+		}
+	};
+
+	private final ConcurrentLinkedQueue<Slot> registry = new ConcurrentLinkedQueue<Slot>();
+
+	/**  已经结束的线程合并后的数据，由snapshot()在锁内修改    */
+	private long retiredCounter;
+	private long retiredCount;
+	private long retiredSum;
+	private long retiredMax;
+	private final long[] retiredBuckets = new long[BUCKETS];
+
+	/**
+	 * 计数器加delta
+	 */
+	public void add(long delta) {
+		Slot s = local.get();
+		COUNTER.lazySet(s, s.counter + delta);
+	}
+
+	public void increment() {
+		add(1L);
+	}
+
+	/**
+	 * 记录一个样本值(比如耗时)到直方图,负数按0处理
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		Slot s = local.get();
+		int bucket = 64 - Long.numberOfLeadingZeros(value);
+		s.buckets.lazySet(bucket, s.buckets.get(bucket) + 1);
+		SUM.lazySet(s, s.sum + value);
+		if (value > s.max)
+			MAX.lazySet(s, value);
+		COUNT.lazySet(s, s.count + 1);
+	}
+
+	/**
+	 * 合并所有线程的数据，同时把已经结束的线程的数据合并到retired中并释放
+	 */
+	public synchronized Snapshot snapshot() {
+		for (Iterator<Slot> it = registry.iterator(); it.hasNext();) {
+			Slot s = it.next();
+			if (!s.ownerAlive()) {
+				retiredCounter += s.counter;
+				retiredCount += s.count;
+				retiredSum += s.sum;
+				retiredMax = Math.max(retiredMax, s.max);
+				for (int i = 0; i < BUCKETS; i++)
+					retiredBuckets[i] += s.buckets.get(i);
+				it.remove();
+			}
+		}
+		long counter = retiredCounter;
+		long count = retiredCount;
+		long sum = retiredSum;
+		long max = retiredMax;
+		long[] buckets = retiredBuckets.clone();
+		for (Slot s : registry) {
+			counter += s.counter;
+			count += s.count;
+			sum += s.sum;
+			max = Math.max(max, s.max);
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] += s.buckets.get(i);
+		}
+		return new Snapshot(counter, count, sum, max, buckets);
+	}
+
+	/**
+	 * 当前注册的(还没有被合并释放的)线程数
+	 */
+	public int registeredThreads() {
+		return registry.size();
+	}
+
+
+	/**
+	 * 1.多个线程同时计数+记录耗时，对比 共享的AtomicLong计数+AtomicLongArray直方图(每次写入都是CAS)
+	 * 2.短生命周期的线程结束后，snapshot()把它们的数据合并并释放Slot
+	 */
+	public static void main(String[] args) throws Exception {
+		final int threads = 8;
+		final int perThread = 2000000;
+		for (int round = 0; round < 3; round++) {
+			final ThreadLocalStats stats = new ThreadLocalStats();
+			long t1 = run(threads, new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					for (int i = 0; i < perThread; i++) {
+						stats.increment();
+						stats.record(r.nextInt(1000));
+					}
+				}
+			});
+			final AtomicLong sharedCounter = new AtomicLong();
+			final AtomicLong sharedCount = new AtomicLong();
+			final AtomicLongArray sharedBuckets = new AtomicLongArray(BUCKETS);
+			long t2 = run(threads, new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					for (int i = 0; i < perThread; i++) {
+						sharedCounter.incrementAndGet();
+						int value = r.nextInt(1000);
+						sharedBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+						sharedCount.incrementAndGet();
+					}
+				}
+			});
+			Snapshot snapshot = stats.snapshot();
+			if (snapshot.counter() != (long) threads * perThread || snapshot.count() != (long) threads * perThread)
+				throw new IllegalStateException("lost updates: " + snapshot);
+			System.out.println("ThreadLocalStats: " + t1 + "毫秒    共享的Atomic变量: " + t2 + "毫秒");
+			System.out.println("  " + snapshot + ", 剩余注册线程数: " + stats.registeredThreads());
+		}
+
+		// 运行中的线程和已经结束的线程一起合并
+		final ThreadLocalStats stats = new ThreadLocalStats();
+		final CountDownLatch stop = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread longLived = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				stats.add(100);
+				started.countDown();
+				try {
+					stop.await();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		longLived.start();
+		started.await();
+		run(16, new Runnable() {
+			@Override
+			public void run() {
+				stats.add(1);
+			}
+		});
+		System.out.println("合并前注册线程数: " + stats.registeredThreads() + ", 计数: " + stats.snapshot().counter() + ", 合并后注册线程数: "
+				+ stats.registeredThreads());
+		stop.countDown();
+		longLived.join();
+		System.out.println("长期运行的线程结束后计数: " + stats.snapshot().counter() + ", 注册线程数: " + stats.registeredThreads());
+	}
+
+	private static long run(int threads, Runnable task) throws InterruptedException {
+		Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+			ts[i] = new Thread(task);
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
@@ -0,0 +1,388 @@
+package executors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.Condition;
+
+import locks.MyLock;
+
+/**
+ * 结构化的任务作用域(用于替代 ThreadJoin 中 "每个分片启动一个线程再逐个join" 的写法)
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class StructuredTaskScope<T> implements AutoCloseable {
+
+	/**
+	 * 和 Thread.join 扇出写法的区别:
+	 * 1.子任务通过fork()提交到工作窃取线程池(ForkJoinPool)中执行，不会为每个子任务单独创建线程
+	 *
+	 * 2.所有子任务共用一个截止时间:joinUntil()只等待一次，而不是对每个线程分别 join(2000)
+	 *   超时后没有完成的子任务全部被取消
+	 *
+	 * 3.任意一个子任务失败，其余兄弟子任务立即被取消(运行中的会被中断),join()抛出ExecutionException
+	 *
+	 * 4.close()会取消所有未完成的子任务并等待它们真正结束，保证作用域结束后不会有掉队的任务继续运行
+	 *   推荐写法: try (StructuredTaskScope<T> scope = new StructuredTaskScope<T>()) { fork...; scope.join(); }
+	 *
+	 * 5.join()如果在ForkJoinPool的工作线程中调用，会通过ForkJoinPool.managedBlock()阻塞，线程池会补偿一个工作线程，不会饿死
+	 */
+
+	private final ForkJoinPool pool;
+
+	/**  保护pending计数和failure，子任务结束时通过condition通知等待的线程   */
+	private final MyLock lock = new MyLock();
+	private final Condition finished = lock.newCondition();
+
+	/**  fork的顺序即为返回结果的顺序,只由作用域的拥有者线程修改(修改时持有lock)    */
+	private final List<Subtask<T>> subtasks = new ArrayList<Subtask<T>>();
+
+	/**  还未结束的子任务个数    */
+	private int pending;
+
+	/**  第一个失败的子任务抛出的异常    */
+	private Throwable failure;
+
+	private volatile boolean shutdown;
+
+	public StructuredTaskScope() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public StructuredTaskScope(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * 提交一个子任务
+	 */
+	public Subtask<T> fork(Callable<? extends T> task) {
+		if (shutdown)
+			throw new IllegalStateException("scope is shut down");
+		Subtask<T> subtask = new Subtask<T>(this, task);
+		lock.lock();
+		try {
+			pending++;
+			subtasks.add(subtask);
+		} finally {
+			lock.unlock();
+		}
+		pool.execute(subtask);
+		return subtask;
+	}
+
+	/**
+	 * 等待所有子任务完成(不限时)
+	 */
+	public List<T> join() throws InterruptedException, ExecutionException {
+		try {
+			return joinNanos(Long.MAX_VALUE, false);
+		} catch (TimeoutException e) {
+			throw new AssertionError(e);  //不限时等待不会超时
+		}
+	}
+
+	/**
+	 * 在同一个截止时间内等待所有子任务完成
+	 * @return 按fork顺序排列的子任务结果
+	 * @throws ExecutionException 有子任务失败(其余子任务已被取消)
+	 * @throws TimeoutException 超时(未完成的子任务已被取消)
+	 */
+	public List<T> joinUntil(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		return joinNanos(unit.toNanos(timeout), true);
+	}
+
+	private List<T> joinNanos(long nanos, boolean timed)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		Waiter waiter = new Waiter(timed ? System.nanoTime() + nanos : 0L, timed);
+		try {
+			ForkJoinPool.managedBlock(waiter);
+		} catch (InterruptedException e) {
+			shutdown();
+			throw e;
+		}
+		Throwable ex;
+		int left;
+		lock.lock();
+		try {
+			ex = failure;
+			left = pending;
+		} finally {
+			lock.unlock();
+		}
+		if (ex != null)
+			throw new ExecutionException(ex);
+		if (left > 0) {
+			shutdown();
+			throw new TimeoutException(left + " subtasks did not complete before the deadline");
+		}
+		List<T> results = new ArrayList<T>(subtasks.size());
+		for (Subtask<T> s : subtasks)
+			results.add(s.result);
+		return results;
+	}
+
+	/**
+	 * 取消所有还没有结束的子任务(不等待)
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (Subtask<T> s : subtasks)
+			s.cancel();
+	}
+
+	/**
+	 * 取消所有还没有结束的子任务，并等待它们全部结束
+	 */
+	@Override
+	public void close() {
+		shutdown();
+		lock.lock();
+		try {
+			while (pending > 0)
+				finished.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 子任务结束时回调(成功、失败或被取消)
+	 */
+	private void onComplete(Throwable ex) {
+		boolean failFast = false;
+		lock.lock();
+		try {
+			if (ex != null && failure == null) {
+				failure = ex;
+				failFast = true;
+			}
+			if (--pending == 0 || failFast)
+				finished.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (failFast) {  //第一个失败的子任务负责取消所有兄弟任务
+			shutdown = true;
+			for (Subtask<T> s : snapshot())
+				s.cancel();
+		}
+	}
+
+	/**  子任务列表由拥有者线程修改，失败时在工作线程中取消兄弟任务需要先拿到一份快照   */
+	private List<Subtask<T>> snapshot() {
+		lock.lock();
+		try {
+			return new ArrayList<Subtask<T>>(subtasks);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * join时用于阻塞的ManagedBlocker
+	 */
+	private final class Waiter implements ForkJoinPool.ManagedBlocker {
+		private final long deadline;
+		private final boolean timed;
+
+		Waiter(long deadline, boolean timed) {
+			this.deadline = deadline;
+			this.timed = timed;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+			lock.lock();
+			try {
+				while (pending > 0 && failure == null) {
+					if (!timed) {
+						finished.await();
+					} else {
+						long nanos = deadline - System.nanoTime();
+						if (nanos <= 0L)
+							break;
+						finished.awaitNanos(nanos);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			if (timed && deadline - System.nanoTime() <= 0L)
+				return true;
+			lock.lock();
+			try {
+				return pending == 0 || failure != null;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+
+	/**
+	 * 子任务
+	 * 状态变化: NEW -> RUNNING -> SUCCESS/FAILED
+	 *          NEW -> CANCELLED
+	 *          RUNNING -> INTERRUPTING -> CANCELLED
+	 */
+	public static final class Subtask<T> implements Runnable {
+
+		static final int NEW = 0;
+		static final int RUNNING = 1;
+		static final int SUCCESS = 2;
+		static final int FAILED = 3;
+		static final int INTERRUPTING = 4;
+		static final int CANCELLED = 5;
+
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Subtask> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Subtask.class, "state");
+
+		private final StructuredTaskScope<T> scope;
+		private final Callable<? extends T> task;
+		private volatile int state;
+		private volatile Thread runner;
+		private T result;
+		private Throwable exception;
+
+		Subtask(StructuredTaskScope<T> scope, Callable<? extends T> task) {
+			this.scope = scope;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			if (!STATE.compareAndSet(this, NEW, RUNNING))  //已经被取消
+				return;
+			runner = Thread.currentThread();
+			T value = null;
+			Throwable ex = null;
+			try {
+				value = task.call();
+			} catch (Throwable t) {
+				ex = t;
+			}
+			runner = null;
+			if (ex == null) {
+				result = value;
+				if (STATE.compareAndSet(this, RUNNING, SUCCESS)) {
+					scope.onComplete(null);
+					return;
+				}
+			} else {
+				exception = ex;
+				if (STATE.compareAndSet(this, RUNNING, FAILED)) {
+					scope.onComplete(ex);
+					return;
+				}
+			}
+			//运行过程中被取消:等待取消方完成中断后清除中断标记，避免中断信号泄漏给线程池中的下一个任务
+			while (state == INTERRUPTING)
+				Thread.yield();
+			Thread.interrupted();
+			scope.onComplete(null);
+		}
+
+		/**
+		 * 取消子任务，运行中的子任务会被中断
+		 */
+		void cancel() {
+			if (STATE.compareAndSet(this, NEW, CANCELLED)) {
+				scope.onComplete(null);
+				return;
+			}
+			if (STATE.compareAndSet(this, RUNNING, INTERRUPTING)) {
+				Thread t = runner;
+				if (t != null)
+					t.interrupt();
+				state = CANCELLED;
+			}
+		}
+
+		/**
+		 * 子任务是否成功完成
+		 */
+		public boolean isSuccess() {
+			return state == SUCCESS;
+		}
+
+		/**
+		 * 子任务是否已结束(成功、失败或被取消)
+		 */
+		public boolean isDone() {
+			int s = state;
+			return s == SUCCESS || s == FAILED || s == CANCELLED;
+		}
+
+		/**
+		 * 返回子任务的结果，只有在成功完成后才能调用
+		 */
+		public T get() {
+			if (state != SUCCESS)
+				throw new IllegalStateException("subtask not completed successfully");
+			return result;
+		}
+
+		/**
+		 * 返回子任务失败的异常，没有失败则返回null
+		 */
+		public Throwable exception() {
+			return state == FAILED ? exception : null;
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		// 对应ThreadJoin中的扇出写法:8个分片,所有分片共用2秒截止时间
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try (StructuredTaskScope<String> scope = new StructuredTaskScope<String>(pool)) {
+			for (int i = 0; i < 8; i++) {
+				final int shard = i;
+				scope.fork(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						Thread.sleep((long) (Math.random() * 500));
+						return "shard-" + shard + " 由 " + Thread.currentThread().getName() + " 处理";
+					}
+				});
+			}
+			for (String r : scope.joinUntil(2000, TimeUnit.MILLISECONDS))
+				System.out.println(r);
+		}
+
+		// 一个分片失败，其余还在运行的分片会被立即取消
+		long begin = System.currentTimeMillis();
+		try (StructuredTaskScope<String> scope = new StructuredTaskScope<String>(pool)) {
+			for (int i = 0; i < 8; i++) {
+				final int shard = i;
+				scope.fork(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						if (shard == 3)
+							throw new IllegalStateException("shard-3 处理失败");
+						Thread.sleep(5000);  //掉队的分片,在失败后会被中断
+						return "shard-" + shard;
+					}
+				});
+			}
+			scope.joinUntil(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			System.out.println("失败: " + e.getCause().getMessage() + ", 用时: " + (System.currentTimeMillis() - begin) + "毫秒");
+		}
+		pool.shutdown();
+	}
+
+}
@@ -0,0 +1,120 @@
+package executors;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Chase-Lev工作窃取双端队列
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+final class WorkStealingDeque<E> {
+
+	/**
+	 * 1.每个工作线程拥有一个自己的队列，只有拥有者线程能调用push/pop，在bottom端以LIFO的方式存取任务
+	 *   其他线程只能调用steal，在top端以FIFO的方式窃取任务
+	 *
+	 * 2.push/pop在绝大多数情况下只有volatile读写，不需要CAS
+	 *   只有当队列中只剩最后一个任务时，pop才需要和窃取线程通过CAS top来竞争这个任务
+	 *   窃取线程之间通过CAS top竞争
+	 *
+	 * 3.pop时先写bottom再读top(两者都是volatile，保证不会被重排序),这样拥有者线程和窃取线程对最后一个任务的竞争一定能被检测到
+	 *
+	 * 4.数组容量不够时由拥有者线程扩容为原来的2倍，旧数组中的元素不会被清除，正在窃取的线程读到旧数组依旧能拿到正确的任务
+	 */
+
+	private static final int INITIAL_CAPACITY = 1 << 8;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicLongFieldUpdater<WorkStealingDeque> TOP =
+			AtomicLongFieldUpdater.newUpdater(WorkStealingDeque.class, "top");
+
+	/**  窃取端的索引,只能通过CAS增加    */
+	private volatile long top;
+
+	/**  拥有者端的索引,只由拥有者线程修改    */
+	private volatile long bottom;
+
+	/**  存放任务的环形数组,容量为2的次方    */
+	private volatile AtomicReferenceArray<E> array = new AtomicReferenceArray<E>(INITIAL_CAPACITY);
+
+	/**
+	 * 拥有者线程将任务放入bottom端
+	 */
+	void push(E e) {
+		long b = bottom;
+		long t = top;
+		AtomicReferenceArray<E> a = array;
+		if (b - t > a.length() - 1)  //数组已满则先扩容
+			a = grow(a, t, b);
+		a.lazySet((int) b & (a.length() - 1), e);
+		bottom = b + 1;  //volatile写，保证窃取线程读到新的bottom时一定能看到任务
+	}
+
+	/**
+	 * 拥有者线程从bottom端取出任务
+	 * @return 队列为空时返回null
+	 */
+	E pop() {
+		long b = bottom - 1;
+		AtomicReferenceArray<E> a = array;
+		bottom = b;  //先占住bottom位置
+		long t = top;
+		if (t > b) {  //队列为空,恢复bottom
+			bottom = b + 1;
+			return null;
+		}
+		int i = (int) b & (a.length() - 1);
+		E e = a.get(i);
+		if (t == b) {  //最后一个任务,需要和窃取线程竞争
+			if (!TOP.compareAndSet(this, t, t + 1))
+				e = null;  //被窃取线程抢走了
+			bottom = b + 1;
+			return e;
+		}
+		a.lazySet(i, null);  //帮助GC,此位置不会再被窃取线程访问
+		return e;
+	}
+
+	/**
+	 * 其他线程从top端窃取任务
+	 * @return 队列为空或竞争失败时返回null
+	 */
+	E steal() {
+		long t = top;  //必须先读top再读bottom
+		long b = bottom;
+		if (t >= b)
+			return null;
+		AtomicReferenceArray<E> a = array;
+		E e = a.get((int) t & (a.length() - 1));
+		if (e == null || !TOP.compareAndSet(this, t, t + 1))
+			return null;
+		return e;
+	}
+
+	/**
+	 * 队列中任务个数的估计值
+	 */
+	int size() {
+		long n = bottom - top;
+		return n > 0 ? (int) n : 0;
+	}
+
+	boolean isEmpty() {
+		return bottom - top <= 0;
+	}
+
+	/**
+	 * 将数组扩容为原来的2倍，并复制 [t, b) 范围内的任务
+	 */
+	private AtomicReferenceArray<E> grow(AtomicReferenceArray<E> old, long t, long b) {
+		int oldMask = old.length() - 1;
+		AtomicReferenceArray<E> a = new AtomicReferenceArray<E>(old.length() << 1);
+		int mask = a.length() - 1;
+		for (long i = t; i < b; i++)
+			a.lazySet((int) i & mask, old.get((int) i & oldMask));
+		array = a;
+		return a;
+	}
+
+}
@@ -0,0 +1,430 @@
+package executors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import locks.Backoff;
+
+/**
+ * 基于每个工作线程独立的Chase-Lev双端队列实现的工作窃取线程池
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class WorkStealingExecutor extends AbstractExecutorService {
+
+	/**
+	 * 任务的存放位置:
+	 * 1.工作线程内部提交的任务放入该线程自己的WorkStealingDeque(LIFO,局部性最好,没有竞争)
+	 * 2.外部线程提交的任务放入公共的提交队列submissions
+	 *
+	 * 工作线程获取任务的顺序: 自己的队列 -> 公共提交队列 -> 随机选择一个工作线程开始依次窃取
+	 *
+	 * 空闲工作线程的阻塞/唤醒协议(和AQS中 shouldParkAfterFailedAcquire + unparkSuccessor 的思路一致:先登记再检查,最后才park):
+	 * 1.工作线程找不到任务时，先把idle置为1，并将自己压入空闲线程栈(Treiber栈,栈顶和版本号编码在一个long中防止ABA)
+	 * 2.入栈后再检查一次是否有任务，有则通过CAS把idle从1改回0继续工作，避免任务提交和入栈同时发生时丢失唤醒信号
+	 * 3.仍然没有任务才调用LockSupport.park()阻塞
+	 * 4.提交任务的线程在放入任务后从空闲栈弹出一个工作线程，CAS其idle从1到0成功后才unpark它(失败说明它已经自己醒来了，继续弹出下一个)
+	 *
+	 * 统计信息(执行任务数、窃取次数、park次数)由各工作线程自己累加,读取时为近似值
+	 */
+
+	private static final AtomicLongFieldUpdater<WorkStealingExecutor> IDLE_STACK =
+			AtomicLongFieldUpdater.newUpdater(WorkStealingExecutor.class, "idleStack");
+	private static final AtomicIntegerFieldUpdater<Worker> IDLE =
+			AtomicIntegerFieldUpdater.newUpdater(Worker.class, "idle");
+
+	/**  栈顶工作线程的(下标+1)所占的位数,0表示空栈   */
+	private static final int INDEX_BITS = 16;
+	private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+	private final Worker[] workers;
+
+	/**  外部线程提交任务的公共队列    */
+	private final ConcurrentLinkedQueue<Runnable> submissions = new ConcurrentLinkedQueue<Runnable>();
+
+	/**  空闲工作线程栈: 高48位为版本号，低16位为栈顶工作线程的 下标+1   */
+	private volatile long idleStack;
+
+	/**  空闲工作线程栈CAS失败时的退避策略    */
+	private final Backoff idleBackoff = new Backoff();
+
+	private volatile boolean shutdown;
+	private volatile boolean stop;
+
+	private final CountDownLatch terminated;
+
+	public WorkStealingExecutor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public WorkStealingExecutor(int parallelism) {
+		if (parallelism <= 0 || parallelism > INDEX_MASK)
+			throw new IllegalArgumentException();
+		workers = new Worker[parallelism];
+		terminated = new CountDownLatch(parallelism);
+		for (int i = 0; i < parallelism; i++)
+			workers[i] = new Worker(this, i);
+		for (Worker w : workers)
+			w.start();
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		if (task == null)
+			throw new NullPointerException();
+		if (shutdown)
+			throw new RejectedExecutionException("executor has been shut down");
+		Thread t = Thread.currentThread();
+		if (t instanceof Worker && ((Worker) t).pool == this) {
+			((Worker) t).deque.push(task);  //工作线程内部提交，放入自己的队列
+		} else {
+			submissions.offer(task);
+			if (shutdown && submissions.remove(task))  //和shutdown并发时再检查一次，保证任务不会被遗留
+				throw new RejectedExecutionException("executor has been shut down");
+		}
+		signalWork();
+	}
+
+	/**
+	 * 如果有空闲的工作线程，唤醒其中一个
+	 */
+	private void signalWork() {
+		Worker w;
+		while ((w = popIdle()) != null) {
+			w.queued = false;  //必须在CAS idle之前写，和awaitWork中 先写idle再读queued 的顺序配合
+			if (IDLE.compareAndSet(w, 1, 0)) {
+				LockSupport.unpark(w);
+				return;
+			}
+		}
+	}
+
+	private void pushIdle(Worker w) {
+		int step = 0;
+		for (;;) {
+			long c = idleStack;
+			w.nextIdle = (int) (c & INDEX_MASK);
+			long nc = (((c >>> INDEX_BITS) + 1) << INDEX_BITS) | (w.index + 1);
+			if (IDLE_STACK.compareAndSet(this, c, nc))
+				break;
+			step = idleBackoff.pause(step);  //CAS失败说明栈顶竞争激烈，退避后再重试
+		}
+		idleBackoff.succeeded(step);
+	}
+
+	private Worker popIdle() {
+		int step = 0;
+		for (;;) {
+			long c = idleStack;
+			int top = (int) (c & INDEX_MASK);
+			if (top == 0)
+				return null;
+			Worker w = workers[top - 1];
+			long nc = (((c >>> INDEX_BITS) + 1) << INDEX_BITS) | w.nextIdle;
+			if (IDLE_STACK.compareAndSet(this, c, nc)) {
+				idleBackoff.succeeded(step);
+				return w;
+			}
+			step = idleBackoff.pause(step);
+		}
+	}
+
+	/**
+	 * 依次从自己的队列、公共提交队列、其他工作线程的队列中获取任务
+	 */
+	private Runnable findWork(Worker w) {
+		Runnable task = w.deque.pop();
+		if (task == null && (task = submissions.poll()) == null)
+			task = steal(w);
+		return task;
+	}
+
+	private Runnable steal(Worker w) {
+		int n = workers.length;
+		if (n == 1)
+			return null;
+		int start = (w.nextRandom() & Integer.MAX_VALUE) % n;
+		for (int i = 0; i < n; i++) {
+			Worker victim = workers[(start + i) % n];
+			if (victim == w)
+				continue;
+			Runnable task = victim.deque.steal();
+			if (task != null) {
+				w.steals++;
+				return task;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 是否还有任务(steal竞争失败时返回null，所以不能只依赖findWork的结果来判断是否该park)
+	 */
+	private boolean hasWork() {
+		if (!submissions.isEmpty())
+			return true;
+		for (Worker v : workers) {
+			if (!v.deque.isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 没有找到任务时调用，按照 登记空闲 -> 再检查 -> park 的顺序等待新任务
+	 */
+	private void awaitWork(Worker w) {
+		w.idle = 1;
+		if (!w.queued) {  //还在栈中(上次醒来后没有被弹出)则不需要重复入栈
+			w.queued = true;
+			pushIdle(w);
+		}
+		if (hasWork() || shutdown) {
+			IDLE.compareAndSet(w, 1, 0);  //失败说明已经被signalWork唤醒，同样直接继续
+			return;
+		}
+		w.parks++;
+		while (w.idle == 1 && !shutdown)
+			LockSupport.park(this);
+	}
+
+	private void runWorker(Worker w) {
+		try {
+			while (!stop) {
+				Runnable task = findWork(w);
+				if (task != null) {
+					runTask(w, task);
+				} else if (shutdown && !hasWork()) {
+					break;
+				} else {
+					awaitWork(w);
+				}
+			}
+		} finally {
+			terminated.countDown();
+		}
+	}
+
+	private void runTask(Worker w, Runnable task) {
+		try {
+			task.run();
+		} catch (Throwable ex) {
+			Thread.UncaughtExceptionHandler handler = w.getUncaughtExceptionHandler();
+			if (handler != null)
+				handler.uncaughtException(w, ex);
+		}
+		w.executed++;
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		for (Worker w : workers)
+			LockSupport.unpark(w);
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		stop = true;
+		List<Runnable> pending = new ArrayList<Runnable>();
+		Runnable task;
+		while ((task = submissions.poll()) != null)
+			pending.add(task);
+		for (Worker w : workers) {
+			while (!w.deque.isEmpty()) {
+				if ((task = w.deque.steal()) != null)
+					pending.add(task);
+			}
+			w.interrupt();
+		}
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	/**  已执行的任务总数   */
+	public long getExecutedCount() {
+		long sum = 0;
+		for (Worker w : workers)
+			sum += w.executed;
+		return sum;
+	}
+
+	/**  成功窃取的任务总数   */
+	public long getStealCount() {
+		long sum = 0;
+		for (Worker w : workers)
+			sum += w.steals;
+		return sum;
+	}
+
+	/**  工作线程因为没有任务而park的总次数   */
+	public long getParkCount() {
+		long sum = 0;
+		for (Worker w : workers)
+			sum += w.parks;
+		return sum;
+	}
+
+	/**  所有队列中排队任务个数的估计值    */
+	public int getQueuedTaskCount() {
+		int sum = submissions.size();
+		for (Worker w : workers)
+			sum += w.deque.size();
+		return sum;
+	}
+
+	public int getParallelism() {
+		return workers.length;
+	}
+
+
+	/**
+	 * 工作线程
+	 */
+	static final class Worker extends Thread {
+		final WorkStealingExecutor pool;
+		final int index;
+		final WorkStealingDeque<Runnable> deque = new WorkStealingDeque<Runnable>();
+
+		/**  1表示空闲(已经或即将park)，只能通过CAS从1改为0   */
+		volatile int idle;
+		/**  是否在空闲线程栈中   */
+		volatile boolean queued;
+		/**  空闲线程栈中下一个工作线程的 下标+1    */
+		int nextIdle;
+
+		/**  统计信息，只由自己累加    */
+		long executed;
+		long steals;
+		long parks;
+
+		private int seed;
+
+		Worker(WorkStealingExecutor pool, int index) {
+			super("ws-worker-" + index);
+			this.pool = pool;
+			this.index = index;
+			this.seed = index * 0x9E3779B9 + 1;
+		}
+
+		/**  xorshift随机数,用于选择窃取的起始位置   */
+		int nextRandom() {
+			int r = seed;
+			r ^= r << 13;
+			r ^= r >>> 17;
+			r ^= r << 5;
+			return seed = r;
+		}
+
+		@Override
+		public void run() {
+			pool.runWorker(this);
+		}
+	}
+
+
+	/**
+	 * 小任务吞吐量测试: 和ThreadPoolExecutor、ForkJoinPool对比
+	 * 1.外部线程提交大量空任务
+	 * 2.任务内部递归提交子任务(工作窃取的典型场景)
+	 */
+	public static void main(String[] args) throws Exception {
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		int tasks = 1000000;
+		for (int round = 0; round < 3; round++) {
+			WorkStealingExecutor ws = new WorkStealingExecutor(parallelism);
+			ThreadPoolExecutor tpe = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>());
+			ForkJoinPool fjp = new ForkJoinPool(parallelism);
+
+			System.out.println("外部提交" + tasks + "个小任务:");
+			System.out.println("  WorkStealingExecutor 用时: " + externalSubmit(ws, tasks) + "毫秒");
+			System.out.println("  ThreadPoolExecutor   用时: " + externalSubmit(tpe, tasks) + "毫秒");
+			System.out.println("  ForkJoinPool         用时: " + externalSubmit(fjp, tasks) + "毫秒");
+
+			System.out.println("递归扇出" + tasks + "个小任务:");
+			System.out.println("  WorkStealingExecutor 用时: " + recursiveFanOut(ws, tasks) + "毫秒");
+			System.out.println("  ThreadPoolExecutor   用时: " + recursiveFanOut(tpe, tasks) + "毫秒");
+			System.out.println("  ForkJoinPool         用时: " + recursiveFanOut(fjp, tasks) + "毫秒");
+			System.out.println("  WorkStealingExecutor 窃取次数: " + ws.getStealCount() + ", park次数: " + ws.getParkCount());
+
+			ws.shutdown();
+			tpe.shutdown();
+			fjp.shutdown();
+		}
+	}
+
+	private static long externalSubmit(ExecutorService executor, int tasks) throws InterruptedException {
+		final AtomicInteger remaining = new AtomicInteger(tasks);
+		final CountDownLatch done = new CountDownLatch(1);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if (remaining.decrementAndGet() == 0)
+					done.countDown();
+			}
+		};
+		long begin = System.currentTimeMillis();
+		for (int i = 0; i < tasks; i++)
+			executor.execute(task);
+		done.await();
+		return System.currentTimeMillis() - begin;
+	}
+
+	private static long recursiveFanOut(final ExecutorService executor, int tasks) throws InterruptedException {
+		final AtomicInteger remaining = new AtomicInteger(tasks);
+		final CountDownLatch done = new CountDownLatch(1);
+		class Split implements Runnable {
+			final int count;
+
+			Split(int count) {
+				this.count = count;
+			}
+
+			@Override
+			public void run() {
+				int n = count;
+				while (n > 1) {  //一半交给新任务，一半自己继续拆分
+					int half = n >>> 1;
+					executor.execute(new Split(half));
+					n -= half;
+				}
+				if (remaining.decrementAndGet() == 0)
+					done.countDown();
+			}
+		}
+		long begin = System.currentTimeMillis();
+		executor.execute(new Split(tasks));
+		done.await();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
@@ -0,0 +1,150 @@
+package locks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CAS重试循环使用的自适应退避策略(用于替代在循环里直接调用 Thread.yield()/Thread.sleep())
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class Backoff {
+
+	/**
+	 * ThreadYield和ThreadSleep中演示过，yield让出CPU的时间是不确定的，sleep则至少让出指定时间，两者都不适合直接用在CAS重试循环中:
+	 * 失败后立即重试会让多个CPU不停争抢同一个缓存行，而直接sleep又会让本来很快就能成功的操作白白等待
+	 *
+	 * 所以退避按重试次数(step)分为3个阶段逐步升级:
+	 * 1.自旋阶段: step < spinLimit, 忙等 2^step 次(JDK9以上会调用Thread.onSpinWait()提示处理器),不让出CPU
+	 * 2.让步阶段: 再重试 YIELD_STEPS 次,每次调用Thread.yield()
+	 * 3.park阶段: 调用LockSupport.parkNanos(),时间按指数增长到maxParkNanos为止，并加上随机抖动，避免所有线程在同一时刻醒来再次争抢
+	 *
+	 * 自适应: 每个调用点(一个Backoff对象)根据成功时所处的阶段调整自旋次数上限(和HotSpot自适应自旋锁的思路一样)
+	 * 在自旋阶段就成功 -> 说明竞争时间很短，自旋是值得的，spinLimit+1
+	 * 进入park阶段才成功或者放弃 -> 说明自旋是在浪费CPU，spinLimit-1
+	 * 第一次就成功(没有竞争)时不会写任何共享变量
+	 *
+	 * 用法(一个调用点一个Backoff对象):
+	 *   int step = 0;
+	 *   while (!compareAndSetXxx(expect, update))
+	 *       step = backoff.pause(step);
+	 *   backoff.succeeded(step);
+	 */
+
+	private static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+	/**  单核机器上自旋没有意义    */
+	private static final int MAX_SPIN_LIMIT = NCPU > 1 ? 10 : 0;
+	private static final int INITIAL_SPIN_LIMIT = NCPU > 1 ? 4 : 0;
+	private static final int YIELD_STEPS = 4;
+
+	private static final long MIN_PARK_NANOS = 1000L;
+	private static final long DEFAULT_MAX_PARK_NANOS = 1000000L;
+
+	/**  JDK9以上的 Thread.onSpinWait(),JDK8中不存在时为null   */
+	private static final MethodHandle ON_SPIN_WAIT;
+
+	static {
+		MethodHandle mh = null;
+		try {
+			mh = MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+		} catch (ReflectiveOperationException e) {
+			// JDK8,只做纯粹的忙等
+		}
+		ON_SPIN_WAIT = mh;
+	}
+
+	private final long maxParkNanos;
+
+	/**  当前调用点学习到的自旋阶段长度，多线程之间的写入竞争是无害的    */
+	private volatile int spinLimit = INITIAL_SPIN_LIMIT;
+
+	public Backoff() {
+		this(DEFAULT_MAX_PARK_NANOS);
+	}
+
+	public Backoff(long maxParkNanos) {
+		if (maxParkNanos < MIN_PARK_NANOS)
+			throw new IllegalArgumentException();
+		this.maxParkNanos = maxParkNanos;
+	}
+
+	/**
+	 * 第step次失败后的退避
+	 * @param step 已经失败的次数,从0开始
+	 * @return step+1,作为下一次调用的参数
+	 */
+	public int pause(int step) {
+		int spins = spinLimit;
+		if (step < spins) {
+			for (int i = 1 << step; i > 0; i--)
+				onSpinWait();
+		} else if (step < spins + YIELD_STEPS) {
+			Thread.yield();
+		} else {
+			int shift = Math.min(step - spins - YIELD_STEPS, 20);
+			long nanos = Math.min(MIN_PARK_NANOS << shift, maxParkNanos);
+			nanos = (nanos >>> 1) + ThreadLocalRandom.current().nextLong(nanos);  //抖动范围 [0.5, 1.5) 倍
+			LockSupport.parkNanos(this, nanos);
+		}
+		return step + 1;
+	}
+
+	/**
+	 * 第step次退避是否已经进入park阶段
+	 * 调用方自己有阻塞机制时(比如AQS同步队列)，可以只使用自旋和让步阶段，进入park阶段前就改用自己的阻塞方式
+	 */
+	public boolean isParkPhase(int step) {
+		return step >= spinLimit + YIELD_STEPS;
+	}
+
+	/**
+	 * 重试成功后调用，根据成功时所处的阶段调整自旋上限
+	 * @param step 成功前失败的次数
+	 */
+	public void succeeded(int step) {
+		if (step == 0)
+			return;
+		int spins = spinLimit;
+		if (step <= spins) {
+			if (spins < MAX_SPIN_LIMIT)
+				spinLimit = spins + 1;
+		} else if (step > spins + YIELD_STEPS) {
+			if (spins > 0)
+				spinLimit = spins - 1;
+		}
+	}
+
+	/**
+	 * 调用方放弃重试(转而使用阻塞等方式)时调用，说明本次自旋没有带来收益
+	 */
+	public void failed() {
+		int spins = spinLimit;
+		if (spins > 0)
+			spinLimit = spins - 1;
+	}
+
+	/**
+	 * 当前学习到的自旋阶段长度
+	 */
+	public int getSpinLimit() {
+		return spinLimit;
+	}
+
+	/**
+	 * 自旋等待提示，JDK8中为空操作
+	 */
+	public static void onSpinWait() {
+		if (ON_SPIN_WAIT != null) {
+			try {
+				ON_SPIN_WAIT.invokeExact();
+			} catch (Throwable ignore) {
+				// Thread.onSpinWait()不会抛出异常
+			}
+		}
+	}
+
+}
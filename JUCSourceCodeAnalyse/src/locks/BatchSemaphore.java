@@ -0,0 +1,358 @@
+package locks;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/**
+ * 基于AQS共享模式的计数信号量，支持批量获取/释放许可，并可以在线程本地缓存少量许可
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class BatchSemaphore {
+
+	/**
+	 * 对应 AbstractQueuedSynchronizerAnalyse 中分析的共享模式 acquireShared/releaseShared:
+	 * 1.state表示剩余许可数，tryAcquireShared返回 获取后剩余的许可数(<0表示获取失败需要入队列)
+	 *
+	 * 2.唤醒的数量: setHeadAndPropagate只有在 propagate(即tryAcquireShared的返回值) > 0 时才继续唤醒下一个共享节点
+	 *   所以这里返回的一定是精确的剩余许可数，而不是简单的1/-1
+	 *   release(n)后被唤醒的节点获取成功后，如果还有剩余许可才会把唤醒动作往后传播，许可用完时传播就停止了,不会把所有等待线程都唤醒再让它们重新park
+	 *
+	 * 3.批量: acquire(n)/release(n)只需要一次CAS修改state
+	 *
+	 * 4.线程本地许可缓存(cacheLimit > 0 时开启):
+	 *   acquire时本地缓存不够，一次从state中多取cacheLimit个许可补充缓存，之后的acquire直接从本地缓存扣除，把多次CAS合并为一次
+	 *   release不放入本地缓存，总是还给state:
+	 *   "没有线程在排队"的检查和另一个线程 获取失败->入队列 之间有竞争，放入缓存的许可可能永远不会唤醒这个线程
+	 *   (许可常常在另一个线程中释放，比如I/O完成线程，那个线程可能不会再调用acquire)
+	 *
+	 * 5.回收其他线程缓存的许可: 补充了缓存之后就不再调用acquire的线程(比如线程池中空闲的线程)会一直占着这些许可
+	 *   所以每个线程的缓存是一个可以CAS的Cell,登记在cells中:线程在进入AQS同步队列之前先把waiters+1，再把所有Cell中的许可回收到state
+	 *   补充缓存的线程在放入Cell之后再检查waiters,大于0就把刚放入的许可还回去
+	 *   两边都是 先写后读 volatile变量，要么回收线程看到了刚放入的许可，要么补充缓存的线程看到了waiters,许可不会被藏在缓存里而让等待线程永远阻塞
+	 *   waiters>0期间不再补充缓存(线程还可以使用自己缓存中剩余的许可)
+	 *   缓存的许可不计入availablePermits(),flushLocalCache()可以主动归还当前线程缓存的许可
+	 */
+
+	private static final class Sync extends AbstractQueuedSynchronizer {
+
+		private static final long serialVersionUID = 1L;
+
+		private final boolean fair;
+
+		Sync(int permits, boolean fair) {
+			setState(permits);
+			this.fair = fair;
+		}
+
+		// 返回获取后剩余的许可数，<0 表示许可不够
+		@Override
+		protected int tryAcquireShared(int acquires) {
+			for (;;) {
+				if (fair && hasQueuedPredecessors())
+					return -1;
+				int available = getState();
+				int remaining = available - acquires;
+				if (remaining < 0 || compareAndSetState(available, remaining))
+					return remaining;
+			}
+		}
+
+		@Override
+		protected boolean tryReleaseShared(int releases) {
+			for (;;) {
+				int current = getState();
+				int next = current + releases;
+				if (next < current)  // overflow
+					throw new Error("Maximum permit count exceeded");
+				if (compareAndSetState(current, next))
+					return true;
+			}
+		}
+
+		// 只有在没有线程排队并且许可足够时才获取(用于补充本地缓存，不插队)
+		boolean tryAcquireIfUncontended(int acquires) {
+			for (;;) {
+				if (hasQueuedThreads())
+					return false;
+				int available = getState();
+				int remaining = available - acquires;
+				if (remaining < 0)
+					return false;
+				if (compareAndSetState(available, remaining))
+					return true;
+			}
+		}
+
+		int permits() {
+			return getState();
+		}
+	}
+
+	private final Sync sync;
+
+	/**  每个线程最多缓存的许可数,0表示不缓存   */
+	private final int cacheLimit;
+
+	/**  一个线程缓存的许可数:所属线程CAS扣减，其他线程通过getAndSet(0)回收    */
+	static final class Cell extends AtomicInteger {
+		private static final long serialVersionUID = 1L;
+		final Thread owner = Thread.currentThread();
+	}
+
+	/**  所有线程的Cell(所属线程结束后在回收时移除)    */
+	private final ConcurrentLinkedQueue<Cell> cells = new ConcurrentLinkedQueue<Cell>();
+
+	/**  线程本地缓存的许可(每个线程的ThreadLocalMap中保存自己的Cell)    */
+	private final ThreadLocal<Cell> localPermits = new ThreadLocal<Cell>() {
+		@Override
+		protected Cell initialValue() {
+			Cell cell = new Cell();
+			cells.add(cell);
+			return cell;
+		}
+	};
+
+	/**  准备或者已经在AQS同步队列中等待的线程数(只在使用本地缓存时维护)    */
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	public BatchSemaphore(int permits) {
+		this(permits, false, 0);
+	}
+
+	/**
+	 * @param permits 初始许可数
+	 * @param fair 是否公平(公平模式下有线程排队时不允许插队获取)
+	 * @param cacheLimit 每个线程最多缓存的许可数，0表示不使用本地缓存
+	 */
+	public BatchSemaphore(int permits, boolean fair, int cacheLimit) {
+		if (cacheLimit < 0)
+			throw new IllegalArgumentException();
+		this.sync = new Sync(permits, fair);
+		this.cacheLimit = cacheLimit;
+	}
+
+	public void acquire() throws InterruptedException {
+		acquire(1);
+	}
+
+	/**
+	 * 获取n个许可，许可不够时阻塞，响应中断
+	 */
+	public void acquire(int n) throws InterruptedException {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		if (tryAcquireCached(n))
+			return;
+		if (cacheLimit == 0) {
+			sync.acquireSharedInterruptibly(n);
+			return;
+		}
+		beforeQueue();
+		try {
+			sync.acquireSharedInterruptibly(n);
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * 获取n个许可，许可不够时阻塞，不响应中断
+	 */
+	public void acquireUninterruptibly(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		if (tryAcquireCached(n))
+			return;
+		if (cacheLimit == 0) {
+			sync.acquireShared(n);
+			return;
+		}
+		beforeQueue();
+		try {
+			sync.acquireShared(n);
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * 尝试立即获取n个许可
+	 */
+	public boolean tryAcquire(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		return tryAcquireCached(n) || sync.tryAcquireShared(n) >= 0;
+	}
+
+	/**
+	 * 在超时时间内获取n个许可
+	 */
+	public boolean tryAcquire(int n, long timeout, TimeUnit unit) throws InterruptedException {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		if (tryAcquireCached(n))
+			return true;
+		if (cacheLimit == 0)
+			return sync.tryAcquireSharedNanos(n, unit.toNanos(timeout));
+		beforeQueue();
+		try {
+			return sync.tryAcquireSharedNanos(n, unit.toNanos(timeout));
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	public void release() {
+		release(1);
+	}
+
+	/**
+	 * 释放n个许可
+	 */
+	public void release(int n) {
+		if (n < 0)
+			throw new IllegalArgumentException();
+		sync.releaseShared(n);  //等待线程入队列之前已经回收了所有缓存，这里不需要再归还本地缓存
+	}
+
+	/**
+	 * 先从本地缓存获取，本地缓存不够时尝试一次性获取 n+cacheLimit 个许可补充缓存
+	 * 都失败时把本地缓存全部归还，由调用方走AQS共享模式获取
+	 */
+	private boolean tryAcquireCached(int n) {
+		if (cacheLimit == 0)
+			return false;
+		Cell cell = localPermits.get();
+		for (;;) {
+			int cached = cell.get();
+			if (cached < n)
+				break;
+			if (cell.compareAndSet(cached, cached - n))
+				return true;
+		}
+		int cached = cell.getAndSet(0);  //和其他线程的回收竞争，取出来之后再使用
+		if (waiters.get() == 0 && sync.tryAcquireIfUncontended(n - cached + cacheLimit)) {
+			cell.addAndGet(cacheLimit);
+			if (waiters.get() > 0)  //有线程准备入队列，它的回收可能没有看到刚放入的许可
+				flush(cell);
+			return true;
+		}
+		if (cached > 0)  //阻塞之前必须把本地缓存归还，否则可能和别的线程互相等待
+			sync.releaseShared(cached);
+		return false;
+	}
+
+	/**
+	 * 进入AQS同步队列之前: 登记等待，然后回收所有线程缓存的许可
+	 */
+	private void beforeQueue() {
+		waiters.incrementAndGet();
+		int reclaimed = 0;
+		for (Iterator<Cell> it = cells.iterator(); it.hasNext(); ) {
+			Cell cell = it.next();
+			reclaimed += cell.getAndSet(0);
+			if (!cell.owner.isAlive())  //线程已经结束，不会再使用这个Cell
+				it.remove();
+		}
+		if (reclaimed > 0)
+			sync.releaseShared(reclaimed);
+	}
+
+	private void flush(Cell cell) {
+		int cached = cell.getAndSet(0);
+		if (cached > 0)
+			sync.releaseShared(cached);
+	}
+
+	/**
+	 * 把当前线程本地缓存的许可全部归还
+	 */
+	public void flushLocalCache() {
+		if (cacheLimit == 0)
+			return;
+		flush(localPermits.get());
+	}
+
+	/**
+	 * 共享state中剩余的许可数(不包括各线程本地缓存的许可)
+	 */
+	public int availablePermits() {
+		return sync.permits();
+	}
+
+	public boolean hasQueuedThreads() {
+		return sync.hasQueuedThreads();
+	}
+
+	public int getQueueLength() {
+		return sync.getQueueLength();
+	}
+
+
+	/**
+	 * 1.回收测试: 线程池中的线程补充缓存后空闲，另一个线程需要的许可一部分在它的缓存中，入队列前回收后获取成功
+	 * 2.高频率 acquire/release 的吞吐量测试: java.util.concurrent.Semaphore 和 BatchSemaphore(本地缓存) 对比
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final BatchSemaphore limiter = new BatchSemaphore(16, false, 8);
+		Thread pooled = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				limiter.acquireUninterruptibly(1);  //从state取9个，8个留在本地缓存
+				limiter.release(1);
+			}
+		});
+		pooled.start();
+		pooled.join();
+		long begin = System.nanoTime();
+		boolean acquired = limiter.tryAcquire(12, 1, TimeUnit.SECONDS);
+		System.out.println("回收空闲线程缓存的许可: " + (acquired ? "获取成功" : "获取失败") + ", 用时 "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "毫秒");
+
+		final int threads = 8;
+		final int ops = 2000000;
+		for (int round = 0; round < 3; round++) {
+			final Semaphore jdk = new Semaphore(threads * 16);
+			System.out.println("Semaphore               用时: " + run(threads, ops, new Runnable() {
+				@Override
+				public void run() {
+					jdk.acquireUninterruptibly(2);
+					jdk.release(2);
+				}
+			}) + "毫秒");
+			final BatchSemaphore batch = new BatchSemaphore(threads * 16, false, 8);
+			System.out.println("BatchSemaphore(缓存8个) 用时: " + run(threads, ops, new Runnable() {
+				@Override
+				public void run() {
+					batch.acquireUninterruptibly(2);
+					batch.release(2);
+				}
+			}) + "毫秒");
+		}
+	}
+
+	private static long run(int threads, final int ops, final Runnable op) throws InterruptedException {
+		Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < ops; j++)
+						op.run();
+				}
+			});
+		}
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
@@ -0,0 +1,370 @@
+package locks;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 可重复使用的屏障(barrier),到达计数使用组合树(combining tree)而不是对同一个变量做CAS
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class CombiningTreeBarrier {
+
+	/**
+	 * 1.为什么不用一个计数器:
+	 *   所有参与方都对同一个int做CAS时，这个变量所在的缓存行会在所有CPU之间来回传递,参与方越多，每个阶段花在争抢缓存行上的时间越长
+	 *
+	 * 2.组合树:
+	 *   参与方按编号分配到叶子节点(每个叶子最多fanIn个参与方),每个节点有一个独占缓存行的计数器(前后填充)
+	 *   参与方到达时只对自己的叶子计数器加1,每个节点最后一个到达的参与方负责把该节点计数器清零并继续到父节点计数
+	 *   最后到达根节点的参与方推进阶段(phase+1)并唤醒所有等待的参与方
+	 *   这样每个计数器最多只有fanIn个线程竞争
+	 *
+	 * 3.等待:先使用Backoff自旋/让步一小段时间，仍未推进再压入等待栈并park,推进阶段的线程一次性unpark所有等待线程
+	 *
+	 * 4.动态注册:register()返回一个Party对象代表一个参与方
+	 *   屏障还没有任何参与方到达时(比如先注册所有参与方再启动线程)，注册立即生效
+	 *   已经有参与方到达之后，新注册/注销的参与方从下一个阶段才开始生效(阶段推进时在结构锁保护下重新计算每个节点应到达的数量)
+	 */
+
+	/**  计数器前后的填充，保证每个计数器独占一个缓存行    */
+	static class PadBefore {
+		long p0, p1, p2, p3, p4, p5, p6;
+	}
+
+	static class Counter extends PadBefore {
+		volatile int arrived;
+	}
+
+	static class PadAfter extends Counter {
+		long q0, q1, q2, q3, q4, q5, q6;
+	}
+
+	/**  组合树节点    */
+	static final class Node extends PadAfter {
+		/**  当前阶段应到达的数量(叶子节点为参与方个数，内部节点为有参与方的子节点个数)   */
+		volatile int expected;
+		final Node parent;
+
+		Node(Node parent) {
+			this.parent = parent;
+		}
+	}
+
+	/**  参与方    */
+	public static final class Party {
+		final int slot;
+		/**  该参与方下一次到达所属的阶段    */
+		int phase;
+		boolean deregistered;
+
+		Party(int slot, int phase) {
+			this.slot = slot;
+			this.phase = phase;
+		}
+	}
+
+	/**  等待栈节点    */
+	static final class WaitNode {
+		final Thread thread = Thread.currentThread();
+		WaitNode next;
+	}
+
+	private static final AtomicIntegerFieldUpdater<Counter> ARRIVED =
+			AtomicIntegerFieldUpdater.newUpdater(Counter.class, "arrived");
+
+	private final int fanIn;
+	private final Node[] leaves;
+	/**  从叶子层到根的所有层，levels[levels.length-1][0] 为根节点   */
+	private final Node[][] levels;
+
+	/**  每个参与方编号是否在当前阶段有效，以及下一阶段是否有效(只在持有structureLock时访问)   */
+	private final boolean[] active;
+	private final boolean[] nextActive;
+	private int activeCount;
+	private boolean pendingChanges;
+
+	/**  是否已经有参与方到达过(在结构锁保护下修改)，所有参与方注销后重置为false   */
+	private volatile boolean started;
+
+	private final MyLock structureLock = new MyLock();
+	private final Backoff waitBackoff = new Backoff();
+	private final AtomicReference<WaitNode> waiters = new AtomicReference<WaitNode>();
+
+	private volatile int phase;
+
+	public CombiningTreeBarrier(int maxParties) {
+		this(maxParties, 4);
+	}
+
+	/**
+	 * @param maxParties 最多同时注册的参与方个数
+	 * @param fanIn 每个树节点的子节点(或参与方)个数
+	 */
+	public CombiningTreeBarrier(int maxParties, int fanIn) {
+		if (maxParties <= 0 || fanIn < 2)
+			throw new IllegalArgumentException();
+		this.fanIn = fanIn;
+		this.active = new boolean[maxParties];
+		this.nextActive = new boolean[maxParties];
+
+		// 先自底向上计算每层的节点数，再自顶向下创建节点(子节点需要引用父节点)
+		int depth = 1;
+		for (int n = (maxParties + fanIn - 1) / fanIn; n > 1; n = (n + fanIn - 1) / fanIn)
+			depth++;
+		int[] sizes = new int[depth];
+		sizes[0] = (maxParties + fanIn - 1) / fanIn;
+		for (int d = 1; d < depth; d++)
+			sizes[d] = (sizes[d - 1] + fanIn - 1) / fanIn;
+		levels = new Node[depth][];
+		for (int d = depth - 1; d >= 0; d--) {
+			Node[] level = new Node[sizes[d]];
+			for (int i = 0; i < level.length; i++)
+				level[i] = new Node(d == depth - 1 ? null : levels[d + 1][i / fanIn]);
+			levels[d] = level;
+		}
+		leaves = levels[0];
+	}
+
+	/**
+	 * 注册一个新的参与方
+	 * @throws IllegalStateException 参与方已满
+	 */
+	public Party register() {
+		structureLock.lock();
+		try {
+			for (int slot = 0; slot < nextActive.length; slot++) {
+				if (!nextActive[slot] && !active[slot]) {
+					nextActive[slot] = true;
+					if (!started) {  //还没有参与方到达过，立即生效
+						applyChanges();
+						return new Party(slot, phase);
+					}
+					pendingChanges = true;
+					return new Party(slot, phase + 1);
+				}
+			}
+			throw new IllegalStateException("too many parties");
+		} finally {
+			structureLock.unlock();
+		}
+	}
+
+	/**
+	 * 到达屏障并等待其他参与方全部到达
+	 * @return 到达的阶段号
+	 */
+	public int arriveAndAwaitAdvance(Party party) {
+		int p = arrive(party);
+		awaitAdvance(p);
+		return p;
+	}
+
+	/**
+	 * 到达屏障但不等待
+	 * 同一个参与方在阶段推进前再次到达会先等待阶段推进
+	 * @return 到达的阶段号
+	 */
+	public int arrive(Party party) {
+		if (party.deregistered)
+			throw new IllegalStateException("party has been deregistered");
+		int target = party.phase;
+		int current;
+		while ((current = phase) != target)  //新注册的参与方等待生效的阶段,或者上一次到达的阶段还没有推进
+			awaitAdvance(current);
+		if (!started)
+			markStarted();
+		party.phase = target + 1;
+		doArrive(party.slot);
+		return target;
+	}
+
+	/**
+	 * 到达屏障并注销该参与方(从下一个阶段开始不再参与)
+	 */
+	public int arriveAndDeregister(Party party) {
+		structureLock.lock();
+		try {
+			nextActive[party.slot] = false;
+			pendingChanges = true;
+		} finally {
+			structureLock.unlock();
+		}
+		int p = arrive(party);
+		party.deregistered = true;
+		return p;
+	}
+
+	/**
+	 * 第一次到达时调用，此后的注册只能从下一个阶段开始生效
+	 */
+	private void markStarted() {
+		structureLock.lock();
+		try {
+			started = true;
+		} finally {
+			structureLock.unlock();
+		}
+	}
+
+	private void doArrive(int slot) {
+		Node node = leaves[slot / fanIn];
+		for (;;) {
+			int arrived = ARRIVED.incrementAndGet(node);
+			if (arrived < node.expected)
+				return;
+			node.arrived = 0;  //该节点最后一个到达者负责清零，同一节点的下一次到达一定发生在阶段推进之后
+			if (node.parent == null) {
+				advance();
+				return;
+			}
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * 推进阶段:应用注册/注销的变化，然后唤醒所有等待线程
+	 */
+	private void advance() {
+		structureLock.lock();
+		try {
+			if (pendingChanges)
+				applyChanges();
+			phase = phase + 1;
+		} finally {
+			structureLock.unlock();
+		}
+		WaitNode w = waiters.getAndSet(null);
+		for (; w != null; w = w.next)
+			LockSupport.unpark(w.thread);
+	}
+
+	/**
+	 * 根据nextActive重新计算每个节点应到达的数量(持有structureLock时调用)
+	 */
+	private void applyChanges() {
+		activeCount = 0;
+		for (int slot = 0; slot < active.length; slot++) {
+			active[slot] = nextActive[slot];
+			if (active[slot])
+				activeCount++;
+		}
+		if (activeCount == 0)
+			started = false;
+		for (int i = 0; i < leaves.length; i++) {
+			int n = 0;
+			for (int slot = i * fanIn; slot < Math.min((i + 1) * fanIn, active.length); slot++) {
+				if (active[slot])
+					n++;
+			}
+			leaves[i].expected = n;
+		}
+		for (int d = 1; d < levels.length; d++) {
+			Node[] children = levels[d - 1];
+			for (int i = 0; i < levels[d].length; i++) {
+				int n = 0;
+				for (int c = i * fanIn; c < Math.min((i + 1) * fanIn, children.length); c++) {
+					if (children[c].expected > 0)
+						n++;
+				}
+				levels[d][i].expected = n;
+			}
+		}
+		pendingChanges = false;
+	}
+
+	/**
+	 * 等待阶段p推进
+	 */
+	public void awaitAdvance(int p) {
+		int step = 0;
+		while (phase == p && !waitBackoff.isParkPhase(step))
+			step = waitBackoff.pause(step);
+		if (phase != p) {
+			waitBackoff.succeeded(step);
+			return;
+		}
+		waitBackoff.failed();
+		WaitNode node = new WaitNode();
+		do {
+			node.next = waiters.get();
+		} while (!waiters.compareAndSet(node.next, node));
+		while (phase == p)  //入栈后再检查，阶段已推进则不需要park(多余的unpark不影响正确性)
+			LockSupport.park(this);
+	}
+
+	public int getPhase() {
+		return phase;
+	}
+
+	public int getRegisteredParties() {
+		structureLock.lock();
+		try {
+			return activeCount;
+		} finally {
+			structureLock.unlock();
+		}
+	}
+
+
+	/**
+	 * 多个线程重复执行若干阶段，比较 CombiningTreeBarrier 和 CyclicBarrier 每个阶段的平均耗时
+	 */
+	public static void main(String[] args) throws Exception {
+		final int parties = Math.max(4, Runtime.getRuntime().availableProcessors());
+		final int phases = 20000;
+		for (int round = 0; round < 3; round++) {
+			final CombiningTreeBarrier tree = new CombiningTreeBarrier(parties);
+			final Party[] ps = new Party[parties];
+			for (int i = 0; i < parties; i++)
+				ps[i] = tree.register();
+			long treeNanos = run(parties, new PartyTask() {
+				@Override
+				public void run(int id) {
+					for (int i = 0; i < phases; i++)
+						tree.arriveAndAwaitAdvance(ps[id]);
+				}
+			});
+			final CyclicBarrier cyclic = new CyclicBarrier(parties);
+			long cyclicNanos = run(parties, new PartyTask() {
+				@Override
+				public void run(int id) throws Exception {
+					for (int i = 0; i < phases; i++)
+						cyclic.await();
+				}
+			});
+			System.out.println(parties + "个参与方 CombiningTreeBarrier 每阶段: " + treeNanos / phases + "纳秒, 最终阶段号: " + tree.getPhase());
+			System.out.println(parties + "个参与方 CyclicBarrier        每阶段: " + cyclicNanos / phases + "纳秒");
+		}
+	}
+
+	interface PartyTask {
+		void run(int id) throws Exception;
+	}
+
+	private static long run(int parties, final PartyTask task) throws InterruptedException {
+		Thread[] ts = new Thread[parties];
+		for (int i = 0; i < parties; i++) {
+			final int id = i;
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run(id);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long begin = System.nanoTime();
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		return System.nanoTime() - begin;
+	}
+
+}
@@ -1,16 +1,67 @@
 package locks;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.AbstractQueuedSynchronizer;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import counters.StripedCounter;
 
 /**
  * 自定义锁的基本使用方式（以AQS作为基础框架）
  * @author EX_WLJR_CHENZEHUA
  *
  */
-public class MyLock implements Lock{   //自定义独占锁
+public class MyLock implements ParkingCondition.OwnedLock{   //自定义独占锁
+
+	/**
+	 * 偏向模式(new MyLock(true)):
+	 * ThreadSynchronize中介绍了HotSpot的 偏向锁->轻量级锁->重量级锁，但偏向锁在JDK15之后被废弃并移除了
+	 * 绝大多数时间只被一个线程使用的锁，每次lock/unlock仍然要CAS一次，这里在MyLock上实现一个用户态的偏向模式:
+	 *
+	 * 1.第一个加锁的线程通过一次CAS成为偏向线程(biasOwner)，之后它加锁/解锁只是对biasHeld做有序写(lazySet),没有CAS
+	 *   偏向线程加锁: biasHeld=1 -> 读biasState,仍然是偏向状态则加锁成功，否则撤销这次加锁(biasHeld=0)走AQS
+	 *
+	 * 2.其他线程加锁时撤销偏向(只有一个线程执行撤销):
+	 *   biasState改为REVOKING -> 等待偏向线程释放(biasHeld==0) -> 和偏向线程"握手" -> 再确认biasHeld==0 -> biasState改为REVOKED
+	 *   之后所有线程(包括原来的偏向线程)都只走AQS,撤销期间到达的线程等待撤销完成
+	 *
+	 * 3.握手:偏向线程的有序写没有StoreLoad屏障，它写biasHeld=1之后读biasState时，写入可能还没有对撤销线程可见
+	 *   HotSpot撤销偏向锁时用安全点让偏向线程停下来，这里对偏向线程调用getStackTrace():
+	 *   JVM需要让偏向线程停在安全的位置上才能遍历它的栈，它之前的写入这时一定已经可见
+	 *   握手之后biasHeld仍然为0，说明偏向线程不在加锁过程中，它之后的加锁一定能读到REVOKING/REVOKED
+	 *   注意: JDK8中getStackTrace()是通过一次全局安全点(VM_ThreadDump)实现的，所有Java线程都会停顿一下;
+	 *   JDK10以上才改为只针对目标线程的thread-local handshake，不再需要全局安全点
+	 *   每个锁最多撤销一次，所以这个开销只在撤销时出现一次
+	 *   (这一点依赖HotSpot的实现，JMM本身不提供跨线程的非对称屏障)
+	 *
+	 * 4.偏向线程已经结束时直接撤销;如果它结束时还持有锁，把锁转成AQS中被它持有的状态(和普通锁的持有线程结束时一样，锁不会被释放)
+	 *
+	 * 5.撤销需要等待偏向线程释放锁，所以偏向模式只适合"几乎没有竞争"的锁，撤销之后不会再次偏向
+	 *   tryLock()/tryLock(timeout)/lockInterruptibly()在等待撤销时遵守各自的约定:
+	 *   tryLock()不等待，tryLock(timeout)等到超时为止，lockInterruptibly()被中断时停止等待
+	 *   执行撤销的线程放弃时把biasState从REVOKING改回ENABLED(撤销期间只有它能修改biasState)，之后的加锁重新尝试撤销
+	 *
+	 * 6.和AQS路径一样不可重入: 偏向线程已经持有锁(biasHeld==1)时再次加锁，tryLock()/tryLock(timeout)返回false，
+	 *   lock()/lockInterruptibly()抛出IllegalMonitorStateException(AQS路径下会永远阻塞，这里能发现就直接报错)
+	 *   不能再写一次biasHeld，否则第一次unlock()就把锁释放了，外层的临界区还在执行
+	 *
+	 * 自适应模式(对应ThreadSynchronize中 轻量级锁 <-> 重量级锁 的膨胀):
+	 * 1.THIN(轻量): 只用CAS获取，失败后按Backoff自旋/让步重试，没有排队
+	 *   重试到park阶段仍然没有获取到，说明竞争不是短暂的 -> 膨胀为FAT(inflation)，然后进入AQS同步队列
+	 * 2.FAT(膨胀): CAS失败后不再自旋，直接进入AQS同步队列park(竞争激烈时自旋只会浪费CPU)
+	 * 3.收缩(deflation): FAT模式下，持锁线程每CAS直接获取成功64次检查一次:
+	 *   距离上一次竞争已经超过DEFLATE_QUIET_NANOS并且同步队列中没有等待线程 -> 回到THIN
+	 *   这些字段只在持有锁时读写，不需要额外同步
+	 *   lock()/lockInterruptibly()/tryLock(timeout)走同样的 CAS -> THIN自旋 -> 膨胀 -> AQS 流程，只是在AQS中分别使用acquire/acquireInterruptibly/tryAcquireNanos
+	 *   tryLock()只CAS一次，不自旋也不膨胀
+	 * 4.每次 偏向撤销/膨胀/收缩 都计数:每个锁有自己的计数，所有锁的总数使用StripedCounter统计(静态方法读取)
+	 *   mode()返回锁当前处于哪种模式: BIASED / THIN / FAT
+	 */
 
 	//定义一个静态内部类，实现了AbstractQueuedSynchronizer
 	//这个类中的方法就是自定义锁MyLock实际调用的方法
@@ -40,57 +91,446 @@ public class MyLock implements Lock{   //自定义独占锁
 	         return true;
 	      }
 	 
-	      // 提供一个Condition对象
-	      Condition newCondition() { return new ConditionObject(); }
+	      // 当前线程是否为持有锁的线程(供ParkingCondition检查调用方是否持有锁)
+	      boolean isHeldByCurrentThread() {
+	        return getState() == 1 && getExclusiveOwnerThread() == Thread.currentThread();
+	      }
+	      
+	      // 撤销偏向时偏向线程已经结束但仍持有锁:转为在AQS中由它持有
+	      void holdForDeadOwner(Thread owner) {
+	        setState(1);
+	        setExclusiveOwnerThread(owner);
+	      }
 	      
 	}
 	
     private final Sync sync = new Sync();
     
+    //获取锁失败时的退避策略(每个锁实例根据自己的竞争情况调整自旋次数)
+    private final Backoff backoff = new Backoff();
+    
+    //偏向状态: 可偏向/已偏向 -> 撤销中 -> 已撤销(非偏向模式的锁一开始就是已撤销)
+    private static final int BIAS_ENABLED = 0;
+    private static final int BIAS_REVOKING = 1;
+    private static final int BIAS_REVOKED = 2;
+    
+    private volatile int biasState;
+    //偏向线程，第一次加锁时CAS设置
+    private volatile Thread biasOwner;
+    //偏向线程是否持有锁，只有偏向线程写(lazySet)
+    private volatile int biasHeld;
+    
+    private static final AtomicIntegerFieldUpdater<MyLock> BIAS_STATE =
+    		AtomicIntegerFieldUpdater.newUpdater(MyLock.class, "biasState");
+    private static final AtomicIntegerFieldUpdater<MyLock> BIAS_HELD =
+    		AtomicIntegerFieldUpdater.newUpdater(MyLock.class, "biasHeld");
+    private static final AtomicReferenceFieldUpdater<MyLock, Thread> BIAS_OWNER =
+    		AtomicReferenceFieldUpdater.newUpdater(MyLock.class, Thread.class, "biasOwner");
+    
+    //锁当前所处的模式
+    public enum Mode {
+    	BIASED, THIN, FAT
+    }
+    
+    private static final int THIN = 0;
+    private static final int FAT = 1;
+    //FAT模式下多久没有竞争后收缩
+    private static final long DEFLATE_QUIET_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int DEFLATE_CHECK_INTERVAL = 64;
+    
+    private volatile int inflationState;
+    private volatile long inflations;
+    private volatile long deflations;
+    //以下两个字段只在持有锁时访问
+    private int quietAcquires;
+    private long lastContendedNanos;
+    
+    private static final AtomicIntegerFieldUpdater<MyLock> INFLATION =
+    		AtomicIntegerFieldUpdater.newUpdater(MyLock.class, "inflationState");
+    private static final AtomicLongFieldUpdater<MyLock> INFLATIONS =
+    		AtomicLongFieldUpdater.newUpdater(MyLock.class, "inflations");
+    
+    //所有MyLock的转换次数
+    private static final StripedCounter TOTAL_REVOCATIONS = new StripedCounter();
+    private static final StripedCounter TOTAL_INFLATIONS = new StripedCounter();
+    private static final StripedCounter TOTAL_DEFLATIONS = new StripedCounter();
+    
+    public MyLock() {
+    	this(false);
+    }
+    
+    //biased为true时锁偏向第一个获取它的线程
+    public MyLock(boolean biased) {
+    	biasState = biased ? BIAS_ENABLED : BIAS_REVOKED;
+    }
+    
 	//只需要将MyLock提供给用户操作的方法代理到静态内部类Sync的相应方法即可
 	@Override
 	public void lock() {
-		// TODO Auto-generated method stub
+		if (biasState != BIAS_REVOKED) {
+			int r = biasedLock(false, -1L);
+			if (r == BIAS_ACQUIRED)
+				return;
+			if (r == BIAS_REENTERED)
+				throw new IllegalMonitorStateException("MyLock is not reentrant");
+		}
+		if (tryAcquireFast() || (inflationState == THIN && spinThin(false, 0L)))
+			return;
 		sync.acquire(1);
+		afterContendedAcquire();
+	}
+	
+	//CAS获取一次(所有加锁方法的第一步)
+	private boolean tryAcquireFast() {
+		if (sync.tryAcquire(1)) {
+			if (inflationState == FAT)
+				afterQuietAcquire();
+			return true;
+		}
+		return false;
+	}
+	
+	//THIN模式下CAS失败后先按照Backoff自旋/让步重试，进入park阶段之前还没有获取到锁，才膨胀并进入AQS同步队列阻塞
+	//获取成功返回true;超时(timed)时直接返回false，不膨胀
+	private boolean spinThin(boolean timed, long deadline) {
+		for (int step = 0; !backoff.isParkPhase(step); ) {
+			step = backoff.pause(step);
+			if (sync.tryAcquire(1)) {
+				backoff.succeeded(step);
+				return true;
+			}
+			if (timed && deadline - System.nanoTime() <= 0L)
+				return false;
+		}
+		backoff.failed();
+		inflate();
+		return false;
+	}
+	
+	//经过AQS同步队列获取到锁之后(持有锁时调用):记录竞争时间，推迟收缩
+	private void afterContendedAcquire() {
+		quietAcquires = 0;
+		lastContendedNanos = System.nanoTime();
+	}
+	
+	//THIN -> FAT
+	private void inflate() {
+		if (INFLATION.compareAndSet(this, THIN, FAT)) {
+			INFLATIONS.incrementAndGet(this);
+			TOTAL_INFLATIONS.increment();
+		}
+	}
+	
+	//FAT模式下没有竞争地获取到锁(持有锁时调用):安静足够久则收缩为THIN
+	private void afterQuietAcquire() {
+		if (++quietAcquires % DEFLATE_CHECK_INTERVAL != 0)
+			return;
+		if (System.nanoTime() - lastContendedNanos >= DEFLATE_QUIET_NANOS && !sync.hasQueuedThreads()) {
+			inflationState = THIN;
+			deflations = deflations + 1;  //只有持锁线程修改
+			TOTAL_DEFLATIONS.increment();
+		}
 	}
 
+	//biasedLock的返回值
+	private static final int BIAS_ACQUIRED = 0;     //偏向线程加锁成功
+	private static final int BIAS_GONE = 1;         //偏向已撤销，由调用方走AQS
+	private static final int BIAS_TIMED_OUT = 2;    //等待撤销超时(tryLock()不等待)
+	private static final int BIAS_INTERRUPTED = 3;  //等待撤销时被中断
+	private static final int BIAS_REENTERED = 4;    //偏向线程已经持有锁(不可重入)
+	
+	/**
+	 * 偏向模式下加锁
+	 * @param interruptible 等待撤销时是否响应中断
+	 * @param nanos 等待撤销的最长时间，小于0表示一直等待，0表示不等待(tryLock)
+	 */
+	private int biasedLock(boolean interruptible, long nanos) {
+		Thread current = Thread.currentThread();
+		if (biasOwner == current && biasHeld == 1)  //必须在检查biasState之前，撤销中时下面的取消加锁会把外层持有的锁释放掉
+			return BIAS_REENTERED;
+		long deadline = nanos > 0 ? System.nanoTime() + nanos : 0L;
+		for (int step = 0;;) {
+			int state = biasState;
+			if (state == BIAS_REVOKED)
+				return BIAS_GONE;
+			if (state == BIAS_ENABLED) {
+				Thread owner = biasOwner;
+				if (owner == null)  //第一次加锁，偏向当前线程(偏向线程唯一的一次CAS)
+					owner = BIAS_OWNER.compareAndSet(this, null, current) ? current : biasOwner;
+				if (owner == current) {
+					BIAS_HELD.lazySet(this, 1);
+					if (biasState == BIAS_ENABLED)
+						return BIAS_ACQUIRED;
+					BIAS_HELD.lazySet(this, 0);  //正在撤销，取消这次加锁
+				} else if (BIAS_STATE.compareAndSet(this, BIAS_ENABLED, BIAS_REVOKING)) {
+					int r = revokeBias(owner, interruptible, nanos, deadline);
+					if (r != BIAS_GONE)
+						return r;
+					continue;
+				}
+			}
+			//其他线程正在撤销(撤销线程可能在等待偏向线程释放锁，所以使用Backoff逐步退避到park)
+			int r = checkWait(interruptible, nanos, deadline);
+			if (r != BIAS_GONE)
+				return r;
+			step = backoff.pause(step);
+		}
+	}
+	
+	//撤销偏向(只有把状态改为REVOKING的线程执行):撤销完成返回BIAS_GONE;放弃时把状态改回ENABLED并返回原因
+	private int revokeBias(Thread owner, boolean interruptible, long nanos, long deadline) {
+		for (int step = 0;;) {
+			if (!owner.isAlive()) {
+				if (biasHeld == 1)
+					sync.holdForDeadOwner(owner);
+				break;
+			}
+			if (biasHeld == 0) {
+				owner.getStackTrace();  //和偏向线程握手，之后它之前的写入一定可见
+				if (biasHeld == 0)
+					break;
+			}
+			int r = checkWait(interruptible, nanos, deadline);
+			if (r != BIAS_GONE) {  //偏向线程还持有锁，放弃这次撤销
+				biasState = BIAS_ENABLED;
+				return r;
+			}
+			step = backoff.pause(step);
+		}
+		biasState = BIAS_REVOKED;
+		TOTAL_REVOCATIONS.increment();
+		return BIAS_GONE;
+	}
+	
+	//等待撤销期间检查是否应该停止等待:可以继续等待返回BIAS_GONE
+	private static int checkWait(boolean interruptible, long nanos, long deadline) {
+		if (nanos == 0L || (nanos > 0L && deadline - System.nanoTime() <= 0L))
+			return BIAS_TIMED_OUT;
+		if (interruptible && Thread.interrupted())
+			return BIAS_INTERRUPTED;
+		return BIAS_GONE;
+	}
+	
 	@Override
 	public void lockInterruptibly() throws InterruptedException {
-		// TODO Auto-generated method stub
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		if (biasState != BIAS_REVOKED) {
+			int r = biasedLock(true, -1L);
+			if (r == BIAS_ACQUIRED)
+				return;
+			if (r == BIAS_INTERRUPTED)
+				throw new InterruptedException();
+			if (r == BIAS_REENTERED)
+				throw new IllegalMonitorStateException("MyLock is not reentrant");
+		}
+		if (tryAcquireFast() || (inflationState == THIN && spinThin(false, 0L)))
+			return;
 		sync.acquireInterruptibly(1);
+		afterContendedAcquire();
 	}
 
+	//偏向线程持有锁(撤销无法立即完成)或者其他线程正在撤销时直接返回false，不会等待撤销
 	@Override
 	public boolean tryLock() {
-		// TODO Auto-generated method stub
-		return sync.tryAcquire(1);
+		if (biasState != BIAS_REVOKED) {
+			int r = biasedLock(false, 0L);
+			if (r != BIAS_GONE)
+				return r == BIAS_ACQUIRED;
+		}
+		return tryAcquireFast();
 	}
 
+	//等待撤销的时间也计入超时
 	@Override
 	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-		// TODO Auto-generated method stub
-		return sync.tryAcquireNanos(1, unit.toNanos(time));
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		long nanos = Math.max(unit.toNanos(time), 0L);
+		long deadline = System.nanoTime() + nanos;
+		if (biasState != BIAS_REVOKED) {
+			int r = biasedLock(true, nanos);
+			if (r == BIAS_INTERRUPTED)
+				throw new InterruptedException();
+			if (r != BIAS_GONE)
+				return r == BIAS_ACQUIRED;
+		}
+		if (tryAcquireFast() || (inflationState == THIN && spinThin(true, deadline)))
+			return true;
+		if (!sync.tryAcquireNanos(1, deadline - System.nanoTime()))
+			return false;
+		afterContendedAcquire();
+		return true;
 	}
 
 	@Override
 	public void unlock() {
-		// TODO Auto-generated method stub
+		if (biasHeld == 1 && biasOwner == Thread.currentThread()) {
+			BIAS_HELD.lazySet(this, 0);  //偏向线程解锁:只有一次有序写
+			return;
+		}
 		sync.release(1);
 	}
 
+	//返回基于park/unpark的Condition(不使用AQS的ConditionObject)，等待时不会占用monitor，虚拟线程不会被pin在载体线程上
 	@Override
 	public Condition newCondition() {
-		// TODO Auto-generated method stub
-		return sync.newCondition();
+		return new ParkingCondition(this);
+	}
+	
+	//当前线程是否持有该锁
+	@Override
+	public boolean isHeldByCurrentThread() {
+		return (biasHeld == 1 && biasOwner == Thread.currentThread()) || sync.isHeldByCurrentThread();
+	}
+	
+	//是否处于偏向状态(还没有被撤销)
+	public boolean isBiased() {
+		return biasState == BIAS_ENABLED && biasOwner != null;
 	}
 	
+	//当前模式(偏向模式的锁在撤销完成之前都是BIASED)
+	public Mode mode() {
+		if (biasState != BIAS_REVOKED)
+			return Mode.BIASED;
+		return inflationState == FAT ? Mode.FAT : Mode.THIN;
+	}
 	
-	public static void main(String[] args) {
-		// TODO Auto-generated method stub
+	//该锁 THIN -> FAT 的次数
+	public long getInflationCount() {
+		return inflations;
+	}
+	
+	//该锁 FAT -> THIN 的次数
+	public long getDeflationCount() {
+		return deflations;
+	}
+	
+	//所有MyLock偏向撤销的总次数
+	public static long totalRevocations() {
+		return TOTAL_REVOCATIONS.sum();
+	}
+	
+	//所有MyLock膨胀的总次数
+	public static long totalInflations() {
+		return TOTAL_INFLATIONS.sum();
+	}
+	
+	//所有MyLock收缩的总次数
+	public static long totalDeflations() {
+		return TOTAL_DEFLATIONS.sum();
+	}
+	
+	@Override
+	public String toString() {
+		return super.toString() + "[mode=" + mode() + ", inflations=" + inflations + ", deflations=" + deflations + "]";
+	}
+	
+	
+	public static void main(String[] args) throws InterruptedException {
 		MyLock lock = new MyLock();
 		lock.lock();
 		lock.unlock();
 		
+		//无竞争时的加锁/解锁: 普通模式(每次CAS) / 偏向模式(有序写) / ReentrantLock / synchronized
+		final int n = 50000000;
+		for (int round = 0; round < 3; round++) {
+			MyLock normal = new MyLock();
+			MyLock biased = new MyLock(true);
+			ReentrantLock reentrant = new ReentrantLock();
+			Object monitor = new Object();
+			long[] counter = new long[1];
+			long begin = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				normal.lock();
+				counter[0]++;
+				normal.unlock();
+			}
+			long t1 = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				biased.lock();
+				counter[0]++;
+				biased.unlock();
+			}
+			long t2 = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				reentrant.lock();
+				counter[0]++;
+				reentrant.unlock();
+			}
+			long t3 = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				synchronized (monitor) {
+					counter[0]++;
+				}
+			}
+			long t4 = System.nanoTime() - begin;
+			System.out.println(String.format("无竞争加锁解锁(每次纳秒)  MyLock: %.1f  MyLock(偏向): %.1f  ReentrantLock: %.1f  synchronized: %.1f",
+					(double) t1 / n, (double) t2 / n, (double) t3 / n, (double) t4 / n));
+		}
+		
+		//撤销偏向:主线程成为偏向线程后，另一个线程加锁时撤销偏向，之后两个线程通过AQS互斥
+		final MyLock shared = new MyLock(true);
+		final long[] count = new long[1];
+		for (int i = 0; i < 1000; i++) {
+			shared.lock();
+			count[0]++;
+			shared.unlock();
+		}
+		System.out.println("偏向状态: " + shared.isBiased());
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 1000000; i++) {
+					shared.lock();
+					try {
+						count[0]++;
+					} finally {
+						shared.unlock();
+					}
+				}
+			}
+		};
+		Thread other = new Thread(task);
+		other.start();
+		task.run();
+		other.join();
+		System.out.println("撤销后偏向状态: " + shared.isBiased() + ", 计数: " + count[0] + " (期望 2001000)");
+		
+		//自适应模式: 4个线程持锁时间较长的竞争 -> FAT,之后单线程使用一段时间 -> THIN
+		final MyLock adaptive = new MyLock();
+		System.out.println("初始: " + adaptive.mode());
+		Thread[] ts = new Thread[4];
+		for (int i = 0; i < ts.length; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 500; j++) {
+						adaptive.lock();
+						try {
+							LockSupport.parkNanos(50000L);
+						} finally {
+							adaptive.unlock();
+						}
+					}
+				}
+			});
+			ts[i].start();
+		}
+		Thread.sleep(20);
+		System.out.println("竞争中: " + adaptive.mode() + ", 膨胀次数 " + adaptive.getInflationCount());
+		for (Thread t : ts)
+			t.join();
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+		while (System.nanoTime() < end) {
+			adaptive.lock();
+			adaptive.unlock();
+		}
+		System.out.println("安静20毫秒之后: " + adaptive.mode() + ", 收缩次数 " + adaptive.getDeflationCount());
+		System.out.println("所有MyLock: 偏向撤销 " + totalRevocations() + " 次, 膨胀 " + totalInflations() + " 次, 收缩 " + totalDeflations() + " 次");
 	}
 
 }
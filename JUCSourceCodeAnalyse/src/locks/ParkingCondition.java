@@ -0,0 +1,251 @@
+package locks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MyLock/PriorityLock使用的Condition实现(完全基于LockSupport的park/unpark)
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+class ParkingCondition implements Condition {
+
+	/**
+	 * 和WaitNotify中 synchronized + wait()/notify() 的区别:
+	 * 1.wait()必须在持有对象监视器(monitor)时调用，线程阻塞时依旧和monitor绑定在一起
+	 *   对于虚拟线程(较早的JDK版本)来说，在monitor内阻塞会把它钉(pin)在载体线程上，载体线程无法去执行其他虚拟线程
+	 *
+	 * 2.这里的等待只依赖LockSupport.park(),await时先把线程放入自己的等待队列，然后释放锁再park
+	 *   整个等待过程中线程既不持有monitor也不持有锁，所以无论调用方是平台线程还是虚拟线程都不会发生pin
+	 *   (因此这里不需要区分调用方是否为虚拟线程，两种线程走的是同一条路径)
+	 *
+	 * 3.等待队列的所有修改都必须在持有锁的情况下进行(和AQS的ConditionObject一样)
+	 *   signal时将等待节点出队列并把signalled置为true，被唤醒的线程重新获取锁后才从await返回
+	 *   超时或被中断的节点在重新获取锁之后自己把自己从等待队列中移除
+	 *
+	 * 4.只依赖锁的lock()/unlock()和isHeldByCurrentThread()(OwnedLock)，不依赖锁的内部实现，所以MyLock和PriorityLock可以共用
+	 *   await返回前通过lock()重新获取锁，对PriorityLock来说使用的是默认(最低)优先级
+	 */
+
+	/**  能够判断当前线程是否持有锁的独占锁(不可重入)    */
+	interface OwnedLock extends Lock {
+		boolean isHeldByCurrentThread();
+	}
+
+	/**  等待在condition上的节点     */
+	static final class Waiter {
+		final Thread thread = Thread.currentThread();
+		/** 是否已经被signal(在持有锁时写入，volatile保证park中的线程能看到)  */
+		volatile boolean signalled;
+		Waiter next;
+	}
+
+	private final OwnedLock lock;
+
+	/**  等待队列头尾节点，只在持有lock时访问    */
+	private Waiter firstWaiter;
+	private Waiter lastWaiter;
+
+	ParkingCondition(OwnedLock lock) {
+		this.lock = lock;
+	}
+
+	/**
+	 * 将当前线程封装为Waiter并加入等待队列尾部
+	 */
+	private Waiter addWaiter() {
+		if (!lock.isHeldByCurrentThread())
+			throw new IllegalMonitorStateException();
+		Waiter w = new Waiter();
+		if (lastWaiter == null)
+			firstWaiter = w;
+		else
+			lastWaiter.next = w;
+		lastWaiter = w;
+		return w;
+	}
+
+	/**
+	 * 超时或中断后调用(此时已重新持有锁)
+	 * @return 如果节点还没有被signal并且已经从等待队列中移除，返回true
+	 */
+	private boolean cancelWaiter(Waiter w) {
+		if (w.signalled)
+			return false;
+		Waiter prev = null;
+		for (Waiter p = firstWaiter; p != null; prev = p, p = p.next) {
+			if (p == w) {
+				if (prev == null)
+					firstWaiter = p.next;
+				else
+					prev.next = p.next;
+				if (lastWaiter == p)
+					lastWaiter = prev;
+				p.next = null;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 唤醒一个等待节点(调用方必须持有锁)
+	 */
+	private void doSignal(Waiter w) {
+		firstWaiter = w.next;
+		if (firstWaiter == null)
+			lastWaiter = null;
+		w.next = null;
+		w.signalled = true;
+		LockSupport.unpark(w.thread);
+	}
+
+	@Override
+	public void await() throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		Waiter w = addWaiter();
+		lock.unlock();
+		boolean interrupted = false;
+		while (!w.signalled) {
+			LockSupport.park(this);
+			if (Thread.interrupted()) {
+				interrupted = true;
+				break;
+			}
+		}
+		lock.lock();
+		if (interrupted) {
+			if (cancelWaiter(w))  //还没有被signal，则放弃等待并抛出中断异常
+				throw new InterruptedException();
+			Thread.currentThread().interrupt();  //中断发生在signal之后，保留中断标记即可
+		}
+	}
+
+	@Override
+	public void awaitUninterruptibly() {
+		Waiter w = addWaiter();
+		lock.unlock();
+		boolean interrupted = false;
+		while (!w.signalled) {
+			LockSupport.park(this);
+			if (Thread.interrupted())
+				interrupted = true;
+		}
+		lock.lock();
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	@Override
+	public long awaitNanos(long nanosTimeout) throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		final long deadline = System.nanoTime() + nanosTimeout;
+		Waiter w = addWaiter();
+		lock.unlock();
+		boolean interrupted = false;
+		long remaining = nanosTimeout;
+		while (!w.signalled && remaining > 0L) {
+			LockSupport.parkNanos(this, remaining);
+			if (Thread.interrupted()) {
+				interrupted = true;
+				break;
+			}
+			remaining = deadline - System.nanoTime();
+		}
+		lock.lock();
+		if (cancelWaiter(w)) {  //超时或中断时还没有被signal
+			if (interrupted)
+				throw new InterruptedException();
+			return deadline - System.nanoTime();
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		long left = deadline - System.nanoTime();
+		return left > 0L ? left : 1L;  //已经被signal,返回值必须 >0 以便调用方区分超时
+	}
+
+	@Override
+	public boolean await(long time, TimeUnit unit) throws InterruptedException {
+		return awaitNanos(unit.toNanos(time)) > 0L;
+	}
+
+	@Override
+	public boolean awaitUntil(Date deadline) throws InterruptedException {
+		return awaitNanos(TimeUnit.MILLISECONDS.toNanos(deadline.getTime() - System.currentTimeMillis())) > 0L;
+	}
+
+	@Override
+	public void signal() {
+		if (!lock.isHeldByCurrentThread())
+			throw new IllegalMonitorStateException();
+		Waiter w = firstWaiter;
+		if (w != null)
+			doSignal(w);
+	}
+
+	@Override
+	public void signalAll() {
+		if (!lock.isHeldByCurrentThread())
+			throw new IllegalMonitorStateException();
+		Waiter w;
+		while ((w = firstWaiter) != null)
+			doSignal(w);
+	}
+
+
+	/**
+	 * 简单的乒乓测试：两个线程通过condition交替推进一个计数器
+	 * 分别测试 MyLock+ParkingCondition、PriorityLock+ParkingCondition 以及 ReentrantLock+ConditionObject 的耗时
+	 * (需要观察pin事件时，可在支持虚拟线程的JDK上加 -XX:StartFlightRecording 并查看 jdk.VirtualThreadPinned 事件)
+	 */
+	public static void main(String[] args) throws Exception {
+		int rounds = 200000;
+		for (int i = 0; i < 3; i++) {
+			MyLock myLock = new MyLock();
+			System.out.println("MyLock + ParkingCondition  用时: " + pingPong(myLock, myLock.newCondition(), rounds) + "毫秒");
+			PriorityLock priorityLock = new PriorityLock();
+			System.out.println("PriorityLock + ParkingCondition  用时: " + pingPong(priorityLock, priorityLock.newCondition(), rounds) + "毫秒");
+			ReentrantLock reentrantLock = new ReentrantLock();
+			System.out.println("ReentrantLock + ConditionObject 用时: " + pingPong(reentrantLock, reentrantLock.newCondition(), rounds) + "毫秒");
+		}
+	}
+
+	private static int turn;
+
+	private static long pingPong(Lock lock, Condition condition, int rounds) throws InterruptedException {
+		turn = 0;
+		Thread[] players = new Thread[2];
+		for (int p = 0; p < 2; p++) {
+			final int me = p;
+			players[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < rounds; i++) {
+						lock.lock();
+						try {
+							while (turn % 2 != me)
+								condition.awaitUninterruptibly();
+							turn++;
+							condition.signal();
+						} finally {
+							lock.unlock();
+						}
+					}
+				}
+			});
+		}
+		long begin = System.currentTimeMillis();
+		for (Thread t : players)
+			t.start();
+		for (Thread t : players)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
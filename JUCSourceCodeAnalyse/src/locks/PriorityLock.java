@@ -0,0 +1,358 @@
+package locks;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 按优先级直接移交的独占锁(延迟敏感的线程优先获得锁)
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class PriorityLock implements ParkingCondition.OwnedLock {
+
+	/**
+	 * 和AQS的区别:
+	 * AQS释放锁时unparkSuccessor总是唤醒同步队列中第一个没有被取消的节点，等待线程只能按FIFO的顺序获取锁
+	 * 交互式请求线程如果排在批处理线程后面，就只能一直等下去
+	 *
+	 * 1.等待线程获取锁时声明自己的优先级类别(0为最高),每个类别有自己的FIFO等待队列
+	 *
+	 * 2.释放锁时不把state置为0再让大家竞争，而是直接把锁移交给选中的等待线程(state保持为1，只修改owner)
+	 *   这样被唤醒的线程不需要再次CAS竞争，也不会被刚到达的线程抢走
+	 *
+	 * 3.选择规则: 默认移交给优先级最高的非空队列的队头线程
+	 *   防饿死(老化): 低优先级队头线程每等待 agingNanos，优先级就提升一级，提升后和高优先级队头比较，优先级相同时等待更久的优先
+	 *
+	 * 4.等待队列只在持有内部的guard时修改，guard是一个只包住几条指令的自旋锁(失败时使用Backoff退避)
+	 *   没有等待线程时，lock/unlock只需要一次CAS
+	 */
+
+	private static final AtomicIntegerFieldUpdater<PriorityLock> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(PriorityLock.class, "state");
+
+	/**  等待线程节点    */
+	static final class Waiter {
+		final Thread thread = Thread.currentThread();
+		final int priority;
+		final long enqueueTime = System.nanoTime();
+		/**  锁已经移交给该线程   */
+		volatile boolean granted;
+
+		Waiter(int priority) {
+			this.priority = priority;
+		}
+	}
+
+	/**  0为未被获取，1为被获取    */
+	private volatile int state;
+
+	private volatile Thread owner;
+
+	/**  每个优先级类别一个FIFO队列，只在持有guard时访问    */
+	private final ArrayDeque<Waiter>[] queues;
+
+	/**  当前等待线程总数，只在持有guard时修改    */
+	private int waiting;
+
+	private final long agingNanos;
+	private final int defaultPriority;
+
+	private final AtomicBoolean guard = new AtomicBoolean();
+	private final Backoff guardBackoff = new Backoff();
+
+	/**
+	 * @param priorityClasses 优先级类别个数，类别0优先级最高
+	 * @param agingNanos 低优先级线程每等待这么长时间提升一个优先级
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public PriorityLock(int priorityClasses, long agingNanos) {
+		if (priorityClasses <= 0 || agingNanos <= 0L)
+			throw new IllegalArgumentException();
+		this.queues = new ArrayDeque[priorityClasses];
+		for (int i = 0; i < priorityClasses; i++)
+			queues[i] = new ArrayDeque<Waiter>();
+		this.agingNanos = agingNanos;
+		this.defaultPriority = priorityClasses - 1;  //不声明优先级时使用最低优先级
+	}
+
+	public PriorityLock() {
+		this(2, TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	private void lockGuard() {
+		int step = 0;
+		while (!guard.compareAndSet(false, true))
+			step = guardBackoff.pause(step);
+		guardBackoff.succeeded(step);
+	}
+
+	private void unlockGuard() {
+		guard.set(false);
+	}
+
+	/**
+	 * 尝试直接获取锁(只有在没有等待线程时才会成功，保证不插队)
+	 */
+	private boolean tryAcquire() {
+		if (STATE.compareAndSet(this, 0, 1)) {
+			owner = Thread.currentThread();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 以指定的优先级类别获取锁
+	 */
+	public void lock(int priority) {
+		if (tryAcquire())
+			return;
+		Waiter w = enqueue(priority);
+		if (w == null)
+			return;
+		boolean interrupted = false;
+		while (!w.granted) {
+			LockSupport.park(this);
+			if (Thread.interrupted())
+				interrupted = true;
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * 以指定的优先级类别获取锁，响应中断
+	 */
+	public void lockInterruptibly(int priority) throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		if (!tryLockNanos(priority, Long.MAX_VALUE, false)) {
+			Thread.interrupted();
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * 以指定的优先级类别在超时时间内获取锁
+	 */
+	public boolean tryLock(int priority, long time, TimeUnit unit) throws InterruptedException {
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		if (tryLockNanos(priority, unit.toNanos(time), true))
+			return true;
+		if (Thread.interrupted())
+			throw new InterruptedException();
+		return false;
+	}
+
+	/**
+	 * @return 获取成功返回true;超时或被中断返回false(中断标记保留给调用方判断)
+	 */
+	private boolean tryLockNanos(int priority, long nanos, boolean timed) {
+		if (tryAcquire())
+			return true;
+		final long deadline = timed ? System.nanoTime() + nanos : 0L;
+		Waiter w = enqueue(priority);
+		if (w == null)
+			return true;
+		for (;;) {
+			if (w.granted)
+				return true;
+			long remaining = timed ? deadline - System.nanoTime() : 1L;
+			if (remaining <= 0L || Thread.currentThread().isInterrupted()) {
+				if (cancel(w))
+					return false;
+				return true;  //取消前锁已经移交给了自己
+			}
+			if (timed)
+				LockSupport.parkNanos(this, remaining);
+			else
+				LockSupport.park(this);
+		}
+	}
+
+	/**
+	 * 在guard保护下加入等待队列
+	 * @return 等待节点;如果入队前锁已经被释放则直接获取锁并返回null
+	 */
+	private Waiter enqueue(int priority) {
+		if (priority < 0 || priority >= queues.length)
+			throw new IllegalArgumentException("priority class " + priority);
+		lockGuard();
+		try {
+			if (tryAcquire())  //释放锁必须持有guard，所以持有guard时看到state为0说明确实没有等待线程
+				return null;
+			Waiter w = new Waiter(priority);
+			queues[priority].addLast(w);
+			waiting++;
+			return w;
+		} finally {
+			unlockGuard();
+		}
+	}
+
+	/**
+	 * 超时或中断时从等待队列中移除
+	 * @return 移除成功返回true;锁已经移交给了该线程则返回false
+	 */
+	private boolean cancel(Waiter w) {
+		lockGuard();
+		try {
+			if (w.granted)
+				return false;
+			queues[w.priority].remove(w);
+			waiting--;
+			return true;
+		} finally {
+			unlockGuard();
+		}
+	}
+
+	/**
+	 * 选出下一个获取锁的等待线程(调用方持有guard)
+	 */
+	private Waiter selectNext() {
+		long now = System.nanoTime();
+		int best = -1;
+		long bestEffective = Long.MAX_VALUE;
+		long bestTime = Long.MAX_VALUE;
+		for (int p = 0; p < queues.length; p++) {
+			Waiter head = queues[p].peekFirst();
+			if (head == null)
+				continue;
+			long effective = p - (now - head.enqueueTime) / agingNanos;  //等待越久，有效优先级数值越小(优先级越高)
+			if (effective < bestEffective || (effective == bestEffective && head.enqueueTime < bestTime)) {
+				best = p;
+				bestEffective = effective;
+				bestTime = head.enqueueTime;
+			}
+		}
+		return best < 0 ? null : queues[best].pollFirst();
+	}
+
+	@Override
+	public void lock() {
+		lock(defaultPriority);
+	}
+
+	@Override
+	public void lockInterruptibly() throws InterruptedException {
+		lockInterruptibly(defaultPriority);
+	}
+
+	@Override
+	public boolean tryLock() {
+		return tryAcquire();
+	}
+
+	@Override
+	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+		return tryLock(defaultPriority, time, unit);
+	}
+
+	@Override
+	public void unlock() {
+		if (owner != Thread.currentThread())
+			throw new IllegalMonitorStateException();
+		lockGuard();
+		try {
+			Waiter next = waiting > 0 ? selectNext() : null;
+			if (next == null) {
+				owner = null;
+				state = 0;
+				return;
+			}
+			waiting--;
+			owner = next.thread;  //直接移交，state保持为1
+			next.granted = true;
+			LockSupport.unpark(next.thread);
+		} finally {
+			unlockGuard();
+		}
+	}
+
+	/**
+	 * 返回基于park/unpark的Condition(和MyLock共用ParkingCondition),await返回前以默认优先级重新获取锁
+	 */
+	@Override
+	public Condition newCondition() {
+		return new ParkingCondition(this);
+	}
+
+	@Override
+	public boolean isHeldByCurrentThread() {
+		return owner == Thread.currentThread();
+	}
+
+	/**
+	 * 指定优先级类别的等待线程数(近似值)
+	 */
+	public int getQueueLength(int priority) {
+		lockGuard();
+		try {
+			return queues[priority].size();
+		} finally {
+			unlockGuard();
+		}
+	}
+
+
+	/**
+	 * 交互式线程(优先级0)和批处理线程(优先级1)共享同一把锁
+	 * 比较交互式线程在 PriorityLock 和 MyLock 上获取锁的平均等待时间
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		for (int round = 0; round < 2; round++) {
+			PriorityLock priorityLock = new PriorityLock(2, TimeUnit.MILLISECONDS.toNanos(20));
+			System.out.println("PriorityLock 交互式线程平均等待: " + interactiveWait(priorityLock, true) + "微秒");
+			System.out.println("MyLock       交互式线程平均等待: " + interactiveWait(new MyLock(), false) + "微秒");
+		}
+	}
+
+	private static long interactiveWait(final Lock lock, final boolean priorityAware) throws InterruptedException {
+		final int batchThreads = 8;
+		final long endTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+		Thread[] batch = new Thread[batchThreads];
+		for (int i = 0; i < batchThreads; i++) {
+			batch[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (System.nanoTime() < endTime) {
+						if (priorityAware)
+							((PriorityLock) lock).lock(1);
+						else
+							lock.lock();
+						try {
+							LockSupport.parkNanos(100000);  //批处理任务持有锁0.1ms
+						} finally {
+							lock.unlock();
+						}
+					}
+				}
+			});
+			batch[i].start();
+		}
+		long totalWait = 0;
+		int requests = 0;
+		while (System.nanoTime() < endTime) {
+			long begin = System.nanoTime();
+			if (priorityAware)
+				((PriorityLock) lock).lock(0);
+			else
+				lock.lock();
+			totalWait += System.nanoTime() - begin;
+			requests++;
+			lock.unlock();
+			LockSupport.parkNanos(1000000);
+		}
+		for (Thread t : batch)
+			t.join();
+		return requests == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWait / requests);
+	}
+
+}
@@ -0,0 +1,368 @@
+package locks;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * RCU(read-copy-update)风格的持有者:读多写少的配置对象,读只有一次volatile读，写复制-修改-发布并等待宽限期(grace period)后释放旧版本
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class RcuHolder<T> {
+
+	/**
+	 * ThreadSynchronize中的synchronized getter每次读都要获取/释放监视器锁，读线程多时所有读线程都在争抢同一个锁对象
+	 * ThreadVolatile中说明过，volatile读可以保证看到最新发布的引用,所以:
+	 *
+	 * 1.读: get()只是一次volatile读，没有锁也没有CAS
+	 *   配置对象发布后不能再被修改(不可变),写线程复制一份、修改副本、再用volatile写发布新版本(copy-on-write)
+	 *
+	 * 2.宽限期:旧版本持有需要确定性释放的资源(连接、文件、堆外内存)时，写线程必须知道"已经没有读线程还在使用旧版本"
+	 *   需要这种保证的读线程使用 enter()/exit() 包围读临界区:
+	 *   每个线程一个ReaderRecord(通过ThreadLocal获取)，enter()时把active写为当前的全局epoch,exit()时写回0
+	 *   写线程: 发布新版本 -> epoch+1 -> 等待所有 active != 0 且 active <= 旧epoch 的读线程退出 -> 释放旧版本
+	 *   读线程 先写active再读current，写线程 先写current再读active，都是volatile读写:
+	 *   要么读线程读到新版本，要么写线程看到读线程的active并等待，不会出现释放了还在被读的版本
+	 *   exit()使用lazySet,写线程看到0时读线程对旧版本的读取一定已经完成
+	 *
+	 * 3.写线程之间用MyLock串行化;读线程永远不会被写线程阻塞，宽限期只阻塞写线程
+	 *
+	 * 4.ReaderRecord只弱引用所属线程，线程结束后写线程扫描时把它删除
+	 *
+	 * 注意:在读临界区内调用update()会等待自己退出，造成死锁
+	 */
+
+	/**  复制并修改:不能修改传入的当前版本，返回新版本    */
+	public interface Copier<T> {
+		T copyAndModify(T current);
+	}
+
+	/**  宽限期结束后释放旧版本    */
+	public interface Releaser<T> {
+		void release(T old);
+	}
+
+	static class PadBefore {
+		long p0, p1, p2, p3, p4, p5, p6;
+	}
+
+	static class Active extends PadBefore {
+		/**  0表示不在读临界区，否则为进入时的epoch    */
+		volatile long active;
+	}
+
+	/**  每个读线程的记录，独占缓存行    */
+	static final class ReaderRecord extends Active {
+		long q0, q1, q2, q3, q4, q5, q6;
+		final WeakReference<Thread> owner;
+		/**  重入深度，只有所属线程访问    */
+		int depth;
+
+		ReaderRecord(Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+	}
+
+	private static final AtomicLongFieldUpdater<Active> ACTIVE = AtomicLongFieldUpdater.newUpdater(Active.class, "active");
+
+	private volatile T current;
+	/**  从1开始，每次发布加1    */
+	private volatile long epoch = 1L;
+	private final Releaser<? super T> releaser;
+	private final MyLock writeLock = new MyLock();
+	private final Backoff graceBackoff = new Backoff();
+	private final CopyOnWriteArrayList<ReaderRecord> readers = new CopyOnWriteArrayList<ReaderRecord>();
+	private final ThreadLocal<ReaderRecord> record = new ThreadLocal<ReaderRecord>() {
+		@Override
+		protected ReaderRecord initialValue() {
+			ReaderRecord r = new ReaderRecord(Thread.currentThread());
+			readers.add(r);
+			return r;
+		}
+	};
+
+	public RcuHolder(T initial) {
+		this(initial, null);
+	}
+
+	/**
+	 * @param releaser 旧版本的释放方法，为null时不需要释放(交给GC)
+	 */
+	public RcuHolder(T initial, Releaser<? super T> releaser) {
+		if (initial == null)
+			throw new NullPointerException();
+		this.current = initial;
+		this.releaser = releaser;
+	}
+
+	/**
+	 * 读取当前版本(一次volatile读)，返回的对象在宽限期之后可能被释放，需要保证不被释放时使用enter()/exit()
+	 */
+	public T get() {
+		return current;
+	}
+
+	/**
+	 * 进入读临界区并返回当前版本，exit()之前该版本不会被释放，可以重入
+	 */
+	public T enter() {
+		ReaderRecord r = record.get();
+		if (r.depth++ == 0)
+			r.active = epoch;
+		return current;
+	}
+
+	/**
+	 * 退出读临界区
+	 */
+	public void exit() {
+		ReaderRecord r = record.get();
+		if (r.depth == 0)
+			throw new IllegalStateException("not in read-side critical section");
+		if (--r.depth == 0)
+			ACTIVE.lazySet(r, 0L);
+	}
+
+	/**
+	 * 复制-修改-发布，等待宽限期后释放旧版本
+	 * @return 新版本
+	 */
+	public T update(Copier<T> copier) {
+		writeLock.lock();
+		try {
+			T next = copier.copyAndModify(current);
+			publish(next);
+			return next;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 直接替换为新版本，等待宽限期后释放旧版本
+	 * @return 旧版本(已经释放)
+	 */
+	public T set(T next) {
+		writeLock.lock();
+		try {
+			return publish(next);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private T publish(T next) {
+		if (next == null)
+			throw new NullPointerException();
+		T old = current;
+		if (next == old)
+			return old;
+		long oldEpoch = epoch;
+		current = next;
+		epoch = oldEpoch + 1;
+		synchronizeReaders(oldEpoch);
+		if (releaser != null)
+			releaser.release(old);
+		return old;
+	}
+
+	/**
+	 * 等待所有在oldEpoch及之前进入读临界区的线程退出
+	 */
+	private void synchronizeReaders(long oldEpoch) {
+		for (Iterator<ReaderRecord> it = readers.iterator(); it.hasNext();) {
+			ReaderRecord r = it.next();
+			int step = 0;
+			long a;
+			while ((a = r.active) != 0L && a <= oldEpoch) {
+				Thread t = r.owner.get();
+				if (t == null || !t.isAlive())  //线程在临界区内结束(没有调用exit)
+					break;
+				step = graceBackoff.pause(step);
+			}
+			if (step > 0)
+				graceBackoff.succeeded(step);
+			Thread t = r.owner.get();
+			if (t == null || !t.isAlive())
+				readers.remove(r);
+		}
+	}
+
+	/**
+	 * 当前版本号(每次发布加1)
+	 */
+	public long version() {
+		return epoch;
+	}
+
+
+	/**  演示用的配置:不可变    */
+	static final class Config {
+		final int timeoutMillis;
+		final String endpoint;
+		/**  需要确定性释放的资源    */
+		final AtomicBoolean closed = new AtomicBoolean();
+
+		Config(int timeoutMillis, String endpoint) {
+			this.timeoutMillis = timeoutMillis;
+			this.endpoint = endpoint;
+		}
+	}
+
+	/**  对比用:synchronized getter    */
+	static final class SynchronizedConfigHolder {
+		private Config config;
+
+		SynchronizedConfigHolder(Config config) {
+			this.config = config;
+		}
+
+		synchronized Config get() {
+			return config;
+		}
+
+		synchronized void set(Config config) {
+			this.config = config;
+		}
+	}
+
+	/**  防止读循环被JIT优化掉    */
+	private static final AtomicLong sink = new AtomicLong();
+
+	/**
+	 * 1.4个读线程 + 1个每10毫秒更新一次的写线程: synchronized getter / get() / enter()+exit()
+	 * 2.读线程在读临界区内持有旧版本时，写线程等待它退出后才释放旧版本，读线程永远不会看到已经关闭的资源
+	 */
+	public static void main(String[] args) throws Exception {
+		final int reads = 20000000;
+		for (int round = 0; round < 3; round++) {
+			final SynchronizedConfigHolder syncHolder = new SynchronizedConfigHolder(new Config(100, "a"));
+			final RcuHolder<Config> rcu = new RcuHolder<Config>(new Config(100, "a"));
+			long t1 = run(reads, new Runnable() {
+				@Override
+				public void run() {
+					long sum = 0;
+					for (int i = 0; i < reads; i++)
+						sum += syncHolder.get().timeoutMillis;
+					sink.addAndGet(sum);
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					syncHolder.set(new Config(ThreadLocalRandom.current().nextInt(1000), "b"));
+				}
+			});
+			long t2 = run(reads, new Runnable() {
+				@Override
+				public void run() {
+					long sum = 0;
+					for (int i = 0; i < reads; i++)
+						sum += rcu.get().timeoutMillis;
+					sink.addAndGet(sum);
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					rcu.set(new Config(ThreadLocalRandom.current().nextInt(1000), "b"));
+				}
+			});
+			long t3 = run(reads, new Runnable() {
+				@Override
+				public void run() {
+					long sum = 0;
+					for (int i = 0; i < reads; i++) {
+						Config c = rcu.enter();
+						try {
+							sum += c.timeoutMillis;
+						} finally {
+							rcu.exit();
+						}
+					}
+					sink.addAndGet(sum);
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					rcu.set(new Config(ThreadLocalRandom.current().nextInt(1000), "b"));
+				}
+			});
+			System.out.println("4个读线程各读" + reads + "次  synchronized: " + t1 + "毫秒  get(): " + t2 + "毫秒  enter()/exit(): " + t3 + "毫秒");
+		}
+
+		final RcuHolder<Config> rcu = new RcuHolder<Config>(new Config(100, "v1"), new Releaser<Config>() {
+			@Override
+			public void release(Config old) {
+				old.closed.set(true);
+				System.out.println("释放旧版本 " + old.endpoint);
+			}
+		});
+		final CountDownLatch entered = new CountDownLatch(1);
+		final AtomicBoolean sawClosed = new AtomicBoolean();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Config c = rcu.enter();
+				try {
+					entered.countDown();
+					Thread.sleep(200);  //读临界区内持有v1
+					sawClosed.set(c.closed.get());
+					System.out.println("读线程使用 " + c.endpoint + " 完毕, 资源已关闭: " + c.closed.get());
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} finally {
+					rcu.exit();
+				}
+			}
+		});
+		reader.start();
+		entered.await();
+		long begin = System.currentTimeMillis();
+		rcu.update(new Copier<Config>() {
+			@Override
+			public Config copyAndModify(Config current) {
+				return new Config(current.timeoutMillis * 2, "v2");
+			}
+		});
+		System.out.println("写线程等待宽限期 " + (System.currentTimeMillis() - begin) + "毫秒, 当前版本: " + rcu.get().endpoint + ", 版本号: "
+				+ rcu.version());
+		reader.join();
+		if (sawClosed.get())
+			throw new IllegalStateException("reader saw a released version");
+	}
+
+	private static long run(int reads, Runnable readTask, final Runnable writeTask) throws InterruptedException {
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < readers.length; i++)
+			readers[i] = new Thread(readTask);
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!stop.get()) {
+					writeTask.run();
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		});
+		long begin = System.currentTimeMillis();
+		writer.start();
+		for (Thread t : readers)
+			t.start();
+		for (Thread t : readers)
+			t.join();
+		stop.set(true);
+		writer.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
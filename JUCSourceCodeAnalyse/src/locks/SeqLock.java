@@ -0,0 +1,279 @@
+package locks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 顺序锁(seqlock):写线程修改前后各把序号加1，读线程不写任何共享变量，读完发现序号变化就重读
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class SeqLock {
+
+	/**
+	 * ThreadVolatile中说明过volatile不保证复合操作的原子性，多个字段要一起读出一致的快照时只能像ThreadSynchronize那样加锁
+	 * 但读线程加锁(包括读写锁的读锁)也要修改锁的状态，几十个读线程同时读时都在争抢锁变量所在的缓存行
+	 *
+	 * 1.写: sequence从偶数CAS为奇数(表示正在写) -> storeFence -> 修改数据 -> sequence写为下一个偶数(lazySet,有release语义)
+	 *   storeFence保证数据的写入不会被重排序到"变为奇数"之前
+	 *   多个写线程通过CAS互斥(失败时Backoff退避)
+	 *
+	 * 2.读: s = readBegin()(volatile读,等到sequence为偶数) -> 读数据(普通读) -> readRetry(s)
+	 *   readRetry先loadFence，保证数据的读取不会被重排序到再次读取sequence之后，sequence没有变化说明读取期间没有写操作，快照是一致的
+	 *   读线程不写任何共享变量，所以读线程再多也不会争抢缓存行
+	 *
+	 * 3.JDK9以上这里的两个屏障对应VarHandle.releaseFence()/acquireFence()，JDK8通过UnsafeAccess调用Unsafe.storeFence()/loadFence()
+	 *
+	 * 4.读到的数据可能是写了一半的(不一致)，所以在readRetry返回false之前，不能根据读到的数据做任何有副作用的事情(比如用读到的值做数组下标)
+	 *
+	 * 用法:
+	 *   long s;
+	 *   do {
+	 *       s = lock.readBegin();
+	 *       bid = this.bid; ask = this.ask;
+	 *   } while (lock.readRetry(s));
+	 *
+	 *   lock.writeLock();
+	 *   try { this.bid = ...; this.ask = ...; } finally { lock.writeUnlock(); }
+	 */
+
+	private static final int SPINS_BEFORE_YIELD = 64;
+
+	private volatile long sequence;
+	private final Backoff writerBackoff = new Backoff();
+
+	private static final AtomicLongFieldUpdater<SeqLock> SEQUENCE = AtomicLongFieldUpdater.newUpdater(SeqLock.class, "sequence");
+
+	/**
+	 * 开始读:等待正在进行的写操作完成
+	 * @return 读开始时的序号(偶数)
+	 */
+	public long readBegin() {
+		long s;
+		int spins = 0;
+		while (((s = sequence) & 1L) != 0) {
+			if (++spins < SPINS_BEFORE_YIELD)
+				Backoff.onSpinWait();
+			else
+				Thread.yield();
+		}
+		return s;
+	}
+
+	/**
+	 * @return true表示读取期间有写操作，需要重读
+	 */
+	public boolean readRetry(long s) {
+		UnsafeAccess.loadFence();
+		return sequence != s;
+	}
+
+	public void writeLock() {
+		int step = 0;
+		for (;;) {
+			long s = sequence;
+			if ((s & 1L) == 0 && SEQUENCE.compareAndSet(this, s, s + 1))
+				break;
+			step = writerBackoff.pause(step);
+		}
+		writerBackoff.succeeded(step);
+		UnsafeAccess.storeFence();
+	}
+
+	public boolean tryWriteLock() {
+		long s = sequence;
+		if ((s & 1L) != 0 || !SEQUENCE.compareAndSet(this, s, s + 1))
+			return false;
+		UnsafeAccess.storeFence();
+		return true;
+	}
+
+	public void writeUnlock() {
+		long s = sequence;
+		if ((s & 1L) == 0)
+			throw new IllegalMonitorStateException();
+		SEQUENCE.lazySet(this, s + 1);
+	}
+
+	/**
+	 * 当前序号(写操作次数*2,奇数表示正在写)
+	 */
+	public long sequence() {
+		return sequence;
+	}
+
+
+	/**  行情快照: 多个字段必须一起读出来才有意义，一致的快照满足 ask == bid + spread, askSize == bidSize * 2    */
+	static final class Quote {
+		long bid;
+		long ask;
+		long bidSize;
+		long askSize;
+		long timestamp;
+
+		Quote() {
+			update(0, 0);
+		}
+
+		void update(long price, long size) {
+			bid = price;
+			ask = price + 3;
+			bidSize = size;
+			askSize = size * 2;
+			timestamp = System.nanoTime();
+		}
+
+		boolean consistent(long bid, long ask, long bidSize, long askSize) {
+			return ask == bid + 3 && askSize == bidSize * 2;
+		}
+	}
+
+	interface QuoteAccess {
+		/**  读一次快照，不一致时返回false    */
+		boolean read();
+
+		void write(long price, long size);
+	}
+
+	/**
+	 * 1个写线程持续更新行情，32个读线程读取快照:synchronized / ReentrantReadWriteLock / SeqLock
+	 * 同时校验读到的快照都是一致的
+	 */
+	public static void main(String[] args) throws Exception {
+		final int readers = 32;
+		final int readsPerThread = 500000;
+		for (int round = 0; round < 3; round++) {
+			final Quote q1 = new Quote();
+			long t1 = run(readers, readsPerThread, new QuoteAccess() {
+				@Override
+				public boolean read() {
+					long bid, ask, bidSize, askSize;
+					synchronized (q1) {
+						bid = q1.bid;
+						ask = q1.ask;
+						bidSize = q1.bidSize;
+						askSize = q1.askSize;
+					}
+					return q1.consistent(bid, ask, bidSize, askSize);
+				}
+
+				@Override
+				public void write(long price, long size) {
+					synchronized (q1) {
+						q1.update(price, size);
+					}
+				}
+			});
+
+			final Quote q2 = new Quote();
+			final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+			long t2 = run(readers, readsPerThread, new QuoteAccess() {
+				@Override
+				public boolean read() {
+					long bid, ask, bidSize, askSize;
+					rw.readLock().lock();
+					try {
+						bid = q2.bid;
+						ask = q2.ask;
+						bidSize = q2.bidSize;
+						askSize = q2.askSize;
+					} finally {
+						rw.readLock().unlock();
+					}
+					return q2.consistent(bid, ask, bidSize, askSize);
+				}
+
+				@Override
+				public void write(long price, long size) {
+					rw.writeLock().lock();
+					try {
+						q2.update(price, size);
+					} finally {
+						rw.writeLock().unlock();
+					}
+				}
+			});
+
+			final Quote q3 = new Quote();
+			final SeqLock seq = new SeqLock();
+			long t3 = run(readers, readsPerThread, new QuoteAccess() {
+				@Override
+				public boolean read() {
+					long bid, ask, bidSize, askSize;
+					long s;
+					do {
+						s = seq.readBegin();
+						bid = q3.bid;
+						ask = q3.ask;
+						bidSize = q3.bidSize;
+						askSize = q3.askSize;
+					} while (seq.readRetry(s));
+					return q3.consistent(bid, ask, bidSize, askSize);
+				}
+
+				@Override
+				public void write(long price, long size) {
+					seq.writeLock();
+					try {
+						q3.update(price, size);
+					} finally {
+						seq.writeUnlock();
+					}
+				}
+			});
+			System.out.println(readers + "个读线程各读" + readsPerThread + "次  synchronized: " + t1 + "毫秒  ReentrantReadWriteLock: " + t2
+					+ "毫秒  SeqLock: " + t3 + "毫秒 (写次数 " + seq.sequence() / 2 + ")");
+		}
+	}
+
+	private static long run(int readers, final int reads, final QuoteAccess access) throws InterruptedException {
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong inconsistent = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long price = 1000;
+				while (!stop.get()) {
+					access.write(price, price & 1023);
+					price++;
+					LockSupport.parkNanos(20000L);
+				}
+			}
+		});
+		Thread[] ts = new Thread[readers];
+		for (int i = 0; i < readers; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < reads; j++) {
+						if (!access.read())
+							inconsistent.incrementAndGet();
+					}
+				}
+			});
+			ts[i].start();
+		}
+		writer.start();
+		long begin = System.currentTimeMillis();
+		start.countDown();
+		for (Thread t : ts)
+			t.join();
+		long elapsed = System.currentTimeMillis() - begin;
+		stop.set(true);
+		writer.join();
+		if (inconsistent.get() != 0)
+			throw new IllegalStateException("inconsistent snapshots: " + inconsistent.get());
+		return elapsed;
+	}
+
+}
@@ -0,0 +1,163 @@
+package locks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * 通过反射获取 sun.misc.Unsafe 中少量的内存访问方法(用于堆外内存的有序读写)
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public final class UnsafeAccess {
+
+	/**
+	 * AbstractQueuedSynchronizerAnalyse中可以看到AQS的CAS都是通过Unsafe完成的
+	 * JDK8没有VarHandle,对堆外内存(DirectByteBuffer)做 volatile读/有序写 只能使用Unsafe
+	 *
+	 * 1.Unsafe不是公开API，直接import在部分编译环境下会报错，所以这里通过反射获取theUnsafe，再用MethodHandle绑定需要的方法
+	 *   static final的MethodHandle调用invokeExact会被JIT内联，性能和直接调用Unsafe相同
+	 *
+	 * 2.只提供基于绝对地址的方法(对象参数固定为null)，调用方必须保证地址有效(指向仍然被引用的DirectByteBuffer)
+	 *
+	 * 3.当前JVM不支持时(没有Unsafe)，isAvailable()返回false，调用其他方法抛出UnsupportedOperationException
+	 *
+	 * 4.loadFence/storeFence(JDK8新增)对应JDK9 VarHandle的acquireFence/releaseFence,SeqLock用它们保证普通字段读写的顺序
+	 *   没有Unsafe时的退化方式(只在HotSpot上成立，JMM本身没有单独的屏障，这两种方式都不完全等价于Unsafe的屏障):
+	 *   loadFence退化为读一个volatile变量(只读不写，多个线程调用不会争抢缓存行)
+	 *   storeFence退化为写一个volatile变量: HotSpot在volatile写之后插入StoreLoad屏障(x86上是lock addl)，比StoreStore更强
+	 *   只读volatile变量没有任何StoreStore的效果，SeqLock写线程的 序号+1 -> 写字段 -> 序号+1 就可能被重排序
+	 *   写同一个变量会让多个写线程争抢同一个缓存行，但只发生在没有Unsafe的JVM上(SeqLock的写线程通常也只有一个)
+	 */
+
+	private static final MethodHandle GET_LONG_VOLATILE;
+	private static final MethodHandle PUT_ORDERED_LONG;
+	private static final MethodHandle GET_LONG;
+	private static final MethodHandle LOAD_FENCE;
+	private static final MethodHandle STORE_FENCE;
+	/**  java.nio.Buffer中address字段的偏移量    */
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		MethodHandle getLongVolatile = null;
+		MethodHandle putOrderedLong = null;
+		MethodHandle getLong = null;
+		MethodHandle loadFence = null;
+		MethodHandle storeFence = null;
+		long addressOffset = -1L;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Object unsafe = f.get(null);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			getLongVolatile = lookup.findVirtual(unsafeClass, "getLongVolatile",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+			putOrderedLong = lookup.findVirtual(unsafeClass, "putOrderedLong",
+					MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+			getLong = lookup.findVirtual(unsafeClass, "getLong",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+			loadFence = lookup.findVirtual(unsafeClass, "loadFence", MethodType.methodType(void.class)).bindTo(unsafe);
+			storeFence = lookup.findVirtual(unsafeClass, "storeFence", MethodType.methodType(void.class)).bindTo(unsafe);
+			MethodHandle objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset",
+					MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+			addressOffset = (long) objectFieldOffset.invokeExact(Buffer.class.getDeclaredField("address"));
+		} catch (Throwable e) {
+			// 没有Unsafe的JVM
+			getLongVolatile = putOrderedLong = getLong = loadFence = storeFence = null;
+		}
+		GET_LONG_VOLATILE = getLongVolatile;
+		PUT_ORDERED_LONG = putOrderedLong;
+		GET_LONG = getLong;
+		LOAD_FENCE = loadFence;
+		STORE_FENCE = storeFence;
+		ADDRESS_OFFSET = addressOffset;
+	}
+
+	/**  没有Unsafe时屏障读写的volatile变量(loadFence读，storeFence写)    */
+	private static volatile int fallbackFence;
+
+	private UnsafeAccess() {
+	}
+
+	public static boolean isAvailable() {
+		return GET_LONG != null;
+	}
+
+	private static void checkAvailable() {
+		if (GET_LONG == null)
+			throw new UnsupportedOperationException("sun.misc.Unsafe not available");
+	}
+
+	/**
+	 * volatile读(读之后的读写不会被重排序到它之前)
+	 */
+	public static long getLongVolatile(long address) {
+		checkAvailable();
+		try {
+			return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 有序写(相当于AtomicLong.lazySet: 之前的写入不会被重排序到它之后，但不保证马上对其他线程可见)
+	 */
+	public static void putOrderedLong(long address, long value) {
+		checkAvailable();
+		try {
+			PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * DirectByteBuffer的起始地址
+	 */
+	public static long addressOf(ByteBuffer buffer) {
+		if (!buffer.isDirect())
+			throw new IllegalArgumentException("not a direct buffer");
+		checkAvailable();
+		try {
+			return (long) GET_LONG.invokeExact((Object) buffer, ADDRESS_OFFSET);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 读屏障: 屏障之前的读不会被重排序到屏障之后的读写之后
+	 */
+	public static void loadFence() {
+		if (LOAD_FENCE == null) {
+			int ignored = fallbackFence;  //volatile读
+			return;
+		}
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 写屏障: 屏障之前的读写不会被重排序到屏障之后的写之后
+	 */
+	public static void storeFence() {
+		if (STORE_FENCE == null) {
+			fallbackFence = 0;  //volatile写(后面有StoreLoad屏障)
+			return;
+		}
+		try {
+			STORE_FENCE.invokeExact();
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,286 @@
+package pools;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import queues.MpscMailbox;
+
+/**
+ * 基于ThreadLocal的对象池:每个线程有自己的对象栈，其他线程归还的对象通过无锁队列交还给所属线程
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public abstract class Recycler<T> {
+
+	/**
+	 * ThreadLocalAnalyse中分析过，每个线程有自己的ThreadLocalMap，通过ThreadLocal访问自己的数据不需要任何同步
+	 * 按请求分配的缓冲区、编解码器等对象用完就丢，分配速率越高GC越频繁;用一个全局的对象池复用又会让所有线程竞争同一把锁
+	 *
+	 * 1.每个线程通过ThreadLocal拿到自己的Stack(数组实现的有界栈)，get()/同线程的recycle()只操作这个数组，没有任何同步
+	 *   栈满时(maxCapacityPerThread)归还的对象直接丢弃交给GC,避免某个线程囤积大量对象
+	 *
+	 * 2.每个对象都绑定一个Handle,Handle记住创建它的Stack(所属线程)
+	 *   在其他线程recycle()时，Handle放入所属Stack的returnQueue(MpscMailbox,多个归还线程、只有所属线程消费)
+	 *   所属线程的本地栈为空时才从returnQueue中取回对象
+	 *   returnQueue中等待取回的对象数不超过maxSharedCapacity，超过的直接丢弃;所属线程已经结束时也直接丢弃
+	 *
+	 * 3.Handle本身就是MpscMailbox的节点(侵入式)，跨线程归还时不需要分配队列节点
+	 *
+	 * 4.重复回收检测: Handle有一个状态(使用中/已回收)，recycle()通过CAS从使用中改为已回收，重复recycle()抛出IllegalStateException
+	 *
+	 * 用法:
+	 *   private static final Recycler<Codec> RECYCLER = new Recycler<Codec>() {
+	 *       protected Codec newObject(Handle<Codec> handle) { return new Codec(handle); }
+	 *   };
+	 *   Codec c = RECYCLER.get();
+	 *   ...
+	 *   c.handle.recycle();   //回收之后不能再使用c
+	 */
+
+	public static final int DEFAULT_MAX_CAPACITY_PER_THREAD = 4096;
+	public static final int DEFAULT_MAX_SHARED_CAPACITY = 1024;
+
+	private static final int IN_USE = 0;
+	private static final int RECYCLED = 1;
+
+	/**  对象的回收句柄    */
+	public static final class Handle<T> extends MpscMailbox.Node {
+		final Stack<T> stack;
+		T value;
+		volatile int state;
+
+		Handle(Stack<T> stack) {
+			this.stack = stack;
+		}
+
+		/**
+		 * 归还对象，可以在任意线程调用
+		 */
+		public void recycle() {
+			if (!STATE.compareAndSet(this, IN_USE, RECYCLED))
+				throw new IllegalStateException("recycled already");
+			stack.push(this);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<Handle> STATE = AtomicIntegerFieldUpdater.newUpdater(Handle.class, "state");
+
+	/**  每个线程的对象栈    */
+	static final class Stack<T> {
+		final WeakReference<Thread> owner;
+		/**  只有所属线程访问    */
+		private final Object[] elements;
+		private int size;
+		/**  其他线程归还的对象    */
+		final MpscMailbox<Handle<T>> returnQueue = new MpscMailbox<Handle<T>>();
+		final AtomicInteger returned = new AtomicInteger();
+		private final int maxSharedCapacity;
+
+		Stack(Thread owner, int maxCapacity, int maxSharedCapacity) {
+			this.owner = new WeakReference<Thread>(owner);
+			this.elements = new Object[maxCapacity];
+			this.maxSharedCapacity = maxSharedCapacity;
+		}
+
+		@SuppressWarnings("unchecked")
+		Handle<T> pop() {
+			if (size == 0 && !transfer())
+				return null;
+			Handle<T> h = (Handle<T>) elements[--size];
+			elements[size] = null;
+			h.state = IN_USE;
+			return h;
+		}
+
+		/**
+		 * 把其他线程归还的对象转移到本地栈
+		 */
+		private boolean transfer() {
+			int n = 0;
+			Handle<T> h;
+			while (size < elements.length && (h = returnQueue.poll()) != null) {
+				elements[size++] = h;
+				n++;
+			}
+			if (n > 0)
+				returned.addAndGet(-n);
+			return n > 0;
+		}
+
+		void push(Handle<T> h) {
+			Thread t = owner.get();
+			if (t == Thread.currentThread()) {
+				if (size < elements.length)
+					elements[size++] = h;
+				// 栈满:丢弃
+				return;
+			}
+			if (t == null || !t.isAlive())
+				return;
+			for (;;) {
+				int r = returned.get();
+				if (r >= maxSharedCapacity)
+					return;
+				if (returned.compareAndSet(r, r + 1))
+					break;
+			}
+			returnQueue.offer(h);
+		}
+	}
+
+	private final int maxCapacityPerThread;
+	private final int maxSharedCapacity;
+
+	private final ThreadLocal<Stack<T>> threadLocal = new ThreadLocal<Stack<T>>() {
+		@Override
+		protected Stack<T> initialValue() {
+			return new Stack<T>(Thread.currentThread(), maxCapacityPerThread, maxSharedCapacity);
+		}
+	};
+
+	protected Recycler() {
+		this(DEFAULT_MAX_CAPACITY_PER_THREAD, DEFAULT_MAX_SHARED_CAPACITY);
+	}
+
+	/**
+	 * @param maxCapacityPerThread 每个线程本地栈最多缓存的对象数,0表示不缓存(每次get()都创建新对象)
+	 * @param maxSharedCapacity 其他线程归还、等待所属线程取回的对象最多有多少个
+	 */
+	protected Recycler(int maxCapacityPerThread, int maxSharedCapacity) {
+		if (maxCapacityPerThread < 0 || maxSharedCapacity < 0)
+			throw new IllegalArgumentException();
+		this.maxCapacityPerThread = maxCapacityPerThread;
+		this.maxSharedCapacity = maxSharedCapacity;
+	}
+
+	/**
+	 * 创建新对象，对象需要保存handle，用完后调用handle.recycle()
+	 */
+	protected abstract T newObject(Handle<T> handle);
+
+	/**
+	 * 优先从当前线程的对象栈中取，没有时创建新对象
+	 */
+	public final T get() {
+		Stack<T> stack = threadLocal.get();
+		Handle<T> h = stack.pop();
+		if (h == null) {
+			h = new Handle<T>(stack);
+			h.value = newObject(h);
+		}
+		return h.value;
+	}
+
+	/**
+	 * 当前线程本地栈中缓存的对象数
+	 */
+	public final int threadLocalSize() {
+		return threadLocal.get().size;
+	}
+
+
+	/**  按请求分配的编解码缓冲区    */
+	static final class Codec {
+		final Handle<Codec> handle;
+		final byte[] buffer = new byte[16 * 1024];
+		int length;
+
+		Codec(Handle<Codec> handle) {
+			this.handle = handle;
+		}
+
+		int encode(long request) {
+			length = 0;
+			for (int i = 0; i < 64; i++)
+				buffer[length++] = (byte) (request >>> (i & 7));
+			return buffer[(int) (request & 63)];
+		}
+	}
+
+	private static final Recycler<Codec> RECYCLER = new Recycler<Codec>() {
+		@Override
+		protected Codec newObject(Handle<Codec> handle) {
+			return new Codec(handle);
+		}
+	};
+
+	/**
+	 * 1.同一线程get/recycle: 每个请求new一个Codec 和 使用Recycler 的耗时和GC次数
+	 * 2.跨线程归还:线程A取出对象交给线程B处理，B处理完recycle(),对象回到A的栈中
+	 */
+	public static void main(String[] args) throws Exception {
+		final int requests = 1000000;
+		for (int round = 0; round < 3; round++) {
+			long gc = gcCount();
+			long begin = System.currentTimeMillis();
+			long check = 0;
+			for (int i = 0; i < requests; i++) {
+				Codec c = new Codec(null);
+				check += c.encode(i);
+			}
+			System.out.println("每次new:   用时 " + (System.currentTimeMillis() - begin) + "毫秒, GC次数: " + (gcCount() - gc) + " (" + check + ")");
+
+			gc = gcCount();
+			begin = System.currentTimeMillis();
+			check = 0;
+			for (int i = 0; i < requests; i++) {
+				Codec c = RECYCLER.get();
+				check += c.encode(i);
+				c.handle.recycle();
+			}
+			System.out.println("Recycler: 用时 " + (System.currentTimeMillis() - begin) + "毫秒, GC次数: " + (gcCount() - gc) + " (" + check + ")");
+		}
+
+		final BlockingQueue<Codec> handoff = new ArrayBlockingQueue<Codec>(256);
+		final Codec poison = new Codec(null);
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Codec c;
+					while ((c = handoff.take()) != poison) {
+						c.encode(1);
+						c.handle.recycle();  //在其他线程归还
+					}
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		worker.start();
+		final AtomicInteger created = new AtomicInteger();
+		Recycler<Codec> recycler = new Recycler<Codec>(512, 512) {
+			@Override
+			protected Codec newObject(Handle<Codec> handle) {
+				created.incrementAndGet();
+				return new Codec(handle);
+			}
+		};
+		for (int i = 0; i < 100000; i++)
+			handoff.put(recycler.get());
+		handoff.put(poison);
+		worker.join();
+		System.out.println("跨线程归还: 取出100000次，创建对象 " + created.get() + " 个");
+		Codec c = recycler.get();
+		c.handle.recycle();
+		try {
+			c.handle.recycle();
+		} catch (IllegalStateException e) {
+			System.out.println("重复回收: " + e.getMessage());
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(gc.getCollectionCount(), 0L);
+		return count;
+	}
+
+}
@@ -0,0 +1,441 @@
+package queues;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import locks.Backoff;
+
+/**
+ * 无缓冲区的直接移交通道(和SynchronousQueue一样,一个put必须等到一个take才能返回)，中心栈前面加了一层消除数组(elimination array)
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class EliminationHandoff<E> {
+
+	/**
+	 * BlockingQueueDemo中介绍过SynchronousQueue的非公平模式使用一个后进先出的栈来管理多余的生产者/消费者
+	 * 所有生产者和消费者都要CAS同一个栈顶，请求突发时这个CAS就成了瓶颈
+	 *
+	 * 1.中心栈(双重栈,dual stack): 栈中的节点要么全是等待的生产者(DATA)，要么全是等待的消费者(REQUEST)
+	 *   栈为空或者栈顶和自己模式相同: 把自己压入栈中等待被匹配
+	 *   栈顶和自己模式互补: 弹出栈顶并与之匹配
+	 *
+	 * 2.消除数组: 对栈顶的CAS失败(说明有竞争)时不立即重试，而是随机选择消除数组中的一个槽位
+	 *   槽位为空: 把自己放进去，短暂自旋等待一个模式互补的线程来匹配，等不到就撤回，回到中心栈重试
+	 *   槽位中是模式互补的节点: 取走它并直接完成交换，双方都不需要访问中心栈
+	 *   同时到达的生产者和消费者就这样在槽位中两两配对，竞争越激烈，消除成功的机会越大
+	 *
+	 * 3.匹配: 每个节点的match只能被CAS一次，由匹配者写入(生产者写入元素，消费者写入MATCHED),取消时节点把match指向自己
+	 *   所以一个节点要么被匹配，要么被取消，不会两者都发生
+	 */
+
+	private static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+	/**  消除数组的最大槽位数    */
+	private static final int MAX_SLOTS = 16;
+
+	private static final int REQUEST = 0;
+	private static final int DATA = 1;
+
+	/**  消费者匹配生产者节点时写入的标记    */
+	private static final Object MATCHED = new Object();
+
+	static final class Node {
+		final int mode;
+		final Object item;
+		final Thread waiter = Thread.currentThread();
+		volatile Node next;
+		/**  null:等待中;节点自身:已取消;其他:已匹配(REQUEST节点为生产者的元素)  */
+		volatile Object match;
+
+		Node(int mode, Object item) {
+			this.mode = mode;
+			this.item = item;
+		}
+
+		boolean tryMatch(Object value) {
+			return match == null && MATCH.compareAndSet(this, null, value);
+		}
+
+		boolean tryCancel() {
+			return match == null && MATCH.compareAndSet(this, null, this);
+		}
+
+		boolean isCancelled() {
+			return match == this;
+		}
+
+		boolean casNext(Node cmp, Node val) {
+			return NEXT.compareAndSet(this, cmp, val);
+		}
+	}
+
+	private static final AtomicReferenceFieldUpdater<Node, Object> MATCH =
+			AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "match");
+	private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+			AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<EliminationHandoff, Node> HEAD =
+			AtomicReferenceFieldUpdater.newUpdater(EliminationHandoff.class, Node.class, "head");
+
+	/**  中心栈的栈顶    */
+	private volatile Node head;
+
+	private final AtomicReferenceArray<Node> slots;
+
+	/**  在消除数组中等待匹配时的退避(只使用自旋和让步阶段)    */
+	private final Backoff slotBackoff = new Backoff();
+	/**  在中心栈中等待匹配时的退避(进入park阶段后改为park直到被匹配)    */
+	private final Backoff waitBackoff = new Backoff();
+
+	/**  在消除数组中完成的交换次数    */
+	private final LongAdder eliminated = new LongAdder();
+
+	public EliminationHandoff() {
+		this(Math.min(Math.max(NCPU / 2, 1), MAX_SLOTS));
+	}
+
+	/**
+	 * @param slotCount 消除数组的槽位数
+	 */
+	public EliminationHandoff(int slotCount) {
+		if (slotCount <= 0)
+			throw new IllegalArgumentException();
+		this.slots = new AtomicReferenceArray<Node>(slotCount);
+	}
+
+	/**
+	 * 放入元素，等待消费者取走
+	 */
+	public void put(E e) throws InterruptedException {
+		if (e == null)
+			throw new NullPointerException();
+		if (transfer(e, false, 0L) == null) {
+			Thread.interrupted();
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * 只有在已经有消费者等待时才放入元素
+	 */
+	public boolean offer(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		return transfer(e, true, 0L) != null;
+	}
+
+	/**
+	 * 在超时时间内等待消费者取走元素
+	 */
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if (e == null)
+			throw new NullPointerException();
+		if (transfer(e, true, unit.toNanos(timeout)) != null)
+			return true;
+		if (!Thread.interrupted())
+			return false;
+		throw new InterruptedException();
+	}
+
+	/**
+	 * 取出一个元素，没有生产者时阻塞
+	 */
+	@SuppressWarnings("unchecked")
+	public E take() throws InterruptedException {
+		Object x = transfer(null, false, 0L);
+		if (x != null)
+			return (E) x;
+		Thread.interrupted();
+		throw new InterruptedException();
+	}
+
+	/**
+	 * 只有在已经有生产者等待时才取出元素
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		return (E) transfer(null, true, 0L);
+	}
+
+	/**
+	 * 在超时时间内取出一个元素
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		Object x = transfer(null, true, unit.toNanos(timeout));
+		if (x != null || !Thread.interrupted())
+			return (E) x;
+		throw new InterruptedException();
+	}
+
+	/**
+	 * 放入或取出一个元素
+	 * @param e 要放入的元素，null表示取出
+	 * @param timed 是否限时等待
+	 * @param nanos 限时等待的超时时间，<=0表示没有等待的对方时立即返回
+	 * @return 生产者返回e，消费者返回取出的元素;超时、中断或者不等待时没有对方则返回null
+	 */
+	private Object transfer(Object e, boolean timed, long nanos) {
+		final int mode = e == null ? REQUEST : DATA;
+		final long deadline = timed ? System.nanoTime() + nanos : 0L;
+		Node s = null;
+		for (;;) {
+			Node h = head;
+			if (h != null && h.isCancelled()) {  //顺便清除栈顶已取消的节点
+				casHead(h, h.next);
+			} else if (h == null || h.mode == mode) {
+				if (timed && nanos <= 0L)
+					return eliminateIfWaiting(mode, e);
+				if (timed && deadline - System.nanoTime() <= 0L)
+					return null;
+				if (s == null)
+					s = new Node(mode, e);
+				s.next = h;
+				if (casHead(h, s))
+					return awaitFulfill(s, e, timed, deadline);
+				Object x = eliminate(mode, e);  //有竞争,到消除数组中碰碰运气
+				if (x != null)
+					return x;
+			} else {
+				if (casHead(h, h.next)) {  //弹出栈顶后只有当前线程能匹配它(除非它已经取消)
+					Object x = fulfill(h, e);
+					if (x != null)
+						return x;
+				} else {
+					Object x = eliminate(mode, e);
+					if (x != null)
+						return x;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 和已经取走的对方节点完成交换
+	 * @return 成功返回交换结果;对方已取消返回null
+	 */
+	private static Object fulfill(Node other, Object e) {
+		if (!other.tryMatch(e == null ? MATCHED : e))
+			return null;
+		LockSupport.unpark(other.waiter);
+		return e == null ? other.item : e;
+	}
+
+	/**
+	 * 等待节点s被匹配
+	 */
+	private Object awaitFulfill(Node s, Object e, boolean timed, long deadline) {
+		int step = 0;
+		Object m;
+		while ((m = s.match) == null && !waitBackoff.isParkPhase(step))
+			step = waitBackoff.pause(step);
+		if (m != null) {
+			waitBackoff.succeeded(step);
+		} else {
+			waitBackoff.failed();
+			while ((m = s.match) == null) {
+				if (Thread.currentThread().isInterrupted() || (timed && deadline - System.nanoTime() <= 0L)) {
+					if (s.tryCancel()) {
+						clean(s);
+						return null;
+					}
+					continue;  //取消前已经被匹配
+				}
+				if (timed)
+					LockSupport.parkNanos(this, deadline - System.nanoTime());
+				else
+					LockSupport.park(this);
+			}
+		}
+		return e == null ? m : e;
+	}
+
+	/**
+	 * 把已取消的节点s从栈中移除
+	 * 和SynchronousQueue.TransferStack.clean一样，只清理栈顶到s.next之间已取消的节点
+	 */
+	private void clean(Node s) {
+		Node past = s.next;
+		if (past != null && past.isCancelled())
+			past = past.next;
+		Node p;
+		while ((p = head) != null && p != past && p.isCancelled())
+			casHead(p, p.next);
+		while (p != null && p != past) {
+			Node n = p.next;
+			if (n != null && n.isCancelled())
+				p.casNext(n, n.next);
+			else
+				p = n;
+		}
+	}
+
+	/**
+	 * 在消除数组的一个随机槽位中尝试和对方交换
+	 * @return 交换成功返回结果，否则返回null
+	 */
+	private Object eliminate(int mode, Object e) {
+		int i = ThreadLocalRandom.current().nextInt(slots.length());
+		Node other = slots.get(i);
+		if (other != null) {
+			if (other.mode != mode && slots.compareAndSet(i, other, null))
+				return exchanged(fulfill(other, e));
+			return null;
+		}
+		Node s = new Node(mode, e);
+		if (!slots.compareAndSet(i, null, s))
+			return null;
+		int step = 0;
+		while (s.match == null && !slotBackoff.isParkPhase(step))
+			step = slotBackoff.pause(step);
+		if (s.match == null && slots.compareAndSet(i, s, null)) {  //没有等到对方，撤回
+			slotBackoff.failed();
+			return null;
+		}
+		slotBackoff.succeeded(step);
+		Object m;
+		while ((m = s.match) == null)  //对方已经把节点从槽位中取走,马上就会写入match
+			Thread.yield();
+		eliminated.increment();
+		return e == null ? m : e;
+	}
+
+	/**
+	 * offer()/poll()不等待,只匹配已经在消除数组中等待的对方
+	 */
+	private Object eliminateIfWaiting(int mode, Object e) {
+		for (int i = 0; i < slots.length(); i++) {
+			Node other = slots.get(i);
+			if (other != null && other.mode != mode && slots.compareAndSet(i, other, null)) {
+				Object x = fulfill(other, e);
+				if (x != null)
+					return exchanged(x);
+			}
+		}
+		return null;
+	}
+
+	private Object exchanged(Object x) {
+		if (x != null)
+			eliminated.increment();
+		return x;
+	}
+
+	private boolean casHead(Node cmp, Node val) {
+		return head == cmp && HEAD.compareAndSet(this, cmp, val);
+	}
+
+	/**
+	 * 是否有线程在中心栈中等待
+	 */
+	public boolean hasWaitingThreads() {
+		for (Node p = head; p != null; p = p.next) {
+			if (!p.isCancelled())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 通过消除数组完成的交换次数(每次交换双方各计一次)
+	 */
+	public long getEliminationCount() {
+		return eliminated.sum();
+	}
+
+
+	/**
+	 * 突发的请求/响应交接: 多个生产者和消费者同时 put/take，比较 EliminationHandoff 和 SynchronousQueue(公平/非公平)的用时
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int pairs = Math.max(4, NCPU);
+		final int perThread = 200000;
+		for (int round = 0; round < 3; round++) {
+			final EliminationHandoff<Integer> handoff = new EliminationHandoff<Integer>();
+			long t = run(pairs, perThread, new Channel() {
+				@Override
+				public void put(Integer x) throws InterruptedException {
+					handoff.put(x);
+				}
+
+				@Override
+				public Integer take() throws InterruptedException {
+					return handoff.take();
+				}
+			});
+			System.out.println("EliminationHandoff      用时: " + t + "毫秒, 消除数组中完成的交换: " + handoff.getEliminationCount());
+			System.out.println("SynchronousQueue(非公平) 用时: " + run(pairs, perThread, channel(new SynchronousQueue<Integer>())) + "毫秒");
+			System.out.println("SynchronousQueue(公平)   用时: " + run(pairs, perThread, channel(new SynchronousQueue<Integer>(true))) + "毫秒");
+		}
+	}
+
+	interface Channel {
+		void put(Integer x) throws InterruptedException;
+
+		Integer take() throws InterruptedException;
+	}
+
+	private static Channel channel(final SynchronousQueue<Integer> queue) {
+		return new Channel() {
+			@Override
+			public void put(Integer x) throws InterruptedException {
+				queue.put(x);
+			}
+
+			@Override
+			public Integer take() throws InterruptedException {
+				return queue.take();
+			}
+		};
+	}
+
+	private static long run(int pairs, final int perThread, final Channel channel) throws InterruptedException {
+		Thread[] ts = new Thread[pairs * 2];
+		final long[] sums = new long[pairs];
+		for (int i = 0; i < pairs; i++) {
+			final int id = i;
+			ts[2 * i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < perThread; j++)
+							channel.put(j);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			ts[2 * i + 1] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long sum = 0;
+						for (int j = 0; j < perThread; j++)
+							sum += channel.take();
+						sums[id] = sum;
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		long total = 0;
+		for (long sum : sums)
+			total += sum;
+		if (total != (long) pairs * perThread * (perThread - 1) / 2)
+			throw new IllegalStateException("lost elements");
+		return System.currentTimeMillis() - begin;
+	}
+
+}
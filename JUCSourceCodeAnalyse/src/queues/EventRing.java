@@ -0,0 +1,458 @@
+package queues;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Supplier;
+
+import locks.Backoff;
+
+/**
+ * Disruptor风格的环形缓冲区:槽位中的事件对象预先创建并反复使用，生产者申请序号(claim)后直接修改槽位中的事件再发布(publish)
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class EventRing<E> {
+
+	/**
+	 * ProducerAndConsumer中每生产一个元素都要 String.valueOf(...) 创建一个新对象，BlockingQueue每次put还可能创建链表节点
+	 * 事件多了之后频繁的Young GC就成了延迟的主要来源
+	 *
+	 * 1.预分配: 创建环形缓冲区时用factory创建size个事件对象，之后只修改事件的字段，稳定运行时不创建任何对象
+	 *
+	 * 2.序号(Sequence): 生产者和每个消费者各有一个独占缓存行的序号
+	 *   生产者 next() 申请下一个序号(单生产者直接+1，多生产者CAS cursor),get(seq)取出槽位中的事件修改,publish(seq)发布
+	 *   申请时如果会覆盖最慢的消费者还没处理的槽位(gating sequences)，就退避等待
+	 *
+	 * 3.序号屏障(Barrier): 消费者通过屏障等待 生产者已发布的序号 和 它依赖的上游消费者的序号 都达到目标
+	 *   这样可以组成多阶段的处理流水线，比如 日志、复制 两个消费者并行处理，业务逻辑消费者等两者都处理完再处理
+	 *   同一阶段的消费者互不影响，一个事件只在环形缓冲区中放一次，所有阶段都读同一个槽位
+	 *
+	 * 4.批处理: 消费者一次等到多个可用序号时连续处理，只在最后更新一次自己的序号(endOfBatch可以用来合并I/O)
+	 *
+	 * 5.多生产者: cursor只表示已经申请的最大序号，还需要一个available数组记录每个槽位是否已经发布(记录的是第几圈)
+	 *   消费者只能处理连续已发布的序号:cursor已经越过sequence但sequence还没有发布(生产者申请后还没写完)时，消费者同样要退避等待
+	 *
+	 * 6.等待策略使用Backoff(自旋->让步->短暂park)，没有锁和condition，所以生产者发布时也不需要唤醒谁
+	 */
+
+	/**  序号前后的填充，保证序号独占一个缓存行    */
+	static class PadBefore {
+		long p0, p1, p2, p3, p4, p5, p6;
+	}
+
+	static class Value extends PadBefore {
+		volatile long value;
+	}
+
+	static class PadAfter extends Value {
+		long q0, q1, q2, q3, q4, q5, q6;
+	}
+
+	/**  生产者/消费者的序号    */
+	public static final class Sequence extends PadAfter {
+
+		private static final AtomicLongFieldUpdater<Value> VALUE =
+				AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+		Sequence(long initial) {
+			this.value = initial;
+		}
+
+		public long get() {
+			return value;
+		}
+
+		void set(long v) {
+			VALUE.lazySet(this, v);  //只需要保证之前的写入先于序号可见
+		}
+
+		boolean compareAndSet(long expect, long update) {
+			return VALUE.compareAndSet(this, expect, update);
+		}
+	}
+
+	/**  事件处理器    */
+	public interface EventHandler<E> {
+		/**
+		 * @param endOfBatch 是否是本批次中的最后一个事件
+		 */
+		void onEvent(E event, long sequence, boolean endOfBatch) throws Exception;
+	}
+
+	private static final long INITIAL = -1L;
+
+	private final Object[] entries;
+	private final int mask;
+	private final int indexShift;
+	private final boolean multiProducer;
+
+	/**  已经发布(单生产者)或者已经申请(多生产者)的最大序号    */
+	private final Sequence cursor = new Sequence(INITIAL);
+	/**  多生产者模式下每个槽位已发布的圈数    */
+	private final AtomicIntegerArray available;
+
+	/**  单生产者模式下由生产者线程独占的字段    */
+	private long nextValue = INITIAL;
+	private long cachedGating = INITIAL;
+
+	/**  最后一个阶段消费者的序号，生产者不能超过它们一圈    */
+	private volatile Sequence[] gatingSequences = new Sequence[0];
+
+	private final Backoff producerBackoff = new Backoff();
+
+	/**
+	 * @param size 槽位数,必须是2的幂
+	 * @param factory 创建事件对象
+	 * @param multiProducer 是否有多个生产者线程
+	 */
+	public EventRing(int size, Supplier<E> factory, boolean multiProducer) {
+		if (size <= 0 || Integer.bitCount(size) != 1)
+			throw new IllegalArgumentException("size must be a power of 2");
+		this.entries = new Object[size];
+		for (int i = 0; i < size; i++)
+			entries[i] = factory.get();
+		this.mask = size - 1;
+		this.indexShift = Integer.numberOfTrailingZeros(size);
+		this.multiProducer = multiProducer;
+		if (multiProducer) {
+			this.available = new AtomicIntegerArray(size);
+			for (int i = 0; i < size; i++)
+				available.set(i, -1);
+		} else {
+			this.available = null;
+		}
+	}
+
+	/**
+	 * 设置生产者的门控序号(通常是最后一个阶段所有消费者的序号)，必须在生产者开始发布之前调用
+	 */
+	public void setGatingSequences(Sequence... sequences) {
+		this.gatingSequences = sequences.clone();
+	}
+
+	/**
+	 * 取出序号对应槽位中的事件
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence) {
+		return (E) entries[(int) sequence & mask];
+	}
+
+	/**
+	 * 申请下一个序号，环形缓冲区已满时等待
+	 */
+	public long next() {
+		if (!multiProducer) {
+			long next = nextValue + 1;
+			long wrapPoint = next - entries.length;
+			if (wrapPoint > cachedGating) {
+				int step = 0;
+				long min;
+				while (wrapPoint > (min = minimumGating(next - 1)))
+					step = producerBackoff.pause(step);
+				producerBackoff.succeeded(step);
+				cachedGating = min;
+			}
+			nextValue = next;
+			return next;
+		}
+		int step = 0;
+		for (;;) {
+			long current = cursor.get();
+			long next = current + 1;
+			long wrapPoint = next - entries.length;
+			if (wrapPoint > minimumGating(current)) {
+				step = producerBackoff.pause(step);
+				continue;
+			}
+			if (cursor.compareAndSet(current, next)) {
+				producerBackoff.succeeded(step);
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * 尝试申请下一个序号
+	 * @return 环形缓冲区已满时返回-1
+	 */
+	public long tryNext() {
+		if (!multiProducer) {
+			long next = nextValue + 1;
+			long wrapPoint = next - entries.length;
+			if (wrapPoint > cachedGating) {
+				cachedGating = minimumGating(next - 1);
+				if (wrapPoint > cachedGating)
+					return -1L;
+			}
+			nextValue = next;
+			return next;
+		}
+		for (;;) {
+			long current = cursor.get();
+			long next = current + 1;
+			if (next - entries.length > minimumGating(current))
+				return -1L;
+			if (cursor.compareAndSet(current, next))
+				return next;
+		}
+	}
+
+	/**
+	 * 发布序号，发布后消费者才能看到该槽位中的事件
+	 */
+	public void publish(long sequence) {
+		if (multiProducer)
+			available.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+		else
+			cursor.set(sequence);
+	}
+
+	private long minimumGating(long minimum) {
+		for (Sequence s : gatingSequences)
+			minimum = Math.min(minimum, s.get());
+		return minimum;
+	}
+
+	private boolean isAvailable(long sequence) {
+		return available.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+	}
+
+	/**
+	 * 从lowBound开始连续已发布的最大序号
+	 */
+	long highestPublished(long lowBound, long availableSequence) {
+		if (!multiProducer)
+			return availableSequence;
+		for (long s = lowBound; s <= availableSequence; s++) {
+			if (!isAvailable(s))
+				return s - 1;
+		}
+		return availableSequence;
+	}
+
+	/**
+	 * 创建一个序号屏障
+	 * @param dependencies 依赖的上游消费者序号，为空时只等待生产者
+	 */
+	public Barrier newBarrier(Sequence... dependencies) {
+		return new Barrier(this, dependencies.clone());
+	}
+
+	/**
+	 * 创建一个消费者
+	 * @param dependencies 依赖的上游消费者，为空时直接消费生产者发布的事件
+	 */
+	public EventProcessor<E> newProcessor(EventHandler<? super E> handler, EventProcessor<?>... dependencies) {
+		Sequence[] deps = new Sequence[dependencies.length];
+		for (int i = 0; i < deps.length; i++)
+			deps[i] = dependencies[i].getSequence();
+		return new EventProcessor<E>(this, newBarrier(deps), handler);
+	}
+
+	/**
+	 * 当前cursor(任何线程都可以调用): 单生产者时是已经发布的最大序号;多生产者时是已经申请的最大序号，其中可能还有没发布的
+	 * (nextValue是生产者线程私有的普通字段，其他线程不能读)
+	 */
+	public long getCursor() {
+		return cursor.get();
+	}
+
+	public int getBufferSize() {
+		return entries.length;
+	}
+
+
+	/**  序号屏障    */
+	public static final class Barrier {
+		private final EventRing<?> ring;
+		private final Sequence[] dependencies;
+		private final Backoff backoff = new Backoff();
+		private volatile boolean alerted;
+
+		Barrier(EventRing<?> ring, Sequence[] dependencies) {
+			this.ring = ring;
+			this.dependencies = dependencies;
+		}
+
+		/**
+		 * 等待序号sequence可以处理(上游都已经越过sequence，并且多生产者时sequence已经发布)
+		 * @return 可以处理的最大序号(可能大于sequence);只有被alert时才会小于sequence
+		 */
+		public long waitFor(long sequence) {
+			int step = 0;
+			long availableSequence;
+			for (;;) {
+				availableSequence = dependentSequence();
+				if (availableSequence >= sequence) {
+					availableSequence = ring.highestPublished(sequence, availableSequence);
+					if (availableSequence >= sequence)
+						break;
+				}
+				if (alerted)
+					return availableSequence;
+				step = backoff.pause(step);
+			}
+			backoff.succeeded(step);
+			return availableSequence;
+		}
+
+		private long dependentSequence() {
+			long min = ring.cursor.get();
+			for (Sequence s : dependencies)
+				min = Math.min(min, s.get());
+			return min;
+		}
+
+		public void alert() {
+			alerted = true;
+		}
+	}
+
+	/**  批量处理事件的消费者(在一个线程中运行)    */
+	public static final class EventProcessor<E> implements Runnable {
+		private final EventRing<E> ring;
+		private final Barrier barrier;
+		private final EventHandler<? super E> handler;
+		private final Sequence sequence = new Sequence(INITIAL);
+		private volatile boolean running = true;
+
+		EventProcessor(EventRing<E> ring, Barrier barrier, EventHandler<? super E> handler) {
+			this.ring = ring;
+			this.barrier = barrier;
+			this.handler = handler;
+		}
+
+		@Override
+		public void run() {
+			long next = sequence.get() + 1;
+			while (running) {
+				long availableSequence = barrier.waitFor(next);
+				if (availableSequence < next)  //只有被halt时才会出现
+					continue;
+				for (; next <= availableSequence; next++) {
+					try {
+						handler.onEvent(ring.get(next), next, next == availableSequence);
+					} catch (Exception e) {  //跳过出错的事件，不能让整条流水线停下来
+						e.printStackTrace();
+					}
+				}
+				sequence.set(availableSequence);
+			}
+		}
+
+		/**
+		 * 处理完当前批次后停止
+		 */
+		public void halt() {
+			running = false;
+			barrier.alert();
+		}
+
+		public Sequence getSequence() {
+			return sequence;
+		}
+	}
+
+
+	/**  可重复使用的事件，相当于ValueObject    */
+	static final class ValueEvent {
+		long value;
+		long doubled;
+	}
+
+	/**
+	 * 三个阶段的流水线: journal 和 replicate 并行处理，business 等两者都处理完再处理
+	 * 和 ArrayBlockingQueue<String>(每个元素 String.valueOf 创建一个新对象) 比较用时和GC次数
+	 */
+	public static void main(String[] args) throws Exception {
+		final int events = 20000000;
+		for (int round = 0; round < 3; round++) {
+			final EventRing<ValueEvent> ring = new EventRing<ValueEvent>(1 << 14, new Supplier<ValueEvent>() {
+				@Override
+				public ValueEvent get() {
+					return new ValueEvent();
+				}
+			}, false);
+			final long[] journal = new long[1];
+			final long[] business = new long[1];
+			EventProcessor<ValueEvent> journalProcessor = ring.newProcessor(new EventHandler<ValueEvent>() {
+				@Override
+				public void onEvent(ValueEvent event, long sequence, boolean endOfBatch) {
+					journal[0] += event.value;
+				}
+			});
+			EventProcessor<ValueEvent> replicateProcessor = ring.newProcessor(new EventHandler<ValueEvent>() {
+				@Override
+				public void onEvent(ValueEvent event, long sequence, boolean endOfBatch) {
+					event.doubled = event.value * 2;
+				}
+			});
+			EventProcessor<ValueEvent> businessProcessor = ring.newProcessor(new EventHandler<ValueEvent>() {
+				@Override
+				public void onEvent(ValueEvent event, long sequence, boolean endOfBatch) {
+					business[0] += event.doubled;  //依赖replicate阶段的结果
+				}
+			}, journalProcessor, replicateProcessor);
+			ring.setGatingSequences(businessProcessor.getSequence());
+			EventProcessor<?>[] processors = { journalProcessor, replicateProcessor, businessProcessor };
+			Thread[] ts = new Thread[processors.length];
+			for (int i = 0; i < ts.length; i++) {
+				ts[i] = new Thread(processors[i]);
+				ts[i].start();
+			}
+
+			long gc = gcCount();
+			long begin = System.currentTimeMillis();
+			for (long i = 0; i < events; i++) {
+				long seq = ring.next();
+				ring.get(seq).value = i;
+				ring.publish(seq);
+			}
+			while (businessProcessor.getSequence().get() < events - 1)
+				Thread.yield();
+			long ringTime = System.currentTimeMillis() - begin;
+			long ringGc = gcCount() - gc;
+			for (EventProcessor<?> p : processors)
+				p.halt();
+			for (Thread t : ts)
+				t.join();
+			long expected = (long) events * (events - 1) / 2;
+			System.out.println("EventRing                  用时: " + ringTime + "毫秒, GC次数: " + ringGc + ", 结果正确: "
+					+ (journal[0] == expected && business[0] == 2 * expected));
+
+			final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(1 << 14);
+			final long[] sum = new long[1];
+			Thread consumer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < events; i++)
+							sum[0] += Long.parseLong(queue.take());
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			gc = gcCount();
+			begin = System.currentTimeMillis();
+			consumer.start();
+			for (long i = 0; i < events; i++)
+				queue.put(String.valueOf(i));
+			consumer.join();
+			System.out.println("ArrayBlockingQueue<String> 用时: " + (System.currentTimeMillis() - begin) + "毫秒, GC次数: " + (gcCount() - gc)
+					+ ", 结果正确: " + (sum[0] == expected));
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(gc.getCollectionCount(), 0L);
+		return count;
+	}
+
+}
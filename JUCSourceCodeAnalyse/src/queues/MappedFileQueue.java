@@ -0,0 +1,593 @@
+package queues;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import locks.Backoff;
+import locks.MyLock;
+
+/**
+ * 基于内存映射文件(MappedByteBuffer)的持久化队列:多个生产者无锁追加，消费者的读取位置也保存在映射文件中，重启后从上次提交的位置继续读取
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class MappedFileQueue {
+
+	/**
+	 * BlockingQueueDemo/ProducerAndConsumer的缓冲区都在堆内存中，进程重启后还没有被消费的元素就丢失了
+	 *
+	 * 1.分段文件: 队列是一个只追加的字节序列,按segmentSize切分成多个段文件(文件名为段的起始位置)，每个段整体映射到内存
+	 *   写入只是内存拷贝，由操作系统的页缓存负责写回磁盘:进程崩溃不会丢数据，只有机器掉电才会丢失还没写回的部分
+	 *   需要更强的保证时定期调用flush()(而不是每条消息都fsync)
+	 *
+	 * 2.记录格式: [int 长度][int CRC32][payload]，长度为-1表示本段剩余部分为空(记录放不下，转到下一段)
+	 *
+	 * 3.无锁追加: 通过CAS writePosition预留空间，预留成功后各生产者并行拷贝数据
+	 *   当前段剩余空间放不下时，CAS把writePosition直接移动到下一段的开头，并在原位置写入段结束标记
+	 *
+	 * 4.按顺序提交: 消费者只能读取到committedPosition为止
+	 *   生产者拷贝完数据后，如果前面的记录都已经提交(committedPosition等于自己的起始位置)就把它推进到自己的结束位置
+	 *   否则只登记自己已经写完，不等待，由前面的生产者提交时顺便推进过去(等待前驱会在前驱线程被抢占时让所有生产者排成一队)
+	 *   committedPosition的读写都是volatile的，消费者读到它之后就一定能看到之前所有记录的内容
+	 *
+	 * 5.消费者: 每个消费者组的读取位置保存在consumers.idx映射文件中(commit()时写入)，重启后从这个位置继续读取
+	 *   poll()返回映射内存的只读切片，不拷贝payload(零拷贝)，切片在段文件被删除前一直有效
+	 *
+	 * 6.恢复: 重新打开时从最后一个段的开头扫描，遇到长度为0、越界或CRC不匹配的记录(崩溃时没有写完)就认为是队列的末尾
+	 *   并把末尾之后的内容清零，避免以后再次恢复时把旧数据当成有效记录
+	 *   前面的段只有在掉电时才可能有没写回磁盘的部分，恢复时不扫描它们(段很多时重启会很慢)，而是由poll()检查每条记录的长度和CRC
+	 *   遇到损坏的记录时跳过本段剩余的部分，从下一段的开头继续读取(损坏记录之后的长度字段已经不可信，无法在本段内继续定位)
+	 *
+	 * 7.删除: deleteConsumedSegments()删除所有消费者组都已经提交过的段，firstSegmentBase记录保留下来的最小段起始位置(恢复时由扫描目录得到)
+	 *   新的消费者组从firstSegmentBase开始读取，恢复的读取位置也不小于它;segment()拒绝更小的位置，不会把已经删除的段重新创建成全0的文件
+	 */
+
+	private static final int HEADER = 8;
+	private static final int END_OF_SEGMENT = -1;
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	/**  消费者索引文件: 每个消费者组占64字节 [int 名字长度][名字,最多48字节][...][long 读取位置]    */
+	private static final String INDEX_FILE = "consumers.idx";
+	private static final int INDEX_ENTRY = 64;
+	private static final int INDEX_ENTRIES = 64;
+	private static final int MAX_NAME = 48;
+	private static final int OFFSET_FIELD = 56;
+
+	/**  一个段文件    */
+	static final class Segment {
+		final long base;
+		final File file;
+		final MappedByteBuffer buffer;
+
+		Segment(long base, File file, int size) throws IOException {
+			this.base = base;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);  //映射建立后关闭文件不影响映射
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private final File dir;
+	private final int segmentSize;
+	private final Map<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+	private final MyLock segmentLock = new MyLock();
+	/**  保留下来的最小段起始位置，更小的段已经被删除(只在持有segmentLock时修改)    */
+	private volatile long firstSegmentBase;
+
+	private final AtomicLong writePosition = new AtomicLong();
+	private final AtomicLong committedPosition = new AtomicLong();
+	/**  已经写完但前面还有记录没写完的记录: 起始位置 -> 结束位置    */
+	private final Map<Long, Long> pending = new ConcurrentHashMap<Long, Long>();
+
+	private final MappedByteBuffer index;
+	private final MyLock indexLock = new MyLock();
+
+	private final Backoff appendBackoff = new Backoff();
+
+	/**
+	 * 打开(或创建)目录下的队列，已有数据时执行恢复
+	 * @param segmentSize 每个段文件的大小
+	 */
+	public MappedFileQueue(File dir, int segmentSize) throws IOException {
+		if (segmentSize < 4096)
+			throw new IllegalArgumentException("segment too small");
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("cannot create " + dir);
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		RandomAccessFile raf = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+		try {
+			this.index = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_ENTRY * INDEX_ENTRIES);
+		} finally {
+			raf.close();
+		}
+		long end = recover();
+		writePosition.set(end);
+		committedPosition.set(end);
+	}
+
+	/**
+	 * 找到最后一个有效记录的结束位置，并把最小的段起始位置作为firstSegmentBase
+	 */
+	private long recover() throws IOException {
+		long first = Long.MAX_VALUE;
+		long last = -1L;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String name = f.getName();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+					first = Math.min(first, base);
+					last = Math.max(last, base);
+				}
+			}
+		}
+		if (last < 0)
+			return 0L;
+		firstSegmentBase = first;
+		Segment seg = segment(last);
+		ByteBuffer buf = seg.buffer.duplicate();
+		CRC32 crc = new CRC32();
+		int off = 0;
+		for (;;) {
+			int len = recordLength(buf, off, crc);
+			if (len == END_OF_SEGMENT)
+				return last + segmentSize;
+			if (len == 0)
+				break;
+			off += HEADER + len;
+		}
+		for (int i = off; i < segmentSize; i++)  //清除没有写完的记录
+			buf.put(i, (byte) 0);
+		return last + off;
+	}
+
+	/**
+	 * 检查段内off处的记录
+	 * @return 有效记录的payload长度;段结束标记(或剩余空间放不下长度字段)返回END_OF_SEGMENT;长度为0、越界或CRC不匹配返回0
+	 */
+	private int recordLength(ByteBuffer buf, int off, CRC32 crc) {
+		if (segmentSize - off < 4)
+			return END_OF_SEGMENT;
+		int len = buf.getInt(off);
+		if (len == END_OF_SEGMENT)
+			return END_OF_SEGMENT;
+		if (len <= 0 || len > segmentSize - off - HEADER)
+			return 0;
+		ByteBuffer payload = buf.duplicate();
+		payload.limit(off + HEADER + len).position(off + HEADER);
+		crc.reset();
+		crc.update(payload);
+		return (int) crc.getValue() == buf.getInt(off + 4) ? len : 0;
+	}
+
+	/**
+	 * 获取(或创建)position所在的段
+	 * @throws IOException position所在的段已经被deleteConsumedSegments()删除
+	 */
+	private Segment segment(long position) throws IOException {
+		long base = position - position % segmentSize;
+		Segment seg = segments.get(base);
+		if (seg != null)
+			return seg;
+		segmentLock.lock();
+		try {
+			if (base < firstSegmentBase)
+				throw new IOException("segment " + base + " has been deleted");
+			seg = segments.get(base);
+			if (seg == null) {
+				seg = new Segment(base, new File(dir, String.format("%020d", base) + SEGMENT_SUFFIX), segmentSize);
+				segments.put(base, seg);
+			}
+			return seg;
+		} finally {
+			segmentLock.unlock();
+		}
+	}
+
+	/**
+	 * 追加一条记录(多个线程可以同时调用),payload的position不会改变
+	 * @return 记录的起始位置
+	 */
+	public long append(ByteBuffer payload) throws IOException {
+		int len = payload.remaining();
+		int size = HEADER + len;
+		if (len == 0 || size > segmentSize)
+			throw new IllegalArgumentException("payload size " + len);
+		long start;
+		int step = 0;
+		for (;;) {
+			long cur = writePosition.get();
+			long segmentEnd = cur - cur % segmentSize + segmentSize;
+			if (cur + size <= segmentEnd) {
+				if (writePosition.compareAndSet(cur, cur + size)) {
+					start = cur;
+					break;
+				}
+			} else if (writePosition.compareAndSet(cur, segmentEnd)) {  //本段放不下，剩余部分作废
+				if (segmentEnd - cur >= 4)
+					segment(cur).buffer.putInt((int) (cur % segmentSize), END_OF_SEGMENT);
+				commit(cur, segmentEnd);
+				continue;
+			}
+			step = appendBackoff.pause(step);
+		}
+		appendBackoff.succeeded(step);
+		ByteBuffer buf = segment(start).buffer.duplicate();
+		int off = (int) (start % segmentSize);
+		ByteBuffer src = payload.duplicate();
+		CRC32 crc = new CRC32();
+		crc.update(src);
+		src.position(payload.position());
+		buf.position(off + HEADER);
+		buf.put(src);
+		buf.putInt(off + 4, (int) crc.getValue());
+		buf.putInt(off, len);  //长度最后写入
+		commit(start, start + size);
+		return start;
+	}
+
+	public long append(byte[] payload) throws IOException {
+		return append(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * 按顺序提交: committedPosition等于start时由当前线程推进，否则把(start,end)登记到pending中直接返回
+	 * 推进committedPosition的线程接着检查新位置上是否有已经写完的记录，有就继续推进
+	 * 每个登记只会被一个线程remove成功，所以同一时刻只有一个线程在推进committedPosition
+	 */
+	private void commit(long start, long end) {
+		long next;
+		if (committedPosition.compareAndSet(start, end)) {
+			next = end;
+		} else {
+			pending.put(start, end);
+			next = committedPosition.get();  //登记之后再检查一次，前驱可能在登记之前已经提交了
+		}
+		Long e;
+		while ((e = pending.remove(next)) != null) {
+			committedPosition.set(e);
+			next = e;
+		}
+	}
+
+	/**
+	 * 把所有段和消费者索引写回磁盘
+	 */
+	public void flush() {
+		for (Segment seg : segments.values())
+			seg.buffer.force();
+		index.force();
+	}
+
+	/**
+	 * 获取(或创建)一个消费者组，新的消费者组从保留下来的第一个段开始读取
+	 */
+	public Consumer consumer(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length == 0 || bytes.length > MAX_NAME)
+			throw new IllegalArgumentException("consumer name " + name);
+		indexLock.lock();
+		try {
+			int free = -1;
+			for (int slot = 0; slot < INDEX_ENTRIES; slot++) {
+				int base = slot * INDEX_ENTRY;
+				int len = index.getInt(base);
+				if (len == 0) {
+					if (free < 0)
+						free = slot;
+					continue;
+				}
+				if (len == bytes.length && nameEquals(base + 4, bytes)) {
+					long offset = Math.min(index.getLong(base + OFFSET_FIELD), committedPosition.get());
+					return new Consumer(base, Math.max(offset, firstSegmentBase));
+				}
+			}
+			if (free < 0)
+				throw new IllegalStateException("too many consumers");
+			int base = free * INDEX_ENTRY;
+			long start = firstSegmentBase;
+			for (int i = 0; i < bytes.length; i++)
+				index.put(base + 4 + i, bytes[i]);
+			index.putLong(base + OFFSET_FIELD, start);
+			index.putInt(base, bytes.length);
+			return new Consumer(base, start);
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	private boolean nameEquals(int pos, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (index.get(pos + i) != bytes[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 删除所有消费者组都已经提交过的段文件
+	 */
+	public void deleteConsumedSegments() {
+		long min = committedPosition.get();
+		indexLock.lock();
+		try {
+			for (int slot = 0; slot < INDEX_ENTRIES; slot++) {
+				int base = slot * INDEX_ENTRY;
+				if (index.getInt(base) != 0)
+					min = Math.min(min, index.getLong(base + OFFSET_FIELD));
+			}
+		} finally {
+			indexLock.unlock();
+		}
+		segmentLock.lock();
+		try {
+			long first = min - min % segmentSize;
+			if (first > firstSegmentBase)  //先推进firstSegmentBase，之后segment()不会再创建这些段
+				firstSegmentBase = first;
+			List<Long> bases = new ArrayList<Long>(segments.keySet());
+			for (Long base : bases) {
+				if (base + segmentSize <= min) {
+					Segment seg = segments.remove(base);
+					if (!seg.file.delete())
+						seg.file.deleteOnExit();
+				}
+			}
+		} finally {
+			segmentLock.unlock();
+		}
+	}
+
+	/**
+	 * 已提交(消费者可见)的位置
+	 */
+	public long getCommittedPosition() {
+		return committedPosition.get();
+	}
+
+	/**
+	 * 关闭前把数据写回磁盘(Java8无法主动解除映射，映射在缓冲区被GC回收时解除)
+	 */
+	public void close() {
+		flush();
+		segments.clear();
+	}
+
+
+	/**  消费者组(同一个Consumer对象只能在一个线程中使用)    */
+	public final class Consumer {
+		private final int slot;
+		/**  下一条要读取的记录位置    */
+		private long position;
+		private final CRC32 crc = new CRC32();
+		/**  因为记录损坏而跳过的段数    */
+		private int skippedSegments;
+
+		Consumer(int slot, long position) {
+			this.slot = slot;
+			this.position = position;
+		}
+
+		/**
+		 * 读取下一条记录，损坏的记录(长度越界或CRC不匹配)连同本段剩余部分一起跳过
+		 * @return payload的只读切片(直接指向映射内存);没有新记录时返回null
+		 */
+		public ByteBuffer poll() throws IOException {
+			for (;;) {
+				long pos = Math.max(position, firstSegmentBase);  //之前的段已经被删除(其他消费者组都已经提交过)
+				long committed = committedPosition.get();
+				if (pos >= committed)
+					return null;
+				int off = (int) (pos % segmentSize);
+				ByteBuffer buf = segment(pos).buffer;
+				int len = recordLength(buf, off, crc);
+				if (len == END_OF_SEGMENT) {
+					position = pos - off + segmentSize;
+					continue;
+				}
+				if (len == 0) {  //记录损坏，跳到下一段(不超过committedPosition,之后追加的记录还能读到)
+					position = Math.min(pos - off + segmentSize, committed);
+					skippedSegments++;
+					continue;
+				}
+				ByteBuffer payload = buf.duplicate();
+				payload.limit(off + HEADER + len).position(off + HEADER);
+				position = pos + HEADER + len;
+				return payload.slice().asReadOnlyBuffer();
+			}
+		}
+
+		/**
+		 * 把当前读取位置保存到索引文件，重启后从这里继续
+		 */
+		public void commit() {
+			index.putLong(slot + OFFSET_FIELD, position);
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public int getSkippedSegments() {
+			return skippedSegments;
+		}
+	}
+
+
+	/**
+	 * 1.恢复测试: 写入记录 -> 消费一半并提交 -> 模拟崩溃(不close,并在末尾写入半条记录) -> 重新打开，检查消费者从提交位置继续，半条记录被丢弃
+	 * 2.吞吐量: 多个生产者写入、一个消费者读取，和堆内存中的LinkedBlockingQueue<byte[]>对比
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "mapped-file-queue-" + System.nanoTime());
+		try {
+			recoveryTest(new File(dir, "recovery"));
+			for (int round = 0; round < 3; round++)
+				benchmark(new File(dir, "bench" + round));
+		} finally {
+			deleteRecursively(dir);
+		}
+	}
+
+	private static void recoveryTest(File dir) throws IOException {
+		int records = 100000;
+		MappedFileQueue queue = new MappedFileQueue(dir, 1 << 20);
+		for (int i = 0; i < records; i++)
+			queue.append(("message-" + i).getBytes(StandardCharsets.UTF_8));
+		Consumer consumer = queue.consumer("orders");
+		for (int i = 0; i < records / 2; i++)
+			consumer.poll();
+		consumer.commit();
+		long end = queue.getCommittedPosition();
+		Segment last = queue.segment(end);
+		last.buffer.putInt((int) (end % queue.segmentSize) + 4, 12345);  //模拟崩溃时写了一半的记录:有CRC没有正确的内容
+		last.buffer.putInt((int) (end % queue.segmentSize), 100);
+
+		MappedFileQueue reopened = new MappedFileQueue(dir, 1 << 20);  //不调用close,模拟进程崩溃后重启
+		boolean ok = reopened.getCommittedPosition() == end;
+		Consumer resumed = reopened.consumer("orders");
+		int next = records / 2;
+		ByteBuffer b;
+		while ((b = resumed.poll()) != null) {
+			byte[] bytes = new byte[b.remaining()];
+			b.get(bytes);
+			ok &= new String(bytes, StandardCharsets.UTF_8).equals("message-" + next++);
+		}
+		ok &= next == records;
+		reopened.append("after-restart".getBytes(StandardCharsets.UTF_8));
+		b = resumed.poll();
+		ok &= b != null && b.remaining() == "after-restart".length();
+		System.out.println("恢复测试: " + (ok ? "通过" : "失败") + ", 重启后继续读取 " + (next - records / 2) + " 条记录");
+
+		//模拟掉电时第一个段中间的记录没有写回磁盘: 新的消费者组从头读取，跳过第一段剩余部分，从第二段继续
+		int corrupted = 10;
+		long pos = 0;
+		for (int i = 0; i < corrupted; i++)
+			pos += HEADER + ("message-" + i).length();
+		reopened.segment(0).buffer.putInt((int) pos + HEADER, 0);
+		Consumer audit = reopened.consumer("audit");
+		int read = 0;
+		String lastMessage = null;
+		while ((b = audit.poll()) != null) {
+			byte[] bytes = new byte[b.remaining()];
+			b.get(bytes);
+			lastMessage = new String(bytes, StandardCharsets.UTF_8);
+			read++;
+		}
+		ok = audit.getSkippedSegments() == 1 && read > corrupted && read < records && "after-restart".equals(lastMessage);
+		System.out.println("损坏记录测试: " + (ok ? "通过" : "失败") + ", 跳过 " + audit.getSkippedSegments() + " 个段, 读取 " + read + " 条记录");
+
+		//两个消费者组都提交后删除已消费的段: 新的消费者组从保留下来的第一个段开始读取，不会重新创建已删除的段
+		resumed.commit();
+		audit.commit();
+		int before = dir.list().length;
+		reopened.deleteConsumedSegments();
+		int deleted = before - dir.list().length;
+		Consumer late = reopened.consumer("late");
+		read = 0;
+		lastMessage = null;
+		while ((b = late.poll()) != null) {
+			byte[] bytes = new byte[b.remaining()];
+			b.get(bytes);
+			lastMessage = new String(bytes, StandardCharsets.UTF_8);
+			read++;
+		}
+		ok = deleted > 0 && late.getSkippedSegments() == 0 && "after-restart".equals(lastMessage) && dir.list().length == before - deleted;
+		System.out.println("删除已消费段测试: " + (ok ? "通过" : "失败") + ", 删除 " + deleted + " 个段, 新消费者组读取 " + read + " 条记录");
+		reopened.close();
+	}
+
+	private static void benchmark(File dir) throws Exception {
+		final int producers = 4;
+		final int perProducer = 500000;
+		final int payloadSize = 100;
+		final MappedFileQueue queue = new MappedFileQueue(dir, 64 << 20);
+		Thread[] ts = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+					try {
+						for (int j = 0; j < perProducer; j++) {
+							payload.putInt(0, j);
+							queue.append(payload);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		Consumer consumer = queue.consumer("bench");
+		long sum = 0;
+		for (int n = 0; n < producers * perProducer;) {
+			ByteBuffer b = consumer.poll();
+			if (b == null) {
+				Thread.yield();
+				continue;
+			}
+			sum += b.getInt(0);
+			n++;
+		}
+		consumer.commit();
+		for (Thread t : ts)
+			t.join();
+		long mappedTime = System.currentTimeMillis() - begin;
+		queue.close();
+
+		final LinkedBlockingQueue<byte[]> heap = new LinkedBlockingQueue<byte[]>();
+		for (int i = 0; i < producers; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < perProducer; j++) {
+						byte[] payload = new byte[payloadSize];
+						ByteBuffer.wrap(payload).putInt(0, j);
+						heap.offer(payload);
+					}
+				}
+			});
+		}
+		begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		long heapSum = 0;
+		for (int n = 0; n < producers * perProducer; n++)
+			heapSum += ByteBuffer.wrap(heap.take()).getInt(0);
+		for (Thread t : ts)
+			t.join();
+		System.out.println("MappedFileQueue             用时: " + mappedTime + "毫秒; LinkedBlockingQueue<byte[]> 用时: "
+				+ (System.currentTimeMillis() - begin) + "毫秒; 结果一致: " + (sum == heapSum));
+	}
+
+	private static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children)
+				deleteRecursively(c);
+		}
+		f.delete();
+	}
+
+}
@@ -0,0 +1,243 @@
+package queues;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import locks.Backoff;
+
+/**
+ * 无锁的多生产者-单消费者(MPSC)侵入式链表队列，适合actor风格的"邮箱"
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class MpscMailbox<E extends MpscMailbox.Node> {
+
+	/**
+	 * 和BlockingQueueDemo中的阻塞队列对比:
+	 * ArrayBlockingQueue只有一把ReentrantLock，生产者和消费者无法并行
+	 * LinkedBlockingQueue生产者和消费者各有一把锁，但多个生产者之间依旧要竞争同一把putLock
+	 *
+	 * 1.offer(生产者,wait-free): 对tail做一次getAndSet把新节点换上去，再把旧tail的next指向新节点
+	 *   没有CAS失败重试，无论多少生产者同时offer，每个生产者都在固定步数内完成
+	 *
+	 * 2.poll(唯一的消费者): 只有消费者会修改head，不需要任何CAS
+	 *   生产者完成getAndSet但还没来得及链接next时，消费者暂时看不到这个节点，poll返回null(队列并不是真的为空)
+	 *
+	 * 3.侵入式: 元素本身就是链表节点(继承MpscMailbox.Node)，offer时不需要再分配包装节点
+	 *   同一个元素在被poll出来之前不能再次offer(也不能同时放入两个队列)
+	 *
+	 * 4.消费者空闲时的park/unpark桥接:
+	 *   take()先自旋/让步一段时间，仍然为空时先把自己登记到waitingConsumer，再检查一次是否真的为空，才park
+	 *   生产者getAndSet(tail)之后读取waitingConsumer，不为null则unpark
+	 *   两边都是 先写自己的volatile变量再读对方的volatile变量，所以要么消费者看到新的tail，要么生产者看到登记的消费者，不会丢失唤醒
+	 */
+
+	/**  队列节点，元素需要继承该类    */
+	public static class Node {
+		volatile Node next;
+	}
+
+	private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+			AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<MpscMailbox, Node> TAIL =
+			AtomicReferenceFieldUpdater.newUpdater(MpscMailbox.class, Node.class, "tail");
+
+	/**  占位节点，队列为空时head和tail都指向它    */
+	private final Node stub = new Node();
+
+	/**  生产者端,通过getAndSet修改    */
+	private volatile Node tail = stub;
+
+	/**  消费者端,只有消费者线程访问。head不是stub时它就是下一个要返回的元素    */
+	private Node head = stub;
+
+	/**  阻塞在take()上的消费者线程    */
+	private volatile Thread waitingConsumer;
+
+	private final Backoff backoff = new Backoff();
+
+	/**
+	 * 放入一个元素(任意线程调用，wait-free)
+	 */
+	public void offer(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		NEXT.lazySet(e, null);
+		Node prev = TAIL.getAndSet(this, e);
+		NEXT.lazySet(prev, e);  //链接完成后消费者才能看到该元素
+		if (waitingConsumer != null)
+			LockSupport.unpark(waitingConsumer);
+	}
+
+	/**
+	 * 取出一个元素(只能由唯一的消费者线程调用)
+	 * @return 队列为空(或生产者正在链接节点)时返回null
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		Node h = head;
+		Node next = h.next;
+		if (h == stub) {  //跳过占位节点
+			if (next == null)
+				return null;
+			head = next;
+			h = next;
+			next = next.next;
+		}
+		if (next != null) {
+			head = next;
+			return (E) h;
+		}
+		if (h != tail)  //有生产者已经换上了新的tail但还没有链接next
+			return null;
+		offerStub();  //h是最后一个元素，把占位节点放到它后面，h才能安全地出队列
+		next = h.next;
+		if (next != null) {
+			head = next;
+			return (E) h;
+		}
+		return null;
+	}
+
+	private void offerStub() {
+		NEXT.lazySet(stub, null);
+		Node prev = TAIL.getAndSet(this, stub);
+		NEXT.lazySet(prev, stub);
+	}
+
+	/**
+	 * 取出一个元素，队列为空时阻塞(只能由唯一的消费者线程调用)
+	 */
+	public E take() throws InterruptedException {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 在超时时间内取出一个元素(只能由唯一的消费者线程调用)
+	 * @return 超时返回null
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		E e = poll();
+		if (e != null)
+			return e;
+		long nanos = unit.toNanos(timeout);
+		final long deadline = System.nanoTime() + nanos;
+		int step = 0;
+		for (;;) {
+			if ((e = poll()) != null) {
+				backoff.succeeded(step);
+				return e;
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			nanos = deadline - System.nanoTime();
+			if (nanos <= 0L)
+				return null;
+			if (!backoff.isParkPhase(step) || !isEmpty()) {  //先自旋/让步；生产者正在链接节点时也只需要让步等待
+				step = backoff.pause(step);
+				continue;
+			}
+			backoff.failed();
+			waitingConsumer = Thread.currentThread();
+			if (isEmpty())  //登记之后再检查一次
+				LockSupport.parkNanos(this, nanos);
+			waitingConsumer = null;
+		}
+	}
+
+	/**
+	 * 队列是否真的为空(消费者线程调用)
+	 */
+	public boolean isEmpty() {
+		Node h = head;
+		return h == stub && h.next == null && tail == stub;
+	}
+
+
+	/**  测试使用的消息    */
+	static final class Message extends Node {
+		final long value;
+
+		Message(long value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * 多生产者-单消费者吞吐量测试: MpscMailbox 和 ArrayBlockingQueue、LinkedBlockingQueue 对比
+	 */
+	public static void main(String[] args) throws Exception {
+		final int producers = 4;
+		final int perProducer = 1000000;
+		for (int round = 0; round < 3; round++) {
+			final MpscMailbox<Message> mailbox = new MpscMailbox<Message>();
+			System.out.println("MpscMailbox         用时: " + run(producers, perProducer, new Sink() {
+				@Override
+				public void put(Message m) {
+					mailbox.offer(m);
+				}
+
+				@Override
+				public Message take() throws InterruptedException {
+					return mailbox.take();
+				}
+			}) + "毫秒");
+			System.out.println("ArrayBlockingQueue  用时: " + run(producers, perProducer, blocking(new ArrayBlockingQueue<Message>(1024))) + "毫秒");
+			System.out.println("LinkedBlockingQueue 用时: " + run(producers, perProducer, blocking(new LinkedBlockingQueue<Message>())) + "毫秒");
+		}
+	}
+
+	interface Sink {
+		void put(Message m) throws InterruptedException;
+
+		Message take() throws InterruptedException;
+	}
+
+	private static Sink blocking(final BlockingQueue<Message> queue) {
+		return new Sink() {
+			@Override
+			public void put(Message m) throws InterruptedException {
+				queue.put(m);
+			}
+
+			@Override
+			public Message take() throws InterruptedException {
+				return queue.take();
+			}
+		};
+	}
+
+	private static long run(int producers, final int perProducer, final Sink sink) throws InterruptedException {
+		Thread[] ts = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < perProducer; j++)
+							sink.put(new Message(j));
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		long sum = 0;
+		for (long i = (long) producers * perProducer; i > 0; i--)
+			sum += sink.take().value;
+		for (Thread t : ts)
+			t.join();
+		if (sum != (long) producers * perProducer * (perProducer - 1) / 2)
+			throw new IllegalStateException("lost messages");
+		return System.currentTimeMillis() - begin;
+	}
+
+}
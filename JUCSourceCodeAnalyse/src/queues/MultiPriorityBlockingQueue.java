@@ -0,0 +1,439 @@
+package queues;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+
+import locks.MyLock;
+
+/**
+ * 有界的优先级阻塞队列，元素分散在多个各自加锁的堆中(MultiQueue)，默认为宽松的优先级顺序，也可以使用严格模式
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class MultiPriorityBlockingQueue<E> {
+
+	/**
+	 * PriorityBlockingQueue所有的put/take都要获取同一把ReentrantLock，生产者和消费者越多，排队越严重
+	 *
+	 * 1.分段: 元素分散在 stripes 个小堆中，每个堆有自己的MyLock,并缓存自己的堆顶元素(volatile，不加锁就能读)
+	 *   offer: 随机选择一个堆，tryLock失败就换一个堆，不会在锁上排队
+	 *   poll(宽松模式): 随机选择两个堆，比较它们的堆顶，从较小的那个堆中取出元素(tryLock失败就重新选择)
+	 *   取出的不一定是全局最小的元素，但一定是两个堆中较小的，多次取出的平均排名误差和堆的个数成正比
+	 *
+	 * 2.严格模式: offer依旧只锁一个堆，poll按顺序锁住所有的堆，取出全局最小的元素，保证和PriorityBlockingQueue相同的顺序
+	 *   适合对顺序要求严格、消费者较少的场景
+	 *
+	 * 3.容量和元素个数:
+	 *   size    放入前先预留容量(size+1)，取出元素后再归还，size达到capacity时队列已满
+	 *   ready   元素真正放入堆中之后才+1，消费者先扣减ready再去堆中查找，所以扣减成功后一定能找到元素
+	 *
+	 * 4.阻塞: 和ProducerAndConsumer一样使用两个condition(notEmpty/notFull)，等待的生产者和消费者分开唤醒，不会出现假死
+	 *   只有在确实有线程等待时，offer/poll才会去获取signalLock发送signal，平时完全不访问这把锁
+	 */
+
+	private static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+	/**  一个分段:一把锁 + 一个小堆    */
+	static final class Stripe<E> {
+		final MyLock lock = new MyLock();
+		final PriorityQueue<E> heap;
+		/**  堆顶元素，只在持有lock时修改    */
+		volatile E top;
+
+		Stripe(Comparator<? super E> comparator) {
+			this.heap = new PriorityQueue<E>(16, comparator);
+		}
+	}
+
+	private final Stripe<E>[] stripes;
+	private final Comparator<? super E> comparator;
+	private final int capacity;
+	private final boolean strict;
+
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger ready = new AtomicInteger();
+
+	private final MyLock signalLock = new MyLock();
+	private final Condition notEmpty = signalLock.newCondition();
+	private final Condition notFull = signalLock.newCondition();
+	/**  在notEmpty/notFull上等待的线程数，只在持有signalLock时修改    */
+	private volatile int waitingTakers;
+	private volatile int waitingPutters;
+
+	public MultiPriorityBlockingQueue(int capacity) {
+		this(capacity, null, false, 2 * NCPU);
+	}
+
+	/**
+	 * @param capacity 容量
+	 * @param comparator 比较器,null时使用元素的自然顺序
+	 * @param strict 是否使用严格模式
+	 * @param stripeCount 堆的个数
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public MultiPriorityBlockingQueue(int capacity, Comparator<? super E> comparator, boolean strict, int stripeCount) {
+		if (capacity <= 0 || stripeCount <= 0)
+			throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.comparator = comparator;
+		this.strict = strict;
+		this.stripes = new Stripe[Math.max(stripeCount, 2)];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe<E>(comparator);
+	}
+
+	/**
+	 * 放入元素，队列已满时返回false
+	 */
+	public boolean offer(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		if (!reserveCapacity())
+			return false;
+		insert(e);
+		return true;
+	}
+
+	/**
+	 * 放入元素，队列已满时阻塞
+	 */
+	public void put(E e) throws InterruptedException {
+		if (e == null)
+			throw new NullPointerException();
+		if (!reserveCapacity()) {
+			signalLock.lockInterruptibly();
+			try {
+				waitingPutters++;
+				try {
+					while (!reserveCapacity())
+						notFull.await();
+				} finally {
+					waitingPutters--;
+				}
+			} finally {
+				signalLock.unlock();
+			}
+		}
+		insert(e);
+	}
+
+	/**
+	 * 在超时时间内放入元素
+	 */
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		if (e == null)
+			throw new NullPointerException();
+		if (!reserveCapacity()) {
+			long nanos = unit.toNanos(timeout);
+			signalLock.lockInterruptibly();
+			try {
+				waitingPutters++;
+				try {
+					while (!reserveCapacity()) {
+						if (nanos <= 0L)
+							return false;
+						nanos = notFull.awaitNanos(nanos);
+					}
+				} finally {
+					waitingPutters--;
+				}
+			} finally {
+				signalLock.unlock();
+			}
+		}
+		insert(e);
+		return true;
+	}
+
+	/**
+	 * 取出一个元素，队列为空时返回null
+	 */
+	public E poll() {
+		return reserveElement() ? remove() : null;
+	}
+
+	/**
+	 * 取出一个元素，队列为空时阻塞
+	 */
+	public E take() throws InterruptedException {
+		if (!reserveElement()) {
+			signalLock.lockInterruptibly();
+			try {
+				waitingTakers++;
+				try {
+					while (!reserveElement())
+						notEmpty.await();
+				} finally {
+					waitingTakers--;
+				}
+			} finally {
+				signalLock.unlock();
+			}
+		}
+		return remove();
+	}
+
+	/**
+	 * 在超时时间内取出一个元素
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		if (!reserveElement()) {
+			long nanos = unit.toNanos(timeout);
+			signalLock.lockInterruptibly();
+			try {
+				waitingTakers++;
+				try {
+					while (!reserveElement()) {
+						if (nanos <= 0L)
+							return null;
+						nanos = notEmpty.awaitNanos(nanos);
+					}
+				} finally {
+					waitingTakers--;
+				}
+			} finally {
+				signalLock.unlock();
+			}
+		}
+		return remove();
+	}
+
+	private boolean reserveCapacity() {
+		for (;;) {
+			int c = size.get();
+			if (c >= capacity)
+				return false;
+			if (size.compareAndSet(c, c + 1))
+				return true;
+		}
+	}
+
+	private boolean reserveElement() {
+		for (;;) {
+			int c = ready.get();
+			if (c <= 0)
+				return false;
+			if (ready.compareAndSet(c, c - 1))
+				return true;
+		}
+	}
+
+	/**
+	 * 把元素放入一个随机的堆中(已经预留了容量)
+	 */
+	private void insert(E e) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Stripe<E> s;
+		int attempts = 0;
+		do {
+			s = stripes[random.nextInt(stripes.length)];
+		} while (!s.lock.tryLock() && ++attempts < stripes.length);
+		if (attempts == stripes.length)  //所有尝试都失败，在最后选中的堆上排队
+			s.lock.lock();
+		try {
+			s.heap.offer(e);
+			s.top = s.heap.peek();
+		} finally {
+			s.lock.unlock();
+		}
+		ready.incrementAndGet();
+		if (waitingTakers > 0)
+			signal(notEmpty);
+	}
+
+	/**
+	 * 从堆中取出一个元素(已经扣减了ready，一定能找到)
+	 */
+	private E remove() {
+		E e = strict ? removeMin() : removeRelaxed();
+		size.decrementAndGet();
+		if (waitingPutters > 0)
+			signal(notFull);
+		return e;
+	}
+
+	private E removeRelaxed() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int attempt = 0; attempt < stripes.length; attempt++) {
+			Stripe<E> a = stripes[random.nextInt(stripes.length)];
+			Stripe<E> b = stripes[random.nextInt(stripes.length)];
+			Stripe<E> s = compare(a.top, b.top) <= 0 ? a : b;
+			if (s.top == null || !s.lock.tryLock())
+				continue;
+			try {
+				E e = s.heap.poll();
+				if (e != null) {
+					s.top = s.heap.peek();
+					return e;
+				}
+			} finally {
+				s.lock.unlock();
+			}
+		}
+		for (;;) {  //随机选择一直失败(元素集中在少数几个堆中)，依次检查每个堆
+			for (Stripe<E> s : stripes) {
+				if (s.top == null)
+					continue;
+				s.lock.lock();
+				try {
+					E e = s.heap.poll();
+					if (e != null) {
+						s.top = s.heap.peek();
+						return e;
+					}
+				} finally {
+					s.lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 严格模式:锁住所有的堆(按下标顺序加锁，不会死锁)，取出全局最小的元素
+	 */
+	private E removeMin() {
+		for (Stripe<E> s : stripes)
+			s.lock.lock();
+		try {
+			Stripe<E> best = null;
+			for (Stripe<E> s : stripes) {
+				if (s.top != null && (best == null || compare(s.top, best.top) < 0))
+					best = s;
+			}
+			E e = best.heap.poll();
+			best.top = best.heap.peek();
+			return e;
+		} finally {
+			for (int i = stripes.length - 1; i >= 0; i--)
+				stripes[i].lock.unlock();
+		}
+	}
+
+	/**
+	 * 比较两个堆顶元素，null(空堆)排在最后
+	 */
+	@SuppressWarnings("unchecked")
+	private int compare(E x, E y) {
+		if (x == null)
+			return y == null ? 0 : 1;
+		if (y == null)
+			return -1;
+		return comparator != null ? comparator.compare(x, y) : ((Comparable<? super E>) x).compareTo(y);
+	}
+
+	private void signal(Condition condition) {
+		signalLock.lock();
+		try {
+			condition.signal();
+		} finally {
+			signalLock.unlock();
+		}
+	}
+
+	/**
+	 * 队列中的元素个数(包括正在放入/取出的元素)
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public int remainingCapacity() {
+		return capacity - size.get();
+	}
+
+	public boolean isStrict() {
+		return strict;
+	}
+
+
+	/**
+	 * 多个生产者/消费者处理带优先级的任务，比较 PriorityBlockingQueue 和 MultiPriorityBlockingQueue(宽松/严格模式) 的用时
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		final int producers = 4;
+		final int consumers = 4;
+		final int perProducer = 500000;
+		for (int round = 0; round < 3; round++) {
+			final PriorityBlockingQueue<Long> jdk = new PriorityBlockingQueue<Long>();
+			System.out.println("PriorityBlockingQueue           用时: " + run(producers, consumers, perProducer, new Jobs() {
+				@Override
+				public void put(Long job) {
+					jdk.put(job);
+				}
+
+				@Override
+				public Long take() throws InterruptedException {
+					return jdk.take();
+				}
+			}) + "毫秒");
+			System.out.println("MultiPriorityBlockingQueue(宽松) 用时: "
+					+ run(producers, consumers, perProducer, jobs(new MultiPriorityBlockingQueue<Long>(1 << 16))) + "毫秒");
+			System.out.println("MultiPriorityBlockingQueue(严格) 用时: "
+					+ run(producers, consumers, perProducer, jobs(new MultiPriorityBlockingQueue<Long>(1 << 16, null, true, 2 * NCPU))) + "毫秒");
+		}
+	}
+
+	interface Jobs {
+		void put(Long job) throws InterruptedException;
+
+		Long take() throws InterruptedException;
+	}
+
+	private static Jobs jobs(final MultiPriorityBlockingQueue<Long> queue) {
+		return new Jobs() {
+			@Override
+			public void put(Long job) throws InterruptedException {
+				queue.put(job);
+			}
+
+			@Override
+			public Long take() throws InterruptedException {
+				return queue.take();
+			}
+		};
+	}
+
+	private static long run(int producers, final int consumers, final int perProducer, final Jobs jobs) throws InterruptedException {
+		final int perConsumer = producers * perProducer / consumers;
+		Thread[] ts = new Thread[producers + consumers];
+		for (int i = 0; i < producers; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					try {
+						for (int j = 0; j < perProducer; j++)
+							jobs.put(random.nextLong(1000));  //优先级:数值越小越优先
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		for (int i = producers; i < ts.length; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < perConsumer; j++)
+							jobs.take();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		for (Thread t : ts)
+			t.join();
+		return System.currentTimeMillis() - begin;
+	}
+
+}
@@ -0,0 +1,413 @@
+package queues;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import locks.Backoff;
+import locks.UnsafeAccess;
+
+/**
+ * 堆外内存(DirectByteBuffer)中的定长记录环形队列，支持单生产者(SPSC)和多生产者(MPSC)，通过享元(flyweight)对象读写记录
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class OffHeapRecordRing {
+
+	/**
+	 * BlockingQueueDemo中BlockingQueue<String>的每个元素都是一个堆上的对象(对象头 + 引用 + 实际数据)
+	 * 几千万个元素不仅浪费内存，每次GC标记时还要遍历它们
+	 *
+	 * 1.存储: 所有槽位都在堆外的DirectByteBuffer中，每个槽位 = [long 序号头][记录数据(recordSize,按8字节对齐)]
+	 *   单个ByteBuffer最大2GB，所以按chunk分成多个DirectByteBuffer，槽位不会跨chunk
+	 *   堆上只有几个游标对象和chunk的ByteBuffer对象，和队列中有多少条记录无关
+	 *
+	 * 2.序号头(和Vyukov有界MPMC队列相同的思路):
+	 *   槽位i的序号头初始为i,生产者申请到序号seq时，如果槽位的序号头等于seq说明槽位空闲
+	 *   写完记录后把序号头改为seq+1表示已发布;消费者读完后把序号头改为seq+capacity,表示下一圈的生产者可以使用
+	 *   序号头的读写通过Unsafe在堆外内存上做 volatile读/有序写，保证记录内容先于序号头可见
+	 *
+	 * 3.生产者游标: 单生产者模式直接+1，多生产者模式CAS申请序号(这两个游标是堆上的long,按缓存行填充)
+	 *   消费者只有一个，读游标不需要CAS
+	 *
+	 * 4.享元: Record对象只保存 chunk + 槽位偏移量，wrap到不同的槽位上反复使用，读写记录时不创建任何对象
+	 */
+
+	/**  游标前后的填充    */
+	static class PadBefore {
+		long p0, p1, p2, p3, p4, p5, p6;
+	}
+
+	static class Cursors extends PadBefore {
+		volatile long producer;
+		long r0, r1, r2, r3, r4, r5, r6, r7;
+		/**  只有消费者线程访问    */
+		long consumer;
+	}
+
+	static class PadAfter extends Cursors {
+		long q0, q1, q2, q3, q4, q5, q6;
+	}
+
+	private static final AtomicLongFieldUpdater<Cursors> PRODUCER =
+			AtomicLongFieldUpdater.newUpdater(Cursors.class, "producer");
+
+	private static final int HEADER = 8;
+	/**  每个chunk最大1GB    */
+	private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+	/**  记录享元:只能在申请到序号之后、发布/释放之前使用    */
+	public static final class Record {
+		private ByteBuffer chunk;
+		private int offset;
+		private int size;
+
+		void wrap(ByteBuffer chunk, int offset, int size) {
+			this.chunk = chunk;
+			this.offset = offset;
+			this.size = size;
+		}
+
+		public long getLong(int index) {
+			return chunk.getLong(offset + check(index, 8));
+		}
+
+		public void putLong(int index, long value) {
+			chunk.putLong(offset + check(index, 8), value);
+		}
+
+		public int getInt(int index) {
+			return chunk.getInt(offset + check(index, 4));
+		}
+
+		public void putInt(int index, int value) {
+			chunk.putInt(offset + check(index, 4), value);
+		}
+
+		public double getDouble(int index) {
+			return chunk.getDouble(offset + check(index, 8));
+		}
+
+		public void putDouble(int index, double value) {
+			chunk.putDouble(offset + check(index, 8), value);
+		}
+
+		public byte getByte(int index) {
+			return chunk.get(offset + check(index, 1));
+		}
+
+		public void putByte(int index, byte value) {
+			chunk.put(offset + check(index, 1), value);
+		}
+
+		/**
+		 * 拷贝到dst中(dst可以复用)
+		 */
+		public void getBytes(int index, byte[] dst, int dstOffset, int length) {
+			check(index, length);
+			for (int i = 0; i < length; i++)
+				dst[dstOffset + i] = chunk.get(offset + index + i);
+		}
+
+		public void putBytes(int index, byte[] src, int srcOffset, int length) {
+			check(index, length);
+			for (int i = 0; i < length; i++)
+				chunk.put(offset + index + i, src[srcOffset + i]);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		private int check(int index, int length) {
+			if (index < 0 || index + length > size)
+				throw new IndexOutOfBoundsException("index " + index + ", length " + length + ", record size " + size);
+			return index;
+		}
+	}
+
+	/**  消费者的记录处理方法    */
+	public interface RecordHandler {
+		void onRecord(Record record, long sequence);
+	}
+
+	private final int recordSize;
+	private final int slotSize;
+	private final long capacity;
+	private final long mask;
+	private final int chunkShift;
+	private final long chunkMask;
+	private final ByteBuffer[] chunks;
+	private final long[] chunkAddresses;
+	private final boolean multiProducer;
+
+	private final PadAfter cursors = new PadAfter();
+	private final Backoff producerBackoff = new Backoff();
+	/**  消费者使用的享元    */
+	private final Record consumerRecord = new Record();
+
+	/**
+	 * @param recordSize 每条记录的字节数
+	 * @param capacity 槽位数，必须是2的幂
+	 * @param multiProducer 是否有多个生产者线程
+	 */
+	public OffHeapRecordRing(int recordSize, long capacity, boolean multiProducer) {
+		if (recordSize <= 0 || capacity <= 0 || Long.bitCount(capacity) != 1)
+			throw new IllegalArgumentException();
+		if (!UnsafeAccess.isAvailable())
+			throw new UnsupportedOperationException("off-heap ring requires sun.misc.Unsafe");
+		this.recordSize = recordSize;
+		int slot = HEADER + ((recordSize + 7) & ~7);
+		this.slotSize = Integer.highestOneBit(slot) == slot ? slot : Integer.highestOneBit(slot) << 1;  //槽位大小取2的幂，chunk边界不会切开槽位
+		if (slotSize > MAX_CHUNK_BYTES)
+			throw new IllegalArgumentException("record too large");
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		long slotsPerChunk = Math.min(capacity, MAX_CHUNK_BYTES / slotSize);
+		this.chunkShift = Long.numberOfTrailingZeros(slotsPerChunk);
+		this.chunkMask = slotsPerChunk - 1;
+		int chunkCount = (int) (capacity / slotsPerChunk);
+		this.chunks = new ByteBuffer[chunkCount];
+		this.chunkAddresses = new long[chunkCount];
+		for (int i = 0; i < chunkCount; i++) {
+			chunks[i] = ByteBuffer.allocateDirect((int) (slotsPerChunk * slotSize)).order(ByteOrder.nativeOrder());
+			chunkAddresses[i] = UnsafeAccess.addressOf(chunks[i]);
+		}
+		for (long seq = 0; seq < capacity; seq++)
+			UnsafeAccess.putOrderedLong(headerAddress(seq), seq);
+		this.multiProducer = multiProducer;
+	}
+
+	private long headerAddress(long seq) {
+		long index = seq & mask;
+		return chunkAddresses[(int) (index >>> chunkShift)] + (index & chunkMask) * slotSize;
+	}
+
+	private void wrap(Record record, long seq) {
+		long index = seq & mask;
+		record.wrap(chunks[(int) (index >>> chunkShift)], (int) ((index & chunkMask) * slotSize) + HEADER, recordSize);
+	}
+
+	/**
+	 * 尝试申请一个槽位，成功后把record指向该槽位
+	 * @return 申请到的序号;队列已满返回-1
+	 */
+	public long tryClaim(Record record) {
+		for (;;) {
+			long seq = cursors.producer;
+			long header = UnsafeAccess.getLongVolatile(headerAddress(seq));
+			if (header < seq)  //槽位还没有被消费者释放:队列已满
+				return -1L;
+			if (header == seq) {
+				if (!multiProducer) {
+					PRODUCER.lazySet(cursors, seq + 1);
+				} else if (!PRODUCER.compareAndSet(cursors, seq, seq + 1)) {
+					continue;
+				}
+				wrap(record, seq);
+				return seq;
+			}
+			// header > seq: 其他生产者已经申请了这个序号，重新读取游标
+		}
+	}
+
+	/**
+	 * 申请一个槽位，队列已满时退避等待
+	 */
+	public long claim(Record record) {
+		int step = 0;
+		long seq;
+		while ((seq = tryClaim(record)) < 0)
+			step = producerBackoff.pause(step);
+		producerBackoff.succeeded(step);
+		return seq;
+	}
+
+	/**
+	 * 发布已经写好的记录
+	 */
+	public void publish(long seq) {
+		UnsafeAccess.putOrderedLong(headerAddress(seq), seq + 1);
+	}
+
+	/**
+	 * 消费者处理已经发布的记录(只能由一个线程调用)
+	 * @return 处理的记录条数
+	 */
+	public int drain(RecordHandler handler, int limit) {
+		int n = 0;
+		long seq = cursors.consumer;
+		while (n < limit) {
+			long address = headerAddress(seq);
+			if (UnsafeAccess.getLongVolatile(address) != seq + 1)
+				break;
+			wrap(consumerRecord, seq);
+			handler.onRecord(consumerRecord, seq);
+			UnsafeAccess.putOrderedLong(address, seq + capacity);  //释放槽位给下一圈的生产者
+			seq++;
+			n++;
+		}
+		cursors.consumer = seq;
+		return n;
+	}
+
+	/**
+	 * 近似的记录条数
+	 */
+	public long size() {
+		return Math.max(0L, cursors.producer - cursors.consumer);
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * 堆外内存的字节数
+	 */
+	public long offHeapBytes() {
+		return capacity * slotSize;
+	}
+
+
+	/**  对比使用的堆上对象    */
+	static final class Trade {
+		final long id;
+		final long price;
+		final int quantity;
+
+		Trade(long id, long price, int quantity) {
+			this.id = id;
+			this.price = price;
+			this.quantity = quantity;
+		}
+	}
+
+	/**
+	 * 1.容量:放入两千万条记录后的堆内存占用，OffHeapRecordRing 和 ArrayBlockingQueue<Trade> 对比
+	 * 2.吞吐量:多个生产者、一个消费者
+	 */
+	public static void main(String[] args) throws Exception {
+		final int records = 20000000;
+		long heapBefore = usedHeap();
+		OffHeapRecordRing ring = new OffHeapRecordRing(24, 1 << 25, false);
+		Record w = new Record();
+		for (int i = 0; i < records; i++) {
+			long seq = ring.claim(w);
+			w.putLong(0, i);
+			w.putLong(8, 100L + i % 50);
+			w.putInt(16, i % 1000);
+			ring.publish(seq);
+		}
+		System.out.println("OffHeapRecordRing 放入 " + records + " 条记录: 堆内存增加 " + (usedHeap() - heapBefore) / (1 << 20) + "MB, 堆外内存 "
+				+ ring.offHeapBytes() / (1 << 20) + "MB");
+		final long[] sum = new long[1];
+		RecordHandler summer = new RecordHandler() {
+			@Override
+			public void onRecord(Record record, long sequence) {
+				sum[0] += record.getLong(0);
+			}
+		};
+		while (ring.drain(summer, Integer.MAX_VALUE) > 0) {
+		}
+		ring = null;
+
+		heapBefore = usedHeap();
+		ArrayBlockingQueue<Trade> heapQueue = new ArrayBlockingQueue<Trade>(records);
+		for (int i = 0; i < records; i++)
+			heapQueue.offer(new Trade(i, 100L + i % 50, i % 1000));
+		System.out.println("ArrayBlockingQueue<Trade> 放入 " + records + " 条记录: 堆内存增加 " + (usedHeap() - heapBefore) / (1 << 20) + "MB");
+		heapQueue = null;
+
+		for (int round = 0; round < 3; round++) {
+			System.out.println("OffHeapRecordRing(MPSC)   4个生产者用时: " + throughputOffHeap(4, 2000000) + "毫秒");
+			System.out.println("ArrayBlockingQueue<Trade> 4个生产者用时: " + throughputHeap(4, 2000000) + "毫秒");
+		}
+	}
+
+	private static long throughputOffHeap(int producers, final int perProducer) throws InterruptedException {
+		final OffHeapRecordRing ring = new OffHeapRecordRing(24, 1 << 16, true);
+		Thread[] ts = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Record w = new Record();
+					for (int j = 0; j < perProducer; j++) {
+						long seq = ring.claim(w);
+						w.putLong(0, j);
+						w.putLong(8, 100L);
+						w.putInt(16, 1);
+						ring.publish(seq);
+					}
+				}
+			});
+		}
+		final long[] sum = new long[1];
+		RecordHandler handler = new RecordHandler() {
+			@Override
+			public void onRecord(Record record, long sequence) {
+				sum[0] += record.getLong(0);
+			}
+		};
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		Backoff idle = new Backoff();
+		int step = 0;
+		for (long n = 0; n < (long) producers * perProducer;) {
+			int drained = ring.drain(handler, 1024);
+			if (drained == 0) {
+				step = idle.pause(step);
+			} else {
+				step = 0;
+				n += drained;
+			}
+		}
+		for (Thread t : ts)
+			t.join();
+		if (sum[0] != (long) producers * perProducer * (perProducer - 1) / 2)
+			throw new IllegalStateException("lost records");
+		return System.currentTimeMillis() - begin;
+	}
+
+	private static long throughputHeap(int producers, final int perProducer) throws InterruptedException {
+		final ArrayBlockingQueue<Trade> queue = new ArrayBlockingQueue<Trade>(1 << 16);
+		Thread[] ts = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			ts[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < perProducer; j++)
+							queue.put(new Trade(j, 100L, 1));
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		long begin = System.currentTimeMillis();
+		for (Thread t : ts)
+			t.start();
+		long sum = 0;
+		for (long n = (long) producers * perProducer; n > 0; n--)
+			sum += queue.take().id;
+		for (Thread t : ts)
+			t.join();
+		if (sum != (long) producers * perProducer * (perProducer - 1) / 2)
+			throw new IllegalStateException("lost records");
+		return System.currentTimeMillis() - begin;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+}
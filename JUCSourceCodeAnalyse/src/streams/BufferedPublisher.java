@@ -0,0 +1,356 @@
+package streams;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * 基于有界缓冲区的发布者:生产者非阻塞地放入元素，按订阅者request(n)声明的需求把元素推送给订阅者
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class BufferedPublisher<T> implements Flow.Publisher<T> {
+
+	/**
+	 * BlockingQueueDemo/ProducerAndConsumer中缓冲区满了生产者就调用put()/await()阻塞，直到消费者取走元素
+	 * 如果生产者是I/O线程(事件循环),阻塞它就意味着这个线程上的所有连接都停了
+	 *
+	 * 这里双方都不阻塞线程:
+	 * 1.每个订阅者有自己的有界缓冲区(和BlockingQueueDemo一样使用ArrayBlockingQueue，但只使用不阻塞的offer/poll)
+	 *
+	 * 2.生产者: offer(item)缓冲区满时立即返回false，由生产者决定怎么处理(通常是暂停读取)
+	 *   offer是全有或全无的:先检查所有订阅者的缓冲区都有空位再放入，返回false时没有任何订阅者收到这个元素，生产者重试不会产生重复元素
+	 *   只支持单个生产者线程(订阅者只会取走元素，检查之后空位只会变多;多个生产者时检查和放入之间空位可能被别的生产者占用)
+	 *   onWritable(callback)注册一个回调，所有订阅者的缓冲区都有空位时在线程池中调用它一次，生产者在回调中恢复读取
+	 *
+	 * 3.订阅者: 通过request(n)声明需求，发布者最多推送requested个元素，没有需求的元素留在缓冲区中(缓冲区满后生产者就会收到false)
+	 *
+	 * 4.推送: 每个订阅在线程池中执行drain,使用wip计数器保证同一个订阅者的onNext等方法串行执行
+	 *   有新元素、新需求、完成或取消时wip+1,只有从0变为1的线程负责提交drain任务，drain过程中到达的信号由正在运行的drain继续处理
+	 */
+
+	private final Executor executor;
+	private final int bufferCapacity;
+	private final CopyOnWriteArrayList<BufferedSubscription<T>> subscriptions = new CopyOnWriteArrayList<BufferedSubscription<T>>();
+	/**  生产者注册的可写回调    */
+	private final AtomicReference<Runnable> writableCallback = new AtomicReference<Runnable>();
+
+	private volatile boolean closed;
+	private volatile Throwable closedException;
+
+	/**
+	 * @param executor 推送元素给订阅者的线程池
+	 * @param bufferCapacity 每个订阅者的缓冲区大小
+	 */
+	public BufferedPublisher(Executor executor, int bufferCapacity) {
+		if (executor == null)
+			throw new NullPointerException();
+		if (bufferCapacity <= 0)
+			throw new IllegalArgumentException();
+		this.executor = executor;
+		this.bufferCapacity = bufferCapacity;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException();
+		BufferedSubscription<T> s = new BufferedSubscription<T>(this, subscriber, bufferCapacity);
+		if (!closed)
+			subscriptions.add(s);
+		if (closed) {  //订阅前(或订阅过程中)已经关闭，直接完成
+			subscriptions.remove(s);
+			s.complete(closedException);
+		}
+		s.signal();
+	}
+
+	/**
+	 * 放入一个元素(不阻塞，只能由单个生产者线程调用)
+	 * @return 所有订阅者都接收了该元素返回true;有订阅者的缓冲区已满返回false,此时没有任何订阅者收到这个元素
+	 */
+	public boolean offer(T item) {
+		if (item == null)
+			throw new NullPointerException();
+		if (closed)
+			throw new IllegalStateException("publisher has been closed");
+		if (!isWritable())  //先检查所有缓冲区，避免部分订阅者收到、部分没收到，重试时产生重复元素
+			return false;
+		//检查之后新加入的订阅者缓冲区是空的，已有的缓冲区只会被消费者取走元素，所以这里的offer一定成功
+		for (BufferedSubscription<T> s : subscriptions) {
+			s.buffer.offer(item);
+			s.signal();
+		}
+		return true;
+	}
+
+	/**
+	 * 所有订阅者的缓冲区是否都有空位
+	 */
+	public boolean isWritable() {
+		for (BufferedSubscription<T> s : subscriptions) {
+			if (s.buffer.remainingCapacity() == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 注册一个一次性的回调，所有订阅者的缓冲区都有空位时在线程池中执行(当前已经可写时立即提交)
+	 * 同一时刻只保留最后注册的一个回调
+	 */
+	public void onWritable(Runnable callback) {
+		if (callback == null)
+			throw new NullPointerException();
+		writableCallback.set(callback);
+		fireWritable();  //注册之前缓冲区可能已经有空位了
+	}
+
+	void fireWritable() {
+		if (writableCallback.get() != null && isWritable()) {
+			Runnable callback = writableCallback.getAndSet(null);
+			if (callback != null)
+				executor.execute(callback);
+		}
+	}
+
+	/**
+	 * 关闭发布者，订阅者处理完缓冲区中的元素后收到onComplete
+	 */
+	public void close() {
+		closeExceptionally(null);
+	}
+
+	/**
+	 * 关闭发布者，订阅者处理完缓冲区中的元素后收到onError(error)
+	 */
+	public void closeExceptionally(Throwable error) {
+		if (closed)
+			return;
+		closedException = error;
+		closed = true;
+		for (BufferedSubscription<T> s : subscriptions) {
+			subscriptions.remove(s);
+			s.complete(error);
+			s.signal();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getNumberOfSubscribers() {
+		return subscriptions.size();
+	}
+
+	void remove(BufferedSubscription<T> s) {
+		subscriptions.remove(s);
+	}
+
+	void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+
+	/**  一个订阅者的订阅    */
+	static final class BufferedSubscription<T> implements Flow.Subscription, Runnable {
+
+		final BufferedPublisher<T> publisher;
+		final Flow.Subscriber<? super T> subscriber;
+		final ArrayBlockingQueue<T> buffer;
+		final AtomicLong requested = new AtomicLong();
+		final AtomicInteger wip = new AtomicInteger();
+
+		/**  onSubscribe是否已经调用(只在drain中访问)    */
+		boolean subscribed;
+		/**  订阅者已经收到onError/onComplete或已经取消(只在drain中访问)    */
+		boolean terminated;
+
+		volatile boolean cancelled;
+		volatile boolean done;
+		/**  发布者关闭时的异常    */
+		volatile Throwable error;
+		/**  导致订阅被取消的异常(非法的request或者订阅者自己抛出的异常)    */
+		volatile Throwable cancelError;
+
+		BufferedSubscription(BufferedPublisher<T> publisher, Flow.Subscriber<? super T> subscriber, int capacity) {
+			this.publisher = publisher;
+			this.subscriber = subscriber;
+			this.buffer = new ArrayBlockingQueue<T>(capacity);
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				cancelError = new IllegalArgumentException("non-positive request: " + n);
+				cancelled = true;  //规范3.9:调用onError并取消订阅
+			} else {
+				for (;;) {
+					long r = requested.get();
+					long u = r + n;
+					if (u < 0L)  //溢出时视为无限需求
+						u = Long.MAX_VALUE;
+					if (r == Long.MAX_VALUE || requested.compareAndSet(r, u))
+						break;
+				}
+			}
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			signal();
+		}
+
+		/**
+		 * 发布者关闭(在signal之前调用)
+		 */
+		void complete(Throwable e) {
+			error = e;
+			done = true;
+		}
+
+		void signal() {
+			if (wip.getAndIncrement() == 0)
+				publisher.execute(this);
+		}
+
+		/**
+		 * drain: 在需求范围内把缓冲区中的元素推送给订阅者
+		 */
+		@Override
+		public void run() {
+			int missed = 1;
+			for (;;) {
+				if (!terminated)
+					drain();
+				missed = wip.addAndGet(-missed);
+				if (missed == 0)
+					return;
+			}
+		}
+
+		private void drain() {
+			if (!subscribed) {
+				subscribed = true;
+				try {
+					subscriber.onSubscribe(this);
+				} catch (Throwable e) {
+					cancelError = e;
+					cancelled = true;
+				}
+			}
+			long r = requested.get();
+			long emitted = 0L;
+			for (;;) {
+				if (cancelled) {
+					terminate(cancelError, true);
+					return;
+				}
+				boolean d = done;
+				if (emitted == r)
+					break;
+				T item = buffer.poll();
+				if (item == null) {
+					if (d) {
+						terminate(error, false);
+						return;
+					}
+					break;
+				}
+				try {
+					subscriber.onNext(item);
+				} catch (Throwable e) {
+					cancelError = e;
+					cancelled = true;
+					continue;
+				}
+				emitted++;
+			}
+			if (done && buffer.isEmpty()) {
+				terminate(error, false);
+				return;
+			}
+			if (emitted > 0L) {
+				if (r != Long.MAX_VALUE)
+					requested.addAndGet(-emitted);
+				publisher.fireWritable();
+			}
+		}
+
+		/**
+		 * 结束订阅
+		 * @param e 需要通知订阅者的异常
+		 * @param cancel 是否由取消(或订阅者异常)引起，取消时只有异常需要通知
+		 */
+		private void terminate(Throwable e, boolean cancel) {
+			terminated = true;
+			buffer.clear();
+			publisher.remove(this);
+			publisher.fireWritable();  //取消的订阅者不应该继续让生产者暂停
+			try {
+				if (e != null)
+					subscriber.onError(e);
+				else if (!cancel)
+					subscriber.onComplete();
+			} catch (Throwable ignore) {
+				// 订阅者在onError/onComplete中抛出的异常无法再通知任何人
+			}
+		}
+	}
+
+
+	/**
+	 * 模拟事件循环上的生产者:缓冲区满时不阻塞线程，而是注册可写回调后退出，回调触发时继续生产
+	 * 订阅者每次处理比生产慢，通过背压让生产者暂停
+	 */
+	public static void main(String[] args) throws Exception {
+		final ExecutorService pool = Executors.newFixedThreadPool(2);
+		final BufferedPublisher<Integer> publisher = new BufferedPublisher<Integer>(pool, 64);
+		final long[] sum = new long[1];
+		BufferedSubscriber<Integer> subscriber = new BufferedSubscriber<Integer>(32, new Consumer<Integer>() {
+			@Override
+			public void accept(Integer item) {
+				sum[0] += item;
+				if (item % 1000 == 0)
+					Thread.yield();  //订阅者偶尔处理得慢一些
+			}
+		});
+		publisher.subscribe(subscriber);
+
+		final int total = 1000000;
+		final AtomicInteger pauses = new AtomicInteger();
+		Runnable producer = new Runnable() {
+			int next = 0;
+
+			@Override
+			public void run() {
+				while (next < total) {
+					if (!publisher.offer(next)) {  //缓冲区满,暂停生产，等待可写回调(当前线程直接返回，不阻塞)
+						pauses.incrementAndGet();
+						publisher.onWritable(this);
+						return;
+					}
+					next++;
+				}
+				publisher.close();
+			}
+		};
+		long begin = System.currentTimeMillis();
+		pool.execute(producer);
+		subscriber.completion().get(60, TimeUnit.SECONDS);
+		System.out.println("收到 " + total + " 个元素, 总和正确: " + (sum[0] == (long) total * (total - 1) / 2) + ", 生产者暂停次数: " + pauses.get()
+				+ ", 用时: " + (System.currentTimeMillis() - begin) + "毫秒");
+		pool.shutdown();
+	}
+
+}
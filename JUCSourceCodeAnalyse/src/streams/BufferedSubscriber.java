@@ -0,0 +1,92 @@
+package streams;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * 批量声明需求的订阅者:把收到的元素交给consumer处理，处理完一半预取量后再请求一批
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class BufferedSubscriber<T> implements Flow.Subscriber<T> {
+
+	/**
+	 * 每处理一个元素就request(1)会让发布者频繁地修改需求计数，一次request(Long.MAX_VALUE)又等于放弃了背压
+	 * 所以开始时请求prefetch个，之后每处理limit(prefetch的一半)个元素再请求limit个，未处理的需求始终不超过prefetch
+	 */
+
+	private final int prefetch;
+	private final int limit;
+	private final Consumer<? super T> consumer;
+	private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+
+	private Flow.Subscription subscription;
+	/**  本批次已经处理的元素个数(onNext串行调用,不需要同步)    */
+	private int consumed;
+
+	/**
+	 * @param prefetch 最多同时请求的元素个数
+	 * @param consumer 处理元素的方法(在发布者的线程池中执行，不应该阻塞)
+	 */
+	public BufferedSubscriber(int prefetch, Consumer<? super T> consumer) {
+		if (prefetch <= 0)
+			throw new IllegalArgumentException();
+		if (consumer == null)
+			throw new NullPointerException();
+		this.prefetch = prefetch;
+		this.limit = Math.max(1, prefetch >> 1);
+		this.consumer = consumer;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (this.subscription != null) {  //同一个订阅者只能订阅一次
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		subscription.request(prefetch);
+	}
+
+	@Override
+	public void onNext(T item) {
+		try {
+			consumer.accept(item);
+		} catch (Throwable e) {
+			subscription.cancel();
+			completion.completeExceptionally(e);
+			return;
+		}
+		if (++consumed == limit) {
+			consumed = 0;
+			subscription.request(limit);
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		completion.completeExceptionally(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		completion.complete(null);
+	}
+
+	/**
+	 * 取消订阅
+	 */
+	public void cancel() {
+		Flow.Subscription s = subscription;
+		if (s != null)
+			s.cancel();
+	}
+
+	/**
+	 * 发布者完成(或出错)时完成的Future
+	 */
+	public CompletableFuture<Void> completion() {
+		return completion;
+	}
+
+}
@@ -0,0 +1,54 @@
+package streams;
+
+/**
+ * 响应式流(Reactive Streams)的接口，和JDK9的 java.util.concurrent.Flow 中的接口签名完全相同
+ * 项目使用JDK8编译，所以先在这里定义一份，升级JDK后把import换成java.util.concurrent.Flow即可
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public final class Flow {
+
+	/**
+	 * 1.Publisher 发布者，subscribe时调用订阅者的onSubscribe并传入一个Subscription
+	 * 2.Subscriber 订阅者，通过Subscription.request(n)声明自己还能处理多少个元素(需求)
+	 * 3.发布者最多只能发送订阅者请求过的数量的元素，这就是背压(backpressure):
+	 *   慢的订阅者不会被快的发布者淹没，发布者也不需要阻塞线程等待订阅者
+	 * 4.同一个订阅者的onSubscribe/onNext/onError/onComplete必须串行调用(不能并发)
+	 */
+
+	private Flow() {
+	}
+
+	public static interface Publisher<T> {
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	public static interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	public static interface Subscription {
+		/**
+		 * 请求n个元素,n<=0时发布者会调用onError(IllegalArgumentException)
+		 */
+		void request(long n);
+
+		void cancel();
+	}
+
+	public static interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+	}
+
+	static final int DEFAULT_BUFFER_SIZE = 256;
+
+	public static int defaultBufferSize() {
+		return DEFAULT_BUFFER_SIZE;
+	}
+
+}
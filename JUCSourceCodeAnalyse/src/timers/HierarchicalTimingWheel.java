@@ -0,0 +1,385 @@
+package timers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import queues.MpscMailbox;
+
+/**
+ * 基于分层时间轮(hierarchical timing wheel)的定时器:一个时钟线程驱动，到期的任务交给线程池执行
+ * @author EX_WLJR_CHENZEHUA
+ *
+ */
+public class HierarchicalTimingWheel {
+
+	/**
+	 * ThreadSleep/ThreadJoin中延迟执行的方式是每个定时任务占用一个线程sleep/join(2000)，定时任务一多，线程数就跟着暴涨
+	 * ScheduledThreadPoolExecutor只用少量线程，但它的DelayedWorkQueue是一个堆:schedule和cancel(removeOnCancel)都是O(log n),并且所有操作都要获取同一把锁
+	 *
+	 * 1.时间轮: 每层有 2^wheelBits 个槽(bucket)，第0层每个槽代表一个tick,第L层每个槽代表 2^(wheelBits*L) 个tick
+	 *   到期时间距离现在越远，放在越高的层，到期tick的对应位段就是槽的下标，所以放入只需要O(1)
+	 *   时钟每走一个tick，处理第0层当前槽中的所有任务;低层转完一圈时，把高一层对应槽中的任务重新放入低层(cascade)
+	 *
+	 * 2.只有时钟线程访问时间轮:
+	 *   schedule把任务放入MpscMailbox(无锁,wait-free)，时钟线程在每个tick开始时把它们取出放到对应的槽中
+	 *   cancel只是把任务状态CAS为CANCELLED(O(1))，如果任务已经在槽中，再把它放入取消邮箱，由时钟线程从双向链表中摘除(O(1))
+	 *   所以几百万个超时任务被取消后不会一直占用内存直到原本的到期时间
+	 *
+	 * 3.到期的任务交给executor执行，时钟线程自己不执行任务，任务执行慢不会影响时钟
+	 *
+	 * 4.精度: 任务最多比到期时间晚一个tick执行(并且不会提前执行),适合请求超时这种不要求精确的场景
+	 */
+
+	/**  定时任务    */
+	public static final class Timeout extends MpscMailbox.Node {
+
+		private static final int INIT = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final HierarchicalTimingWheel timer;
+		private final Runnable task;
+		/**  到期的tick    */
+		final long deadlineTick;
+		private volatile int state;
+		/**  是否已经被时钟线程放入了槽中(在那之后取消才需要通知时钟线程)    */
+		volatile boolean inWheel;
+
+		/**  所在槽的双向链表，只有时钟线程访问    */
+		Bucket bucket;
+		Timeout bucketPrev;
+		Timeout bucketNext;
+
+		Timeout(HierarchicalTimingWheel timer, Runnable task, long deadlineTick) {
+			this.timer = timer;
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+
+		/**
+		 * 取消任务
+		 * @return 任务已经到期或者已经被取消返回false
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, INIT, CANCELLED))
+				return false;
+			timer.pending.decrement();
+			if (inWheel)
+				timer.cancelled.offer(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		boolean expire() {
+			return STATE.compareAndSet(this, INIT, EXPIRED);
+		}
+	}
+
+	/**  时间轮的一个槽:双向链表    */
+	static final class Bucket {
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			t.bucketPrev = tail;
+			t.bucketNext = null;
+			if (tail == null)
+				head = t;
+			else
+				tail.bucketNext = t;
+			tail = t;
+		}
+
+		void remove(Timeout t) {
+			if (t.bucketPrev == null)
+				head = t.bucketNext;
+			else
+				t.bucketPrev.bucketNext = t.bucketNext;
+			if (t.bucketNext == null)
+				tail = t.bucketPrev;
+			else
+				t.bucketNext.bucketPrev = t.bucketPrev;
+			t.bucket = null;
+			t.bucketPrev = null;
+			t.bucketNext = null;
+		}
+
+		/**
+		 * 取出链表中的所有任务并清空该槽
+		 */
+		Timeout clear() {
+			Timeout first = head;
+			head = tail = null;
+			return first;
+		}
+	}
+
+	private final long tickNanos;
+	private final int wheelBits;
+	private final int wheelMask;
+	private final Bucket[][] wheels;
+	/**  最高层能够表示的最大tick跨度,超过的先放在最高层，cascade时再重新计算    */
+	private final long maxSpan;
+
+	private final Executor executor;
+	private final ExecutorService ownedExecutor;
+
+	private final MpscMailbox<Timeout> scheduled = new MpscMailbox<Timeout>();
+	private final MpscMailbox<Timeout> cancelled = new MpscMailbox<Timeout>();
+	private final LongAdder pending = new LongAdder();
+
+	private final long startTime;
+	/**  时钟线程已经处理完的tick，只有时钟线程修改    */
+	private volatile long currentTick;
+
+	private final Thread ticker;
+	private volatile boolean shutdown;
+
+	public HierarchicalTimingWheel() {
+		this(1, TimeUnit.MILLISECONDS, 6, 6, null);
+	}
+
+	/**
+	 * @param tickDuration 一个tick的时长
+	 * @param wheelBits 每层有 2^wheelBits 个槽
+	 * @param levels 层数
+	 * @param executor 执行到期任务的线程池，null时创建一个单线程的线程池(shutdown时一起关闭)
+	 */
+	public HierarchicalTimingWheel(long tickDuration, TimeUnit unit, int wheelBits, int levels, Executor executor) {
+		if (tickDuration <= 0 || wheelBits <= 0 || levels <= 0 || (long) wheelBits * levels > 62)
+			throw new IllegalArgumentException();
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheelBits = wheelBits;
+		this.wheelMask = (1 << wheelBits) - 1;
+		this.maxSpan = 1L << (wheelBits * levels);
+		this.wheels = new Bucket[levels][1 << wheelBits];
+		for (Bucket[] wheel : wheels) {
+			for (int i = 0; i < wheel.length; i++)
+				wheel[i] = new Bucket();
+		}
+		if (executor == null) {
+			this.ownedExecutor = Executors.newSingleThreadExecutor();
+			this.executor = ownedExecutor;
+		} else {
+			this.ownedExecutor = null;
+			this.executor = executor;
+		}
+		this.startTime = System.nanoTime();
+		this.ticker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runTicker();
+			}
+		}, "timing-wheel-ticker");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * 在delay之后执行task(任意线程调用,O(1))
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (task == null)
+			throw new NullPointerException();
+		if (shutdown)
+			throw new IllegalStateException("timer has been shut down");
+		long elapsed = System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0L);
+		long deadlineTick = (elapsed + tickNanos - 1) / tickNanos;  //向上取整，保证不会提前执行
+		Timeout t = new Timeout(this, task, deadlineTick);
+		pending.increment();
+		scheduled.offer(t);
+		return t;
+	}
+
+	/**
+	 * 停止时钟线程，尚未到期的任务不再执行
+	 */
+	public void shutdown() {
+		shutdown = true;
+		LockSupport.unpark(ticker);
+		if (ownedExecutor != null)
+			ownedExecutor.shutdown();
+	}
+
+	/**
+	 * 尚未到期也没有被取消的任务数
+	 */
+	public long pendingTimeouts() {
+		return pending.sum();
+	}
+
+	private void runTicker() {
+		while (!shutdown) {
+			long tick = currentTick + 1;
+			long wait = startTime + tick * tickNanos - System.nanoTime();
+			if (wait > 0L) {
+				LockSupport.parkNanos(this, wait);
+				continue;
+			}
+			transferCancelled();
+			transferScheduled();
+			List<Timeout> expired = new ArrayList<Timeout>();
+			long now = (System.nanoTime() - startTime) / tickNanos;
+			for (; tick <= now; tick++) {  //时钟线程被延迟时一次追赶多个tick
+				currentTick = tick;
+				cascade(tick);
+				collect(wheels[0][(int) (tick & wheelMask)].clear(), expired);
+			}
+			for (Timeout t : expired) {
+				if (t.expire()) {
+					pending.decrement();
+					try {
+						executor.execute(t.task);
+					} catch (RuntimeException e) {  //线程池拒绝执行时不能让时钟线程退出
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	private void transferScheduled() {
+		Timeout t;
+		while ((t = scheduled.poll()) != null) {
+			if (t.isCancelled())
+				continue;
+			t.inWheel = true;
+			if (t.isCancelled())  //设置inWheel之前被取消，取消方不会通知时钟线程
+				continue;
+			place(t, currentTick + 1);  //当前tick已经处理过了
+		}
+	}
+
+	private void transferCancelled() {
+		Timeout t;
+		while ((t = cancelled.poll()) != null) {
+			if (t.bucket != null)
+				t.bucket.remove(t);
+		}
+	}
+
+	/**
+	 * 根据到期tick和当前tick的距离把任务放入对应层的槽中
+	 * @param minTick 最早可以放入的tick(已经到期的任务放入该tick对应的第0层槽中)
+	 */
+	private void place(Timeout t, long minTick) {
+		long tick = currentTick;
+		long target = Math.max(t.deadlineTick, minTick);
+		long delta = target - tick;
+		if (delta >= maxSpan) {  //超出最高层的范围，先放在最高层，cascade时重新计算
+			delta = maxSpan - 1;
+			target = tick + delta;
+		}
+		int level = 0;
+		while (delta >= (1L << (wheelBits * (level + 1))))
+			level++;
+		wheels[level][(int) ((target >>> (wheelBits * level)) & wheelMask)].add(t);
+	}
+
+	/**
+	 * 低层转完一圈时，从最高的需要cascade的层开始，依次把对应槽中的任务重新放入低层
+	 */
+	private void cascade(long tick) {
+		int top = 0;
+		while (top < wheels.length - 1 && (tick & ((1L << (wheelBits * (top + 1))) - 1)) == 0)
+			top++;
+		for (int level = top; level >= 1; level--) {
+			Timeout t = wheels[level][(int) ((tick >>> (wheelBits * level)) & wheelMask)].clear();
+			while (t != null) {
+				Timeout next = t.bucketNext;
+				t.bucket = null;
+				t.bucketPrev = t.bucketNext = null;
+				place(t, tick);
+				t = next;
+			}
+		}
+	}
+
+	private static void collect(Timeout t, List<Timeout> expired) {
+		while (t != null) {
+			Timeout next = t.bucketNext;
+			t.bucket = null;
+			t.bucketPrev = t.bucketNext = null;
+			expired.add(t);
+			t = next;
+		}
+	}
+
+
+	/**
+	 * 1.精度:几个短延迟任务的实际执行时间
+	 * 2.大量超时任务:先 schedule 再 cancel 两百万个(模拟请求在超时前完成)，比较 HierarchicalTimingWheel 和 ScheduledThreadPoolExecutor 的用时
+	 */
+	public static void main(String[] args) throws Exception {
+		HierarchicalTimingWheel timer = new HierarchicalTimingWheel();
+		final long begin = System.nanoTime();
+		for (final int delay : new int[] { 10, 50, 200, 1000 }) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println("延迟 " + delay + "毫秒的任务实际在 " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) + "毫秒后执行");
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		Thread.sleep(1200);
+
+		final int count = 2000000;
+		for (int round = 0; round < 3; round++) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Runnable noop = new Runnable() {
+				@Override
+				public void run() {
+				}
+			};
+			Timeout[] timeouts = new Timeout[count];
+			long t0 = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				timeouts[i] = timer.schedule(noop, 10000 + random.nextInt(50000), TimeUnit.MILLISECONDS);
+			long t1 = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				timeouts[i].cancel();
+			long t2 = System.nanoTime();
+			timeouts = null;
+			System.out.println("HierarchicalTimingWheel      schedule: " + TimeUnit.NANOSECONDS.toMillis(t1 - t0) + "毫秒, cancel: "
+					+ TimeUnit.NANOSECONDS.toMillis(t2 - t1) + "毫秒, 剩余: " + timer.pendingTimeouts());
+
+			ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(1);
+			stpe.setRemoveOnCancelPolicy(true);
+			ScheduledFuture<?>[] futures = new ScheduledFuture<?>[count];
+			t0 = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				futures[i] = stpe.schedule(noop, 10000 + random.nextInt(50000), TimeUnit.MILLISECONDS);
+			t1 = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				futures[i].cancel(false);
+			t2 = System.nanoTime();
+			futures = null;
+			System.out.println("ScheduledThreadPoolExecutor schedule: " + TimeUnit.NANOSECONDS.toMillis(t1 - t0) + "毫秒, cancel: "
+					+ TimeUnit.NANOSECONDS.toMillis(t2 - t1) + "毫秒, 剩余: " + stpe.getQueue().size());
+			stpe.shutdownNow();
+		}
+		timer.shutdown();
+	}
+
+}